@@ -0,0 +1,160 @@
+package net.sundell.snax;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+
+/**
+ * Matches elements whose attribute value contains any of a set of strings.
+ * The strings are compiled into an Aho-Corasick automaton when the
+ * constraint is created, so a value is checked in a single pass over its
+ * characters, however many strings there are.
+ */
+class AttributeContainsAnyConstraint implements ElementConstraint {
+    private QName qname;
+    private Set<String> patterns;
+    private boolean shouldMatch;
+
+    // The automaton.  Each state's transitions are sorted by character, and
+    // a state is terminal if it or any state on its failure chain ends a
+    // pattern.
+    private char[][] labels;
+    private int[][] targets;
+    private int[] failures;
+    private boolean[] terminal;
+
+    AttributeContainsAnyConstraint(QName qname, Collection<String> patterns, boolean shouldMatch) {
+        this.qname = qname;
+        this.patterns = new HashSet<String>(patterns);
+        this.shouldMatch = shouldMatch;
+        build();
+    }
+
+    private void build() {
+        // Build the trie
+        List<TreeMap<Character, Integer>> trie = new ArrayList<TreeMap<Character, Integer>>();
+        List<Boolean> ends = new ArrayList<Boolean>();
+        trie.add(new TreeMap<Character, Integer>());
+        ends.add(false);
+        for (String pattern : patterns) {
+            int state = 0;
+            for (int i = 0; i < pattern.length(); i++) {
+                Integer next = trie.get(state).get(pattern.charAt(i));
+                if (next == null) {
+                    next = trie.size();
+                    trie.add(new TreeMap<Character, Integer>());
+                    ends.add(false);
+                    trie.get(state).put(pattern.charAt(i), next);
+                }
+                state = next;
+            }
+            ends.set(state, true);
+        }
+        int n = trie.size();
+        labels = new char[n][];
+        targets = new int[n][];
+        failures = new int[n];
+        terminal = new boolean[n];
+        for (int s = 0; s < n; s++) {
+            TreeMap<Character, Integer> edges = trie.get(s);
+            labels[s] = new char[edges.size()];
+            targets[s] = new int[edges.size()];
+            int i = 0;
+            for (Map.Entry<Character, Integer> e : edges.entrySet()) {
+                labels[s][i] = e.getKey();
+                targets[s][i++] = e.getValue();
+            }
+            terminal[s] = ends.get(s);
+        }
+        // Failure links, breadth first so that each state's failure target
+        // is complete before it is used
+        Deque<Integer> queue = new ArrayDeque<Integer>();
+        for (int t : targets[0]) {
+            failures[t] = 0;
+            queue.add(t);
+        }
+        while (!queue.isEmpty()) {
+            int s = queue.remove();
+            for (int i = 0; i < labels[s].length; i++) {
+                char c = labels[s][i];
+                int t = targets[s][i];
+                int f = failures[s];
+                int next;
+                while ((next = step(f, c)) == -1 && f != 0) {
+                    f = failures[f];
+                }
+                failures[t] = (next == -1 || next == t) ? 0 : next;
+                terminal[t] |= terminal[failures[t]];
+                queue.add(t);
+            }
+        }
+    }
+
+    /**
+     * Follow a state's own transition on a character.
+     * @return target state, or -1 if there is none
+     */
+    private int step(int state, char c) {
+        int i = Arrays.binarySearch(labels[state], c);
+        return (i >= 0) ? targets[state][i] : -1;
+    }
+
+    boolean containsAny(String value) {
+        if (terminal[0]) {
+            // The empty string is one of the patterns
+            return true;
+        }
+        int state = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            int next;
+            while ((next = step(state, c)) == -1 && state != 0) {
+                state = failures[state];
+            }
+            state = (next == -1) ? 0 : next;
+            if (terminal[state]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean matches(StartElement element) {
+        Attribute attr = element.getAttributeByName(qname);
+        if (attr != null && containsAny(attr.getValue())) {
+            return shouldMatch;
+        }
+        return !shouldMatch;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (o == null || !(o instanceof AttributeContainsAnyConstraint)) {
+            return false;
+        }
+        AttributeContainsAnyConstraint c = (AttributeContainsAnyConstraint)o;
+        return qname.equals(c.qname) &&
+               patterns.equals(c.patterns) &&
+               shouldMatch == c.shouldMatch;
+    }
+
+    @Override
+    public int hashCode() {
+        return qname.hashCode() * 31 + patterns.hashCode() + (shouldMatch ? 1 : 0);
+    }
+}
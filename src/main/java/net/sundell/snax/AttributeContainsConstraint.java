@@ -38,4 +38,9 @@ class AttributeContainsConstraint implements ElementConstraint {
                shouldMatch == c.shouldMatch;
     }
 
+    @Override
+    public int hashCode() {
+        return qname.hashCode() * 31 + containsValue.hashCode() + (shouldMatch ? 1 : 0);
+    }
+
 }
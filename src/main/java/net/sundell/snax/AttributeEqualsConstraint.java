@@ -16,6 +16,22 @@ class AttributeEqualsConstraint implements ElementConstraint {
         this.shouldMatch = shouldMatch;
     }
 
+    QName getQName() {
+        return qname;
+    }
+
+    String getValue() {
+        return attributeValue;
+    }
+
+    /**
+     * Return true if the attribute must have the value, or false if it
+     * must not.
+     */
+    boolean isRequired() {
+        return shouldMatch;
+    }
+
     @Override
     public boolean matches(StartElement element) {
         Attribute attr = element.getAttributeByName(qname);
@@ -38,4 +54,9 @@ class AttributeEqualsConstraint implements ElementConstraint {
     		   attributeValue.equals(c.attributeValue) &&
     		   shouldMatch == c.shouldMatch;
     }
+
+    @Override
+    public int hashCode() {
+        return qname.hashCode() * 31 + attributeValue.hashCode() + (shouldMatch ? 1 : 0);
+    }
 }
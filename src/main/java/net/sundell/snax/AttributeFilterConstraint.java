@@ -32,4 +32,9 @@ class AttributeFilterConstraint implements ElementConstraint {
                filter.equals(c.filter);
     }
 
+    @Override
+    public int hashCode() {
+        return qname.hashCode() * 31 + filter.hashCode();
+    }
+
 }
@@ -0,0 +1,54 @@
+package net.sundell.snax;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+
+/**
+ * Matches elements whose attribute value is one of a set of values, with a
+ * single hash lookup however many values there are.
+ */
+class AttributeInConstraint implements ElementConstraint {
+    private QName qname;
+    private Set<String> values;
+    private boolean shouldMatch;
+
+    AttributeInConstraint(QName qname, Collection<String> values, boolean shouldMatch) {
+        this.qname = qname;
+        // Copied, so that later changes to the caller's collection have no effect
+        this.values = new HashSet<String>(values);
+        this.shouldMatch = shouldMatch;
+    }
+
+    @Override
+    public boolean matches(StartElement element) {
+        Attribute attr = element.getAttributeByName(qname);
+        if (attr != null && values.contains(attr.getValue())) {
+            return shouldMatch;
+        }
+        return !shouldMatch;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (o == null || !(o instanceof AttributeInConstraint)) {
+            return false;
+        }
+        AttributeInConstraint c = (AttributeInConstraint)o;
+        return qname.equals(c.qname) &&
+               values.equals(c.values) &&
+               shouldMatch == c.shouldMatch;
+    }
+
+    @Override
+    public int hashCode() {
+        return qname.hashCode() * 31 + values.hashCode() + (shouldMatch ? 1 : 0);
+    }
+}
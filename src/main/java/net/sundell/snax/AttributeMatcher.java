@@ -1,5 +1,7 @@
 package net.sundell.snax;
 
+import java.util.Collection;
+
 import javax.xml.namespace.QName;
 import javax.xml.stream.events.StartElement;
 
@@ -42,13 +44,94 @@ public class AttributeMatcher implements ElementConstraint {
         return new AttributeMatchesConstraint(attributeName, pattern, false);
     }
 
+    /**
+     * Match a value that is one of a set of values.  The values are copied
+     * into a hash set, so the cost of matching doesn't grow with their number.
+     */
+    public ElementConstraint in(Collection<String> values) {
+        return new AttributeInConstraint(attributeName, values, true);
+    }
+
+    public ElementConstraint notIn(Collection<String> values) {
+        return new AttributeInConstraint(attributeName, values, false);
+    }
+
+    /**
+     * Match a value that contains any of a set of strings.  The strings are
+     * compiled into an automaton that checks for all of them in a single
+     * pass over the value.
+     */
+    public ElementConstraint containsAny(Collection<String> values) {
+        return new AttributeContainsAnyConstraint(attributeName, values, true);
+    }
+
+    public ElementConstraint containsNone(Collection<String> values) {
+        return new AttributeContainsAnyConstraint(attributeName, values, false);
+    }
+
     public ElementConstraint filter(AttributeFilter filter) {
         return new AttributeFilterConstraint(attributeName, filter);
     }
+
+    /**
+     * Match a numeric value greater than <code>value</code>.  Values that 
+     * are not numbers never match numeric constraints.
+     */
+    public ElementConstraint greaterThan(double value) {
+        return new AttributeRangeConstraint(attributeName, value, false, 
+                                            Double.POSITIVE_INFINITY, true);
+    }
+
+    public ElementConstraint greaterThanOrEqualTo(double value) {
+        return new AttributeRangeConstraint(attributeName, value, true, 
+                                            Double.POSITIVE_INFINITY, true);
+    }
+
+    public ElementConstraint lessThan(double value) {
+        return new AttributeRangeConstraint(attributeName, Double.NEGATIVE_INFINITY, true, 
+                                            value, false);
+    }
+
+    public ElementConstraint lessThanOrEqualTo(double value) {
+        return new AttributeRangeConstraint(attributeName, Double.NEGATIVE_INFINITY, true, 
+                                            value, true);
+    }
+
+    /**
+     * Match a numeric value between <code>low</code> and <code>high</code>, inclusive.
+     */
+    public ElementConstraint between(double low, double high) {
+        return new AttributeRangeConstraint(attributeName, low, true, high, true);
+    }
+
+    /**
+     * Match a numeric value in any of several inclusive ranges, given as 
+     * pairs of bounds: <code>inRanges(1, 5, 10, 20)</code> matches values
+     * from 1 to 5 and from 10 to 20.
+     */
+    public ElementConstraint inRanges(double... bounds) {
+        return new AttributeRangeConstraint(attributeName, bounds);
+    }
     
     @Override
     public boolean matches(StartElement element) {
         return (element.getAttributeByName(attributeName) != null);
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (o == null || !(o instanceof AttributeMatcher)) {
+            return false;
+        }
+        return attributeName.equals(((AttributeMatcher)o).attributeName);
+    }
+
+    @Override
+    public int hashCode() {
+        return attributeName.hashCode();
+    }
+
 }
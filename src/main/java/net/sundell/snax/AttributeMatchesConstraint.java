@@ -44,4 +44,9 @@ class AttributeMatchesConstraint implements ElementConstraint {
                pattern.equals(c.pattern) &&
                shouldMatch == c.shouldMatch;
     }
+
+    @Override
+    public int hashCode() {
+        return qname.hashCode() * 31 + pattern.pattern().hashCode() + (shouldMatch ? 1 : 0);
+    }
 }
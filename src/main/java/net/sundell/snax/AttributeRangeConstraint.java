@@ -0,0 +1,158 @@
+package net.sundell.snax;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+
+/**
+ * Matches elements with a numeric attribute whose value falls in one of a
+ * set of ranges.  The ranges are sorted and merged when the constraint is
+ * created, so equivalent constraints are equal however they were written,
+ * and a value is located among them by binary search.  Values that are
+ * missing or not numeric never match.
+ */
+class AttributeRangeConstraint implements ElementConstraint {
+
+    private QName qname;
+    // Disjoint ranges in ascending order
+    private double[] lows, highs;
+    private boolean[] lowInclusive, highInclusive;
+
+    /**
+     * A constraint with a single range.
+     */
+    AttributeRangeConstraint(QName qname, double low, boolean lowInclusive,
+                             double high, boolean highInclusive) {
+        if (Double.isNaN(low) || Double.isNaN(high) || low > high) {
+            throw new IllegalArgumentException("Invalid range: " + low + "-" + high);
+        }
+        this.qname = qname;
+        this.lows = new double[] { low };
+        this.highs = new double[] { high };
+        this.lowInclusive = new boolean[] { lowInclusive };
+        this.highInclusive = new boolean[] { highInclusive };
+    }
+
+    /**
+     * A constraint with several inclusive ranges.
+     * @param bounds pairs of low and high bounds
+     */
+    AttributeRangeConstraint(QName qname, double... bounds) {
+        if (bounds.length == 0 || bounds.length % 2 != 0) {
+            throw new IllegalArgumentException("Ranges require pairs of bounds");
+        }
+        double[][] ranges = new double[bounds.length / 2][];
+        for (int i = 0; i < ranges.length; i++) {
+            double low = bounds[i * 2], high = bounds[i * 2 + 1];
+            if (Double.isNaN(low) || Double.isNaN(high) || low > high) {
+                throw new IllegalArgumentException("Invalid range: " + low + "-" + high);
+            }
+            ranges[i] = new double[] { low, high };
+        }
+        Arrays.sort(ranges, new Comparator<double[]>() {
+            @Override
+            public int compare(double[] a, double[] b) {
+                return Double.compare(a[0], b[0]);
+            }
+        });
+        int n = 0;
+        for (int i = 1; i < ranges.length; i++) {
+            if (ranges[i][0] <= ranges[n][1]) {
+                ranges[n][1] = Math.max(ranges[n][1], ranges[i][1]);
+            }
+            else {
+                ranges[++n] = ranges[i];
+            }
+        }
+        n++;
+        this.qname = qname;
+        this.lows = new double[n];
+        this.highs = new double[n];
+        this.lowInclusive = new boolean[n];
+        this.highInclusive = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            lows[i] = ranges[i][0];
+            highs[i] = ranges[i][1];
+            lowInclusive[i] = true;
+            highInclusive[i] = true;
+        }
+    }
+
+    @Override
+    public boolean matches(StartElement element) {
+        Attribute attr = element.getAttributeByName(qname);
+        if (attr == null) {
+            return false;
+        }
+        double value;
+        try {
+            value = parseNumber(attr.getValue());
+        }
+        catch (NumberFormatException e) {
+            return false;
+        }
+        if (Double.isNaN(value)) {
+            return false;
+        }
+        // Find the last range that starts at or below the value
+        int lo = 0, hi = lows.length - 1, found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (lows[mid] <= value) {
+                found = mid;
+                lo = mid + 1;
+            }
+            else {
+                hi = mid - 1;
+            }
+        }
+        if (found == -1) {
+            return false;
+        }
+        return (value > lows[found] || lowInclusive[found]) &&
+               (value < highs[found] || (value == highs[found] && highInclusive[found]));
+    }
+
+    /**
+     * Parse a number, without creating any objects unless it has a
+     * fractional part or exponent.
+     */
+    static double parseNumber(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '.' || c == 'e' || c == 'E' || c == 'I' || c == 'N') {
+                return TypedValues.parseDouble(value);
+            }
+        }
+        try {
+            return TypedValues.parseLong(value);
+        }
+        catch (NumberFormatException e) {
+            // Perhaps too large for a long
+            return TypedValues.parseDouble(value);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (o == null || !(o instanceof AttributeRangeConstraint)) {
+            return false;
+        }
+        AttributeRangeConstraint c = (AttributeRangeConstraint)o;
+        return qname.equals(c.qname) &&
+               Arrays.equals(lows, c.lows) && Arrays.equals(highs, c.highs) &&
+               Arrays.equals(lowInclusive, c.lowInclusive) &&
+               Arrays.equals(highInclusive, c.highInclusive);
+    }
+
+    @Override
+    public int hashCode() {
+        return qname.hashCode() * 31 + Arrays.hashCode(lows) * 17 + Arrays.hashCode(highs);
+    }
+}
@@ -0,0 +1,600 @@
+package net.sundell.snax;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * A Reader that decodes bytes and records the byte offsets in the input of
+ * the tags in the characters it returns.  This lets the parser find where
+ * elements start and end in terms that can be used to seek or slice the
+ * original input, which the character offsets reported by StAX can't.
+ * <p>
+ * Byte offsets are computed from the decoded characters, so only charsets
+ * in which a character's encoded length can be determined from the character
+ * itself are supported: UTF-8, UTF-16BE, UTF-16LE and single-byte charsets.
+ * <p>
+ * Tags are found by scanning the characters as they are decoded, when the
+ * byte offset of each character is known, so a tag's offsets are available
+ * however long the tag is.  (StAX locations can't be used for this, as
+ * implementations only report them approximately.)  
+ * Element events are matched up with the tags in the order they occur; this
+ * relies on the parser not expanding entities that contain markup, which is
+ * the case when DTD support is disabled.
+ * <p>
+ * Optional prefix and suffix strings are returned before and after the
+ * decoded input.  They occupy no bytes: the characters of the prefix are all
+ * at the starting byte offset, and those of the suffix at the ending offset.
+ */
+class ByteOffsetReader extends Reader {
+
+    private static final int CHUNK_SIZE = 8192;
+    // Minimum number of decoded bytes that are kept for slices.  This
+    // needs to comfortably exceed the StAX implementation's read-ahead.
+    private static final int RETAIN_SIZE = 16 * CHUNK_SIZE;
+
+    private static final int UTF_8 = 0, UTF_16 = 1, SINGLE_BYTE = 2;
+
+    private ReadableByteChannel channel;
+    private ByteBuffer in;
+    private CharsetDecoder decoder;
+    private int encoding;
+    private String suffix;
+    private boolean inputDone;
+    private boolean eof = false;
+
+    // Decoded characters that have not yet been read
+    private ArrayDeque<Chunk> chunks = new ArrayDeque<Chunk>();
+    private long readOffset = 0;
+    private long nextCharOffset = 0;
+    private long nextByteOffset;
+
+    static final byte START_TAG = 0, END_TAG = 1, EMPTY_TAG = 2;
+
+    // Tag scanner state
+    private static final int TEXT = 0, TAG_OPEN = 1, IN_START = 2, IN_END = 3, 
+            BANG = 4, BANG_DASH = 5, COMMENT = 6, CDATA = 7, DOCTYPE = 8, PI = 9;
+    private int scanState = TEXT;
+    private char quote = 0;
+    private char prev1 = 0, prev2 = 0;
+    private int doctypeDepth = 0;
+    private long tagStart, tagByteStart;
+
+    // Queue of tags that have been scanned but not yet taken by the parser
+    private long[] tagStarts = new long[64];
+    private long[] tagEnds = new long[64];
+    private long[] tagByteStarts = new long[64];
+    private long[] tagByteEnds = new long[64];
+    private byte[] tagKinds = new byte[64];
+    private int tagHead = 0, tagCount = 0;
+    private long lastTagStart, lastTagEnd, lastTagByteStart, lastTagByteEnd;
+    private long suffixStart = Long.MAX_VALUE;
+
+    // Input bytes that have been decoded and removed from the input buffer,
+    // kept so that the bytes of recent elements can be returned.  Bytes from
+    // the lowest pinned offset, or the first tag not yet taken by the parser,
+    // onwards are kept however many there are.  Nothing is kept unless
+    // retainBytes is set or an offset is pinned.
+    private ArrayDeque<ByteChunk> byteChunks = new ArrayDeque<ByteChunk>();
+    private boolean retainBytes = false;
+    private int retainedBytes = 0;
+    // Offset in the input of the first byte in the input buffer
+    private long bufferStart;
+    private long[] pins = new long[16];
+    private int pinCount = 0;
+
+    /**
+     * Read from a channel.
+     * @param channel input
+     * @param charset encoding of the input
+     * @param byteOffset offset in the underlying input of the first byte
+     *        that will be read from the channel
+     * @param prefix characters to return before the input, or null
+     * @param suffix characters to return after the input, or null
+     */
+    ByteOffsetReader(ReadableByteChannel channel, Charset charset, long byteOffset,
+                     String prefix, String suffix) {
+        this(charset, byteOffset, prefix, suffix);
+        this.channel = channel;
+        this.in = ByteBuffer.allocate(CHUNK_SIZE * 2);
+        this.in.flip();
+        this.inputDone = false;
+    }
+
+    /**
+     * Read the remaining contents of a buffer.
+     * @param buffer input; its position is the first byte that will be read
+     * @param charset encoding of the input
+     * @param byteOffset offset in the underlying input of the buffer's position
+     * @param prefix characters to return before the input, or null
+     * @param suffix characters to return after the input, or null
+     */
+    ByteOffsetReader(ByteBuffer buffer, Charset charset, long byteOffset,
+                     String prefix, String suffix) {
+        this(charset, byteOffset, prefix, suffix);
+        this.in = buffer.slice();
+        this.inputDone = true;
+    }
+
+    private ByteOffsetReader(Charset charset, long byteOffset, String prefix, String suffix) {
+        this.encoding = encodingOf(charset);
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        this.nextByteOffset = byteOffset;
+        this.bufferStart = byteOffset;
+        this.suffix = suffix;
+        if (prefix != null && prefix.length() > 0) {
+            addChunk(prefix.toCharArray(), prefix.length(), false);
+        }
+    }
+
+    private static int encodingOf(Charset charset) {
+        String name = charset.name();
+        if (name.equals("UTF-8")) {
+            return UTF_8;
+        }
+        if (name.equals("UTF-16BE") || name.equals("UTF-16LE")) {
+            return UTF_16;
+        }
+        if (charset.canEncode() && charset.newEncoder().maxBytesPerChar() == 1f) {
+            return SINGLE_BYTE;
+        }
+        throw new IllegalArgumentException("Byte offsets are not supported for " + name);
+    }
+
+    /**
+     * Take the next tag in the input.  The parser calls this once for each 
+     * start and end element event, except for the end of an element written
+     * as an empty tag.
+     * @return the kind of tag; its offsets are then available from
+     *         <code>getTagStart()</code>, <code>getTagEnd()</code>, 
+     *         <code>getTagByteStart()</code> and <code>getTagByteEnd()</code>
+     * @throws IllegalStateException if no unclaimed tag has been read
+     */
+    byte nextTag() {
+        if (tagCount == 0) {
+            throw new IllegalStateException("Element events do not match input");
+        }
+        int i = tagHead;
+        tagHead = (tagHead + 1) % tagKinds.length;
+        tagCount--;
+        lastTagStart = tagStarts[i];
+        lastTagEnd = tagEnds[i];
+        lastTagByteStart = tagByteStarts[i];
+        lastTagByteEnd = tagByteEnds[i];
+        return tagKinds[i];
+    }
+
+    /**
+     * Get the character offset of the '&lt;' that began the last tag taken.
+     */
+    long getTagStart() {
+        return lastTagStart;
+    }
+
+    /**
+     * Get the character offset just past the '&gt;' that ended the last tag taken.
+     */
+    long getTagEnd() {
+        return lastTagEnd;
+    }
+
+    /**
+     * Get the offset in the underlying input of the '&lt;' that began the
+     * last tag taken.
+     */
+    long getTagByteStart() {
+        return lastTagByteStart;
+    }
+
+    /**
+     * Get the offset in the underlying input just past the '&gt;' that ended
+     * the last tag taken.
+     */
+    long getTagByteEnd() {
+        return lastTagByteEnd;
+    }
+
+    /**
+     * Return true if a character is part of the suffix, rather than the input.
+     */
+    boolean isSuffix(long charOffset) {
+        return charOffset >= suffixStart;
+    }
+
+    // Chunks are searched newest first, so an offset on the boundary between
+    // two chunks is found at the start of the later one.
+    private Chunk findChunk(long charOffset) {
+        Iterator<Chunk> it = chunks.descendingIterator();
+        while (it.hasNext()) {
+            Chunk chunk = it.next();
+            if (charOffset >= chunk.charStart && charOffset <= chunk.charStart + chunk.length) {
+                return chunk;
+            }
+        }
+        throw new IllegalArgumentException("Offset " + charOffset + " is not available");
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int total = 0;
+        while (total < len) {
+            if (readOffset == nextCharOffset && decodeChunk() == null) {
+                break;
+            }
+            Chunk chunk = findChunk(readOffset);
+            int start = (int)(readOffset - chunk.charStart);
+            int n = Math.min(len - total, chunk.length - start);
+            System.arraycopy(chunk.chars, start, cbuf, off + total, n);
+            readOffset += n;
+            total += n;
+            while (chunks.size() > 1 && chunks.getFirst().charStart + chunks.getFirst().length <= readOffset) {
+                chunks.removeFirst();
+            }
+        }
+        return (total == 0) ? -1 : total;
+    }
+
+    private Chunk decodeChunk() throws IOException {
+        if (eof) {
+            return null;
+        }
+        CharBuffer out = CharBuffer.allocate(CHUNK_SIZE);
+        while (out.position() == 0 && !eof) {
+            CoderResult result = decoder.decode(in, out, inputDone);
+            if (result.isError()) {
+                throwCodingError(result);
+            }
+            if (result.isUnderflow()) {
+                if (inputDone) {
+                    result = decoder.flush(out);
+                    if (result.isError()) {
+                        throwCodingError(result);
+                    }
+                    eof = true;
+                }
+                else {
+                    inputDone = fill();
+                }
+            }
+        }
+        Chunk chunk = null;
+        if (out.position() > 0) {
+            chunk = addChunk(out.array(), out.position(), true);
+        }
+        if (eof && suffix != null && suffix.length() > 0) {
+            suffixStart = nextCharOffset;
+            Chunk suffixChunk = addChunk(suffix.toCharArray(), suffix.length(), false);
+            if (chunk == null) {
+                chunk = suffixChunk;
+            }
+        }
+        return chunk;
+    }
+
+    /**
+     * Read more bytes from the channel into the input buffer.
+     * @return true if the end of the input has been reached
+     */
+    private boolean fill() throws IOException {
+        retainBytes();
+        in.compact();
+        int n = channel.read(in);
+        in.flip();
+        return n == -1;
+    }
+
+    /**
+     * Move the bytes that have been decoded from the input buffer to the
+     * retained chunks, before they are removed from it.
+     */
+    private void retainBytes() {
+        int n = in.position();
+        if (n == 0) {
+            return;
+        }
+        if (!retainBytes && pinCount == 0) {
+            bufferStart += n;
+            return;
+        }
+        ByteChunk chunk = new ByteChunk();
+        chunk.byteStart = bufferStart;
+        chunk.bytes = new byte[n];
+        ByteBuffer consumed = in.duplicate();
+        consumed.flip();
+        consumed.get(chunk.bytes);
+        byteChunks.addLast(chunk);
+        retainedBytes += n;
+        bufferStart += n;
+        // Bytes of tags that the parser hasn't taken yet, including one that
+        // is still being scanned, may be pinned when it takes them
+        long pinnedFrom = (pinCount > 0) ? pins[0] : Long.MAX_VALUE;
+        if (tagCount > 0) {
+            pinnedFrom = Math.min(pinnedFrom, tagByteStarts[tagHead]);
+        }
+        if (scanState != TEXT) {
+            pinnedFrom = Math.min(pinnedFrom, tagByteStart);
+        }
+        while (byteChunks.size() > 1 && retainedBytes - byteChunks.getFirst().bytes.length >= RETAIN_SIZE
+                && byteChunks.getFirst().byteEnd() <= pinnedFrom) {
+            retainedBytes -= byteChunks.removeFirst().bytes.length;
+        }
+    }
+
+    /**
+     * Set whether decoded bytes are kept so that they can be sliced later.
+     * This must be set before reading if the bytes of tags will be pinned,
+     * since a tag may already have been decoded when it is taken.
+     * @param retainBytes true to keep recent bytes and those of untaken tags
+     */
+    void setRetainBytes(boolean retainBytes) {
+        this.retainBytes = retainBytes;
+    }
+
+    /**
+     * Keep every byte from an offset onwards until it is unpinned.  Pins
+     * are nested: each call to <code>unpin()</code> releases the most 
+     * recent pin.
+     * @param byteOffset offset of the first byte to keep
+     */
+    void pin(long byteOffset) {
+        if (pinCount == pins.length) {
+            pins = Arrays.copyOf(pins, pinCount * 2);
+        }
+        pins[pinCount++] = byteOffset;
+    }
+
+    void unpin() {
+        pinCount--;
+    }
+
+    /**
+     * Return bytes of the input that have already been decoded.  If they are
+     * all still in the input buffer, the result is a view of it, which is 
+     * only valid until more input is read; otherwise they are copied.
+     * @param start offset of the first byte
+     * @param end offset just past the last byte
+     * @return read-only buffer holding the bytes
+     * @throws IllegalArgumentException if the bytes are no longer available
+     */
+    ByteBuffer slice(long start, long end) {
+        if (start >= bufferStart) {
+            ByteBuffer b = in.duplicate();
+            b.limit((int)(end - bufferStart));
+            b.position((int)(start - bufferStart));
+            return b.slice().asReadOnlyBuffer();
+        }
+        if (byteChunks.isEmpty() || start < byteChunks.getFirst().byteStart) {
+            throw new IllegalArgumentException("Bytes from offset " + start + " are not available");
+        }
+        byte[] bytes = new byte[(int)(end - start)];
+        for (ByteChunk chunk : byteChunks) {
+            long from = Math.max(start, chunk.byteStart), to = Math.min(end, chunk.byteEnd());
+            if (from < to) {
+                System.arraycopy(chunk.bytes, (int)(from - chunk.byteStart), 
+                                 bytes, (int)(from - start), (int)(to - from));
+            }
+        }
+        if (end > bufferStart) {
+            ByteBuffer b = in.duplicate();
+            b.position(0);
+            b.get(bytes, (int)(bufferStart - start), (int)(end - bufferStart));
+        }
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    private void throwCodingError(CoderResult result) throws IOException {
+        try {
+            result.throwException();
+        }
+        catch (CharacterCodingException e) {
+            throw new IOException("Invalid input near byte offset " + nextByteOffset, e);
+        }
+    }
+
+    private Chunk addChunk(char[] chars, int length, boolean hasBytes) {
+        Chunk chunk = new Chunk();
+        chunk.chars = chars;
+        chunk.length = length;
+        chunk.charStart = nextCharOffset;
+        chunk.byteStart = nextByteOffset;
+        chunk.byteOffsets = new int[length + 1];
+        int bytes = 0;
+        for (int i = 0; i < length; i++) {
+            chunk.byteOffsets[i] = bytes;
+            if (hasBytes) {
+                bytes += encodedLength(chars[i]);
+            }
+        }
+        chunk.byteOffsets[length] = bytes;
+        scan(chunk);
+        nextCharOffset += length;
+        nextByteOffset += bytes;
+        chunks.addLast(chunk);
+        return chunk;
+    }
+
+    /**
+     * Run the tag scanner over a newly decoded chunk.
+     */
+    private void scan(Chunk chunk) {
+        char[] chars = chunk.chars;
+        long offset = chunk.charStart;
+        for (int i = 0; i < chunk.length; i++) {
+            char c = chars[i];
+            switch (scanState) {
+            case TEXT:
+                if (c == '<') {
+                    tagStart = offset + i;
+                    tagByteStart = chunk.byteStart + chunk.byteOffsets[i];
+                    scanState = TAG_OPEN;
+                }
+                break;
+            case TAG_OPEN:
+                scanState = (c == '/') ? IN_END : (c == '?') ? PI : (c == '!') ? BANG : IN_START;
+                break;
+            case IN_START:
+                if (quote != 0) {
+                    if (c == quote) {
+                        quote = 0;
+                    }
+                }
+                else if (c == '"' || c == '\'') {
+                    quote = c;
+                }
+                else if (c == '>') {
+                    addTag(prev1 == '/' ? EMPTY_TAG : START_TAG, offset + i + 1,
+                           chunk.byteStart + chunk.byteOffsets[i + 1]);
+                }
+                break;
+            case IN_END:
+                if (c == '>') {
+                    addTag(END_TAG, offset + i + 1, chunk.byteStart + chunk.byteOffsets[i + 1]);
+                }
+                break;
+            case BANG:
+                scanState = (c == '-') ? BANG_DASH : (c == '[') ? CDATA : DOCTYPE;
+                if (scanState == DOCTYPE) {
+                    doctypeDepth = (c == '[') ? 1 : 0;
+                }
+                break;
+            case BANG_DASH:
+                scanState = COMMENT;
+                c = 0; // so that "<!-->" isn't taken as a complete comment
+                break;
+            case COMMENT:
+                if (c == '>' && prev1 == '-' && prev2 == '-') {
+                    scanState = TEXT;
+                }
+                break;
+            case CDATA:
+                if (c == '>' && prev1 == ']' && prev2 == ']') {
+                    scanState = TEXT;
+                }
+                break;
+            case PI:
+                if (c == '>' && prev1 == '?') {
+                    scanState = TEXT;
+                }
+                break;
+            case DOCTYPE:
+                if (quote != 0) {
+                    if (c == quote) {
+                        quote = 0;
+                    }
+                }
+                else if (c == '"' || c == '\'') {
+                    quote = c;
+                }
+                else if (c == '[') {
+                    doctypeDepth++;
+                }
+                else if (c == ']') {
+                    doctypeDepth--;
+                }
+                else if (c == '>' && doctypeDepth == 0) {
+                    scanState = TEXT;
+                }
+                break;
+            }
+            prev2 = prev1;
+            prev1 = c;
+        }
+    }
+
+    private void addTag(byte kind, long end, long byteEnd) {
+        if (tagCount == tagKinds.length) {
+            int n = tagKinds.length;
+            long[] starts = new long[n * 2];
+            long[] ends = new long[n * 2];
+            long[] byteStarts = new long[n * 2];
+            long[] byteEnds = new long[n * 2];
+            byte[] kinds = new byte[n * 2];
+            for (int i = 0; i < n; i++) {
+                int j = (tagHead + i) % n;
+                starts[i] = tagStarts[j];
+                ends[i] = tagEnds[j];
+                byteStarts[i] = tagByteStarts[j];
+                byteEnds[i] = tagByteEnds[j];
+                kinds[i] = tagKinds[j];
+            }
+            tagStarts = starts;
+            tagEnds = ends;
+            tagByteStarts = byteStarts;
+            tagByteEnds = byteEnds;
+            tagKinds = kinds;
+            tagHead = 0;
+        }
+        int i = (tagHead + tagCount) % tagKinds.length;
+        tagStarts[i] = tagStart;
+        tagEnds[i] = end;
+        tagByteStarts[i] = tagByteStart;
+        tagByteEnds[i] = byteEnd;
+        tagKinds[i] = kind;
+        tagCount++;
+        scanState = TEXT;
+    }
+
+    private int encodedLength(char c) {
+        switch (encoding) {
+        case UTF_8:
+            if (c < 0x80) {
+                return 1;
+            }
+            if (c < 0x800) {
+                return 2;
+            }
+            if (Character.isHighSurrogate(c)) {
+                return 4;
+            }
+            if (Character.isLowSurrogate(c)) {
+                return 0;
+            }
+            return 3;
+        case UTF_16:
+            return 2;
+        default:
+            return 1;
+        }
+    }
+
+    /**
+     * Does nothing; the underlying input belongs to the caller.
+     */
+    @Override
+    public void close() throws IOException {
+    }
+
+    private static class Chunk {
+        char[] chars;
+        int length;
+        long charStart;
+        long byteStart;
+        // byte offset of each character relative to byteStart, plus one
+        // entry for the end of the chunk
+        int[] byteOffsets;
+    }
+
+    private static class ByteChunk {
+        long byteStart;
+        byte[] bytes;
+
+        long byteEnd() {
+            return byteStart + bytes.length;
+        }
+    }
+}
@@ -0,0 +1,570 @@
+package net.sundell.snax;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * A stream reader that replays the events recorded in an {@link EventCache}.
+ * Text is returned from the cache's arena without copying, through
+ * <code>getTextCharacters()</code>.
+ */
+class CachedStreamReader implements XMLStreamReader {
+
+    private EventCache cache;
+    private int pos = 0;
+    // Offset in the arena of the next text that was recorded in sequence
+    private int arenaPos = 0;
+    private int eventType = START_DOCUMENT;
+    private int line = 0;
+
+    private String encoding, version;
+    private int standalone;
+
+    // The current element, and the names of those enclosing it
+    private QName[] elementNames = new QName[32];
+    private int depth = 0;
+    private boolean popPending = false;
+    // Namespace declarations in scope, and how many each element declared
+    private String[] nsPrefixes = new String[16];
+    private String[] nsURIs = new String[16];
+    private int nsTotal = 0;
+    private int[] nsCounts = new int[32];
+
+    private int attributeCount;
+    private QName[] attrNames = new QName[8];
+    private int[] attrOffsets = new int[8];
+    private int[] attrLengths = new int[8];
+
+    private int textOffset, textLength;
+    private String piTarget, entityName;
+
+    private final Location location = new Location() {
+        @Override
+        public int getLineNumber() {
+            return line;
+        }
+        @Override
+        public int getColumnNumber() {
+            return -1;
+        }
+        @Override
+        public int getCharacterOffset() {
+            return -1;
+        }
+        @Override
+        public String getPublicId() {
+            return null;
+        }
+        @Override
+        public String getSystemId() {
+            return null;
+        }
+    };
+
+    CachedStreamReader(EventCache cache) {
+        this.cache = cache;
+        if (cache.events[pos++] != EventCache.START_DOCUMENT) {
+            throw new IllegalStateException("Corrupt event cache");
+        }
+        encoding = optionalString();
+        version = optionalString();
+        standalone = readVarint();
+    }
+
+    @Override
+    public int next() throws XMLStreamException {
+        if (eventType == END_DOCUMENT) {
+            throw new NoSuchElementException();
+        }
+        if (popPending) {
+            nsTotal -= nsCounts[--depth];
+            popPending = false;
+        }
+        byte op = cache.events[pos++];
+        switch (op) {
+        case EventCache.START_ELEMENT:
+            eventType = START_ELEMENT;
+            line += readVarint();
+            if (depth == elementNames.length) {
+                elementNames = Arrays.copyOf(elementNames, depth * 2);
+                nsCounts = Arrays.copyOf(nsCounts, depth * 2);
+            }
+            elementNames[depth] = cache.names[readVarint()];
+            int nsCount = readVarint();
+            if (nsTotal + nsCount > nsPrefixes.length) {
+                int size = Math.max(nsPrefixes.length * 2, nsTotal + nsCount);
+                nsPrefixes = Arrays.copyOf(nsPrefixes, size);
+                nsURIs = Arrays.copyOf(nsURIs, size);
+            }
+            for (int i = 0; i < nsCount; i++) {
+                nsPrefixes[nsTotal] = cache.strings[readVarint()];
+                nsURIs[nsTotal++] = cache.strings[readVarint()];
+            }
+            nsCounts[depth++] = nsCount;
+            attributeCount = readVarint();
+            if (attributeCount > attrNames.length) {
+                int size = Math.max(attrNames.length * 2, attributeCount);
+                attrNames = Arrays.copyOf(attrNames, size);
+                attrOffsets = Arrays.copyOf(attrOffsets, size);
+                attrLengths = Arrays.copyOf(attrLengths, size);
+            }
+            for (int i = 0; i < attributeCount; i++) {
+                attrNames[i] = cache.names[readVarint()];
+                readText();
+                attrOffsets[i] = textOffset;
+                attrLengths[i] = textLength;
+            }
+            break;
+        case EventCache.END_ELEMENT:
+            eventType = END_ELEMENT;
+            // The element's namespaces stay in scope until the next event
+            popPending = true;
+            break;
+        case EventCache.CHARACTERS:
+            eventType = CHARACTERS;
+            readText();
+            break;
+        case EventCache.CDATA:
+            eventType = CDATA;
+            readText();
+            break;
+        case EventCache.SPACE:
+            eventType = SPACE;
+            readText();
+            break;
+        case EventCache.COMMENT:
+            eventType = COMMENT;
+            readText();
+            break;
+        case EventCache.PROCESSING_INSTRUCTION:
+            eventType = PROCESSING_INSTRUCTION;
+            piTarget = cache.strings[readVarint()];
+            readText();
+            break;
+        case EventCache.DTD:
+            eventType = DTD;
+            readText();
+            break;
+        case EventCache.ENTITY_REFERENCE:
+            eventType = ENTITY_REFERENCE;
+            entityName = cache.strings[readVarint()];
+            readText();
+            break;
+        case EventCache.END_DOCUMENT:
+            eventType = END_DOCUMENT;
+            break;
+        default:
+            throw new XMLStreamException("Corrupt event cache at " + (pos - 1));
+        }
+        return eventType;
+    }
+
+    private void readText() {
+        int n = readVarint();
+        textLength = n >>> 1;
+        if ((n & 1) == 0) {
+            textOffset = arenaPos;
+            arenaPos += textLength;
+        }
+        else {
+            textOffset = readVarint();
+        }
+    }
+
+    private String optionalString() {
+        int i = readVarint();
+        return (i == 0) ? null : cache.strings[i - 1];
+    }
+
+    private int readVarint() {
+        byte[] events = cache.events;
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = events[pos++];
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return eventType != END_DOCUMENT;
+    }
+
+    @Override
+    public int getEventType() {
+        return eventType;
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        // Event readers built on this one ask for the standard options
+        if (XMLInputFactory.IS_NAMESPACE_AWARE.equals(name)) {
+            return Boolean.TRUE;
+        }
+        if (XMLInputFactory.IS_COALESCING.equals(name) ||
+                XMLInputFactory.IS_VALIDATING.equals(name) ||
+                XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES.equals(name) ||
+                XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES.equals(name) ||
+                XMLInputFactory.SUPPORT_DTD.equals(name)) {
+            return Boolean.FALSE;
+        }
+        return null;
+    }
+
+    @Override
+    public void require(int type, String namespaceURI, String localName) throws XMLStreamException {
+        if (type != eventType ||
+                (namespaceURI != null && !namespaceURI.equals(getNamespaceURI())) ||
+                (localName != null && !localName.equals(getLocalName()))) {
+            throw new XMLStreamException("Unexpected event " + eventType, location);
+        }
+    }
+
+    @Override
+    public String getElementText() throws XMLStreamException {
+        if (eventType != START_ELEMENT) {
+            throw new XMLStreamException("Not at the start of an element", location);
+        }
+        StringBuilder sb = new StringBuilder();
+        while (next() != END_ELEMENT) {
+            switch (eventType) {
+            case CHARACTERS:
+            case CDATA:
+            case SPACE:
+            case ENTITY_REFERENCE:
+                sb.append(cache.arena, textOffset, textLength);
+                break;
+            case COMMENT:
+            case PROCESSING_INSTRUCTION:
+                break;
+            default:
+                throw new XMLStreamException("Element text contains markup", location);
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public int nextTag() throws XMLStreamException {
+        while (true) {
+            next();
+            switch (eventType) {
+            case START_ELEMENT:
+            case END_ELEMENT:
+                return eventType;
+            case CHARACTERS:
+            case CDATA:
+                if (!isWhiteSpace()) {
+                    throw new XMLStreamException("Text where a tag was expected", location);
+                }
+                break;
+            case SPACE:
+            case COMMENT:
+            case PROCESSING_INSTRUCTION:
+                break;
+            default:
+                throw new XMLStreamException("Unexpected event " + eventType, location);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getNamespaceURI(String prefix) {
+        for (int i = nsTotal - 1; i >= 0; i--) {
+            if (nsPrefixes[i].equals(prefix)) {
+                return nsURIs[i];
+            }
+        }
+        if (XMLConstants.XML_NS_PREFIX.equals(prefix)) {
+            return XMLConstants.XML_NS_URI;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isStartElement() {
+        return eventType == START_ELEMENT;
+    }
+
+    @Override
+    public boolean isEndElement() {
+        return eventType == END_ELEMENT;
+    }
+
+    @Override
+    public boolean isCharacters() {
+        return eventType == CHARACTERS;
+    }
+
+    @Override
+    public boolean isWhiteSpace() {
+        if (!hasText()) {
+            return false;
+        }
+        for (int i = 0; i < textLength; i++) {
+            char c = cache.arena[textOffset + i];
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void requireStart() {
+        if (eventType != START_ELEMENT) {
+            throw new IllegalStateException("Not at the start of an element");
+        }
+    }
+
+    @Override
+    public String getAttributeValue(String namespaceURI, String localName) {
+        requireStart();
+        for (int i = 0; i < attributeCount; i++) {
+            if (attrNames[i].getLocalPart().equals(localName) &&
+                    (namespaceURI == null || attrNames[i].getNamespaceURI().equals(namespaceURI))) {
+                return getAttributeValue(i);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public int getAttributeCount() {
+        requireStart();
+        return attributeCount;
+    }
+
+    @Override
+    public QName getAttributeName(int index) {
+        requireStart();
+        return attrNames[index];
+    }
+
+    @Override
+    public String getAttributeNamespace(int index) {
+        return getAttributeName(index).getNamespaceURI();
+    }
+
+    @Override
+    public String getAttributeLocalName(int index) {
+        return getAttributeName(index).getLocalPart();
+    }
+
+    @Override
+    public String getAttributePrefix(int index) {
+        return getAttributeName(index).getPrefix();
+    }
+
+    @Override
+    public String getAttributeType(int index) {
+        requireStart();
+        return "CDATA";
+    }
+
+    @Override
+    public String getAttributeValue(int index) {
+        requireStart();
+        return new String(cache.arena, attrOffsets[index], attrLengths[index]);
+    }
+
+    @Override
+    public boolean isAttributeSpecified(int index) {
+        requireStart();
+        return true;
+    }
+
+    @Override
+    public int getNamespaceCount() {
+        if (eventType != START_ELEMENT && eventType != END_ELEMENT) {
+            throw new IllegalStateException("Not at an element");
+        }
+        return nsCounts[depth - 1];
+    }
+
+    @Override
+    public String getNamespacePrefix(int index) {
+        return nsPrefixes[nsTotal - getNamespaceCount() + index];
+    }
+
+    @Override
+    public String getNamespaceURI(int index) {
+        return nsURIs[nsTotal - getNamespaceCount() + index];
+    }
+
+    @Override
+    public NamespaceContext getNamespaceContext() {
+        // A copy, as the reader's own bindings change as it moves on
+        final String[] prefixes = Arrays.copyOf(nsPrefixes, nsTotal);
+        final String[] uris = Arrays.copyOf(nsURIs, nsTotal);
+        return new NamespaceContext() {
+            @Override
+            public String getNamespaceURI(String prefix) {
+                for (int i = prefixes.length - 1; i >= 0; i--) {
+                    if (prefixes[i].equals(prefix)) {
+                        return uris[i];
+                    }
+                }
+                return XMLConstants.XML_NS_PREFIX.equals(prefix) ? XMLConstants.XML_NS_URI : null;
+            }
+            @Override
+            public String getPrefix(String namespaceURI) {
+                Iterator<String> it = getPrefixes(namespaceURI);
+                return it.hasNext() ? it.next() : null;
+            }
+            @Override
+            public Iterator<String> getPrefixes(String namespaceURI) {
+                List<String> l = new ArrayList<String>();
+                for (int i = prefixes.length - 1; i >= 0; i--) {
+                    if (uris[i].equals(namespaceURI) && !l.contains(prefixes[i]) &&
+                            namespaceURI.equals(getNamespaceURI(prefixes[i]))) {
+                        l.add(prefixes[i]);
+                    }
+                }
+                return l.iterator();
+            }
+        };
+    }
+
+    @Override
+    public String getText() {
+        if (!hasText()) {
+            throw new IllegalStateException("Event has no text");
+        }
+        return new String(cache.arena, textOffset, textLength);
+    }
+
+    @Override
+    public char[] getTextCharacters() {
+        if (!hasText()) {
+            throw new IllegalStateException("Event has no text");
+        }
+        return cache.arena;
+    }
+
+    @Override
+    public int getTextCharacters(int sourceStart, char[] target, int targetStart, int length) {
+        int n = Math.max(0, Math.min(length, textLength - sourceStart));
+        System.arraycopy(getTextCharacters(), textOffset + sourceStart, target, targetStart, n);
+        return n;
+    }
+
+    @Override
+    public int getTextStart() {
+        return textOffset;
+    }
+
+    @Override
+    public int getTextLength() {
+        return textLength;
+    }
+
+    @Override
+    public String getEncoding() {
+        return encoding;
+    }
+
+    @Override
+    public boolean hasText() {
+        switch (eventType) {
+        case CHARACTERS:
+        case CDATA:
+        case SPACE:
+        case COMMENT:
+        case DTD:
+        case ENTITY_REFERENCE:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    @Override
+    public Location getLocation() {
+        return location;
+    }
+
+    @Override
+    public QName getName() {
+        if (eventType != START_ELEMENT && eventType != END_ELEMENT) {
+            throw new IllegalStateException("Not at an element");
+        }
+        return elementNames[depth - 1];
+    }
+
+    @Override
+    public String getLocalName() {
+        if (eventType == ENTITY_REFERENCE) {
+            return entityName;
+        }
+        return getName().getLocalPart();
+    }
+
+    @Override
+    public boolean hasName() {
+        return eventType == START_ELEMENT || eventType == END_ELEMENT;
+    }
+
+    @Override
+    public String getNamespaceURI() {
+        if (!hasName()) {
+            return null;
+        }
+        String uri = getName().getNamespaceURI();
+        return (uri.length() == 0) ? null : uri;
+    }
+
+    @Override
+    public String getPrefix() {
+        return hasName() ? getName().getPrefix() : null;
+    }
+
+    @Override
+    public String getVersion() {
+        return version;
+    }
+
+    @Override
+    public boolean isStandalone() {
+        return standalone == 2;
+    }
+
+    @Override
+    public boolean standaloneSet() {
+        return standalone != 0;
+    }
+
+    @Override
+    public String getCharacterEncodingScheme() {
+        return encoding;
+    }
+
+    @Override
+    public String getPITarget() {
+        return (eventType == PROCESSING_INSTRUCTION) ? piTarget : null;
+    }
+
+    @Override
+    public String getPIData() {
+        return (eventType == PROCESSING_INSTRUCTION) ?
+                new String(cache.arena, textOffset, textLength) : null;
+    }
+}
@@ -0,0 +1,202 @@
+package net.sundell.snax;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+
+/**
+ * A point in a document from which parsing can be resumed.  A checkpoint
+ * records the byte offset of the point, the elements that are open there, the
+ * model state of each open element, any <code>only()</code> and sampling
+ * counts, and the positions counted so far within each open element, which
+ * is enough to continue parsing without reading anything that precedes it.
+ * <p>
+ * Checkpoints are produced by a {@link SNAXParser} with a registered
+ * {@link CheckpointListener} and consumed by
+ * {@link SNAXParser#resume(java.nio.channels.FileChannel, java.nio.charset.Charset, Checkpoint, Object)}.
+ * They may be serialized, but are only meaningful for the model that produced
+ * them, or one built the same way from the same selectors.  (States of a 
+ * lazily built model are numbered as they are built, so its checkpoints can
+ * only be used with the same model instance.)
+ */
+public class Checkpoint implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private long byteOffset;
+    private List<Frame> frames;
+    private Map<Integer, Integer> onlyCounts;
+    // Position counts by state id, keyed by depth, where depth 0 is outside
+    // the document element
+    private Map<Integer, Map<Integer, Integer>> positions;
+    // Number of elements that have entered each state with sampling, which
+    // for random sampling is also the number of values drawn
+    private Map<Integer, Integer> sampleCounts;
+
+    Checkpoint(long byteOffset, List<Frame> frames, Map<Integer, Integer> onlyCounts,
+               Map<Integer, Map<Integer, Integer>> positions, Map<Integer, Integer> sampleCounts) {
+        this.byteOffset = byteOffset;
+        this.frames = frames;
+        this.onlyCounts = onlyCounts;
+        this.positions = positions;
+        this.sampleCounts = sampleCounts;
+    }
+
+    /**
+     * Get the offset of this checkpoint in the input, in bytes.
+     * @return offset
+     */
+    public long getByteOffset() {
+        return byteOffset;
+    }
+
+    /**
+     * Get the names of the elements that are open at this checkpoint,
+     * starting with the document element.
+     * @return open element names
+     */
+    public List<QName> getElementStack() {
+        List<QName> names = new ArrayList<QName>(frames.size());
+        for (Frame frame : frames) {
+            names.add(frame.name);
+        }
+        return names;
+    }
+
+    List<Frame> getFrames() {
+        return frames;
+    }
+
+    Map<Integer, Integer> getOnlyCounts() {
+        return onlyCounts;
+    }
+
+    Map<Integer, Map<Integer, Integer>> getPositions() {
+        return (positions != null) ? positions : 
+                Collections.<Integer, Map<Integer, Integer>>emptyMap();
+    }
+
+    Map<Integer, Integer> getSampleCounts() {
+        return (sampleCounts != null) ? sampleCounts : Collections.<Integer, Integer>emptyMap();
+    }
+
+    /**
+     * Return start tags that reproduce the open elements, including their
+     * attributes and namespace declarations.
+     */
+    static String openTags(List<Frame> frames) {
+        StringBuilder sb = new StringBuilder();
+        for (Frame frame : frames) {
+            sb.append('<').append(qualifiedName(frame.name));
+            for (Map.Entry<String, String> ns : frame.namespaces.entrySet()) {
+                sb.append(" xmlns");
+                if (ns.getKey().length() > 0) {
+                    sb.append(':').append(ns.getKey());
+                }
+                sb.append("=\"");
+                escape(sb, ns.getValue());
+                sb.append('"');
+            }
+            for (Map.Entry<QName, String> attr : frame.attributes.entrySet()) {
+                sb.append(' ').append(qualifiedName(attr.getKey())).append("=\"");
+                escape(sb, attr.getValue());
+                sb.append('"');
+            }
+            sb.append('>');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Return end tags that close the open elements.
+     */
+    static String closeTags(List<Frame> frames) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = frames.size() - 1; i >= 0; i--) {
+            sb.append("</").append(qualifiedName(frames.get(i).name)).append('>');
+        }
+        return sb.toString();
+    }
+
+    private static String qualifiedName(QName name) {
+        String prefix = name.getPrefix();
+        return (prefix.length() > 0) ? prefix + ":" + name.getLocalPart() : name.getLocalPart();
+    }
+
+    private static void escape(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '&': sb.append("&amp;"); break;
+            case '<': sb.append("&lt;"); break;
+            case '"': sb.append("&quot;"); break;
+            case '\t': sb.append("&#9;"); break;
+            case '\n': sb.append("&#10;"); break;
+            case '\r': sb.append("&#13;"); break;
+            default: sb.append(c);
+            }
+        }
+    }
+
+    /**
+     * An open element.
+     */
+    static class Frame implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        QName name;
+        Map<String, String> namespaces = new LinkedHashMap<String, String>();
+        Map<QName, String> attributes = new LinkedHashMap<QName, String>();
+        int stateId;
+
+        Frame(QName name, int stateId) {
+            this.name = name;
+            this.stateId = stateId;
+        }
+
+        Frame(StartElement element, int stateId) {
+            this(element.getName(), stateId);
+            for (Iterator<?> it = element.getNamespaces(); it.hasNext(); ) {
+                Namespace ns = (Namespace)it.next();
+                namespaces.put(ns.getPrefix(), ns.getNamespaceURI());
+            }
+            for (Iterator<?> it = element.getAttributes(); it.hasNext(); ) {
+                Attribute attr = (Attribute)it.next();
+                attributes.put(attr.getName(), attr.getValue());
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (!(o instanceof Frame)) {
+                return false;
+            }
+            Frame f = (Frame)o;
+            return stateId == f.stateId && name.equals(f.name) &&
+                   name.getPrefix().equals(f.name.getPrefix()) &&
+                   namespaces.equals(f.namespaces) && attributes.equals(f.attributes);
+        }
+
+        @Override
+        public int hashCode() {
+            return ((name.hashCode() * 31 + stateId) * 31 + namespaces.hashCode()) * 31 + 
+                   attributes.hashCode();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Checkpoint[" + byteOffset + ", " + getElementStack() + "]";
+    }
+}
@@ -0,0 +1,19 @@
+package net.sundell.snax;
+
+/**
+ * Receives {@link Checkpoint}s from a parser as it passes through a document.
+ * 
+ * @param <T> Data object type that will be passed to parse calls
+ * @see SNAXParser#setCheckpointListener(CheckpointListener, long)
+ */
+public interface CheckpointListener<T> {
+
+    /**
+     * Called when the parser reaches a point from which parsing could be
+     * resumed.  Any state held in the data object that will be needed to 
+     * resume should be saved along with the checkpoint.
+     * @param checkpoint checkpoint
+     * @param data parser data object
+     */
+    public void checkpoint(Checkpoint checkpoint, T data);
+}
@@ -8,6 +8,7 @@ import java.util.List;
  */
 public class ChildSelector<T> extends ElementSelector<T> {
     private int onlyValue = Integer.MAX_VALUE;
+    private int positionFrom = 1, positionTo = Integer.MAX_VALUE;
 
     ChildSelector(NodeModelBuilder<T> context, ElementSelector<T> parent, 
                     List<ElementConstraint> constraints) {
@@ -39,18 +40,74 @@ public class ChildSelector<T> extends ElementSelector<T> {
         this.onlyValue = only;
         return this;
     }
+
+    @Override
+    public ChildSelector<T> sample(int interval) {
+        super.sample(interval);
+        return this;
+    }
+
+    @Override
+    public ChildSelector<T> sample(double fraction, long seed) {
+        super.sample(fraction, seed);
+        return this;
+    }
+
+    /**
+     * Select only the nth child of each parent that matches this selector,
+     * counting from 1.  Other matching children are treated as though they
+     * did not match.
+     * @param n position
+     * @return updated selector
+     */
+    public ChildSelector<T> nth(int n) {
+        return range(n, n);
+    }
+
+    /**
+     * Select only the first <code>n</code> children of each parent that match
+     * this selector.  Later matching children are treated as though they 
+     * did not match.
+     * @param n number of children
+     * @return updated selector
+     */
+    public ChildSelector<T> first(int n) {
+        return range(1, n);
+    }
+
+    /**
+     * Select only the children of each parent that match this selector and
+     * whose position among them, counting from 1, is between <code>from</code>
+     * and <code>to</code> inclusive.  Other matching children are treated as
+     * though they did not match.  Unlike <code>only()</code>, positions are 
+     * counted separately within each parent element.
+     * @param from first position
+     * @param to last position
+     * @return updated selector
+     */
+    public ChildSelector<T> range(int from, int to) {
+        if (from < 1 || to < from) {
+            throw new IllegalArgumentException("Invalid position range: " + from + "-" + to);
+        }
+        this.positionFrom = from;
+        this.positionTo = to;
+        return this;
+    }
     
     @Override
     NodeState<T> buildState() {
         NodeState<T> state = super.buildState();
         state.setOnlyValue(onlyValue);
+        state.setPositions(positionFrom, positionTo);
         return state;
     }
 
     @Override
     public boolean equals(Object o) {
         return (o instanceof ChildSelector) && super.equals(o) &&
-                onlyValue == ((ChildSelector<?>)o).onlyValue;
+                onlyValue == ((ChildSelector<?>)o).onlyValue &&
+                positionFrom == ((ChildSelector<?>)o).positionFrom &&
+                positionTo == ((ChildSelector<?>)o).positionTo;
     }
     
     @Override
@@ -12,13 +12,8 @@ class CircularState<T> extends NodeState<T> {
     }
     
     NodeState<T> follow(StartElement element) {
-        assert (element != null);
-        for (NodeTransition<T> transition : getTransitions()) {
-            if (transition.getTest().matches(element)) {
-                return transition.getTarget();
-            }
-        }
-        return this;
+        NodeTransition<T> transition = findTransition(element);
+        return (transition != null) ? transition.getTarget() : this;
     }
 
     @Override
@@ -0,0 +1,198 @@
+package net.sundell.snax;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.events.StartElement;
+
+/**
+ * The descendant rules in scope at some point in a document, in priority
+ * order: rules from the innermost <code>descendant()</code> scope come first.
+ * <p>
+ * Rules that require a particular element name are indexed by that name, and a
+ * small Bloom filter over those names lets most elements that no rule could
+ * match be rejected without a lookup.  Where many rules for a name require
+ * different values of the same attribute, they are also indexed by that
+ * value (see {@link ValueIndex}).  The cost of finding a rule therefore
+ * does not depend on how deeply the scopes are nested or how many of them
+ * there are.
+ * <p>
+ * Sets are immutable.  Two sets are equal if they hold the same rules in
+ * the same order, which allows them to be cached by <code>NodeState</code>.
+ */
+class DescendantRuleSet<T> {
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static final DescendantRuleSet EMPTY =
+            new DescendantRuleSet<Object>(new NodeTransition[0]);
+
+    private NodeTransition<T>[] rules;
+    private Map<QName, NodeTransition<T>[]> namedRules;
+    private NodeTransition<T>[] unnamedRules;
+    private Map<QName, ValueIndex<T>> valueIndexes = Collections.emptyMap();
+    private long nameFilter;
+    private int hash;
+
+    @SuppressWarnings("unchecked")
+    static <T> DescendantRuleSet<T> empty() {
+        return EMPTY;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private DescendantRuleSet(NodeTransition<T>[] rules) {
+        this.rules = rules;
+        Map<QName, List<NodeTransition<T>>> byName = new HashMap<QName, List<NodeTransition<T>>>();
+        List<NodeTransition<T>> unnamed = new ArrayList<NodeTransition<T>>();
+        for (NodeTransition<T> rule : rules) {
+            QName name = rule.getElementName();
+            if (name == null) {
+                for (List<NodeTransition<T>> l : byName.values()) {
+                    l.add(rule);
+                }
+                unnamed.add(rule);
+            }
+            else {
+                List<NodeTransition<T>> l = byName.get(name);
+                if (l == null) {
+                    l = new ArrayList<NodeTransition<T>>(unnamed);
+                    byName.put(name, l);
+                    nameFilter |= filterBits(name);
+                }
+                l.add(rule);
+            }
+        }
+        namedRules = new HashMap<QName, NodeTransition<T>[]>(byName.size() * 2);
+        for (Map.Entry<QName, List<NodeTransition<T>>> e : byName.entrySet()) {
+            NodeTransition<T>[] named = e.getValue().toArray(new NodeTransition[e.getValue().size()]);
+            namedRules.put(e.getKey(), named);
+            ValueIndex<T> index = ValueIndex.create(named);
+            if (index != null) {
+                if (valueIndexes.isEmpty()) {
+                    valueIndexes = new HashMap<QName, ValueIndex<T>>();
+                }
+                valueIndexes.put(e.getKey(), index);
+            }
+        }
+        unnamedRules = unnamed.toArray(new NodeTransition[unnamed.size()]);
+        int h = 1;
+        for (NodeTransition<T> rule : rules) {
+            h = h * 31 + System.identityHashCode(rule);
+        }
+        hash = h;
+    }
+
+    private static long filterBits(QName name) {
+        int h = name.hashCode();
+        h ^= (h >>> 16);
+        return (1L << (h & 63)) | (1L << ((h >>> 6) & 63));
+    }
+
+    boolean isEmpty() {
+        return rules.length == 0;
+    }
+
+    /**
+     * Return a set containing the specified rules, followed by any rules from
+     * this set that are not among them.
+     * @param innerRules descendant rules of a newly entered state
+     * @return the combined set, which may be this set
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    DescendantRuleSet<T> inherit(List<NodeTransition<T>> innerRules) {
+        List<NodeTransition<T>> combined = new ArrayList<NodeTransition<T>>(innerRules);
+        for (NodeTransition<T> rule : rules) {
+            if (!containsRule(innerRules, rule)) {
+                combined.add(rule);
+            }
+        }
+        if (combined.size() == rules.length && combined.equals(Arrays.asList(rules))) {
+            return this;
+        }
+        return new DescendantRuleSet<T>(combined.toArray(new NodeTransition[combined.size()]));
+    }
+
+    private static <T> boolean containsRule(List<NodeTransition<T>> list, NodeTransition<T> rule) {
+        for (NodeTransition<T> t : list) {
+            if (t == rule) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find the highest-priority rule that matches an element.
+     * @param element
+     * @return the matching rule, or null
+     */
+    NodeTransition<T> find(StartElement element) {
+        return find(element, Collections.<NodeState<T>>emptyList());
+    }
+
+    /**
+     * Find the highest-priority rule that matches an element, ignoring rules
+     * that lead to any of the specified states.
+     * @param element
+     * @param excluded states whose rules are ignored
+     * @return the matching rule, or null
+     */
+    NodeTransition<T> find(StartElement element, Collection<NodeState<T>> excluded) {
+        if (rules.length == 0) {
+            return null;
+        }
+        QName name = element.getName();
+        NodeTransition<T>[] candidates = null;
+        long bits = filterBits(name);
+        if ((nameFilter & bits) == bits) {
+            ValueIndex<T> index = valueIndexes.isEmpty() ? null : valueIndexes.get(name);
+            candidates = (index != null) ? index.candidates(element) : namedRules.get(name);
+        }
+        if (candidates == null) {
+            candidates = unnamedRules;
+        }
+        for (int i = 0; i < candidates.length; i++) {
+            if (candidates[i].getTest().matches(element) && 
+                    !excluded.contains(candidates[i].getTarget())) {
+                return candidates[i];
+            }
+        }
+        return null;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof DescendantRuleSet)) {
+            return false;
+        }
+        DescendantRuleSet s = (DescendantRuleSet)o;
+        if (hash != s.hash || rules.length != s.rules.length) {
+            return false;
+        }
+        for (int i = 0; i < rules.length; i++) {
+            if (rules[i] != s.rules[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "DescendantRuleSet[" + rules.length + "]";
+    }
+}
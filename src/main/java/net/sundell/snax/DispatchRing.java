@@ -0,0 +1,143 @@
+package net.sundell.snax;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * A bounded single-producer, single-consumer queue of handler calls, used
+ * to pass the results of matching from the tokenizer thread to the handler
+ * thread in pipelined mode.  The slots are allocated up front and reused.
+ * <p>
+ * The producer fills in the slot at the tail and then advances the tail; the
+ * consumer reads the slot at the head and then advances the head.  Each
+ * index is only written by one thread, so ordered writes to the two
+ * counters are all the synchronization that is needed.
+ */
+class DispatchRing<T> {
+
+    /**
+     * A pending handler call.  The meaning of the fields depends on the type.
+     */
+    static class Slot<T> {
+        int type;
+        NodeState<T> state;
+        StartElement element;
+        XMLEvent event;
+        long startOffset, endOffset;
+        Object extra;
+
+        void clear() {
+            state = null;
+            element = null;
+            event = null;
+            extra = null;
+        }
+    }
+
+    // Spin briefly before yielding, and yield briefly before sleeping
+    private static final int SPINS = 100, YIELDS = 200;
+    private static final long PARK_NANOS = 50000;
+
+    private final Slot<T>[] slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private volatile boolean cancelled = false;
+    // The threads at each end, recorded when they first wait, so that
+    // cancel() can wake them
+    private volatile Thread producer, consumer;
+
+    /**
+     * @param size number of slots; must be a power of two
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    DispatchRing(int size) {
+        if (Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("Ring size must be a power of two");
+        }
+        slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot<T>();
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Wait for a free slot and return it.  The caller fills it in and then
+     * calls <code>publish()</code>.
+     * @throws CancellationException if the consumer has stopped
+     */
+    Slot<T> claim() {
+        long t = tail.get();
+        for (int i = 0; cancelled || t - head.get() == slots.length; i++) {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            if (i == 0) {
+                producer = Thread.currentThread();
+            }
+            backOff(i);
+        }
+        return slots[(int)t & mask];
+    }
+
+    void publish() {
+        tail.lazySet(tail.get() + 1);
+    }
+
+    /**
+     * Wait for the next filled slot and return it.  The caller must call
+     * <code>release()</code> once it is finished with the slot.
+     * @throws CancellationException if the ring has been cancelled
+     */
+    Slot<T> take() {
+        long h = head.get();
+        for (int i = 0; cancelled || tail.get() == h; i++) {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            if (i == 0) {
+                consumer = Thread.currentThread();
+            }
+            backOff(i);
+        }
+        return slots[(int)h & mask];
+    }
+
+    void release(Slot<T> slot) {
+        slot.clear();
+        head.lazySet(head.get() + 1);
+    }
+
+    /**
+     * Stop both ends of the ring.  A thread waiting in <code>claim()</code> 
+     * or <code>take()</code> is woken, and that call, like every later one,
+     * throws CancellationException.  Slots that have been published but not
+     * taken are abandoned rather than drained, so the ring can not be used
+     * again.
+     */
+    void cancel() {
+        cancelled = true;
+        for (Thread waiter : new Thread[] { producer, consumer }) {
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+
+    private static void backOff(int i) {
+        if (i < SPINS) {
+            return;
+        }
+        if (i < YIELDS) {
+            Thread.yield();
+        }
+        else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+    }
+}
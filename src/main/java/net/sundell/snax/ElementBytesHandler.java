@@ -0,0 +1,31 @@
+package net.sundell.snax;
+
+import java.nio.ByteBuffer;
+
+import javax.xml.stream.events.StartElement;
+
+/**
+ * An ElementHandler that is also given the original bytes of each selected
+ * element, from the start of its start tag to the end of its end tag, so 
+ * that they can be forwarded or hashed without serializing the element 
+ * again.  Bytes are only available when the parser is given byte input,
+ * and only for parses that cover the whole document.
+ * <p>
+ * Handlers will usually extend {@link DefaultElementHandler} and implement
+ * this interface as well.
+ */
+public interface ElementBytesHandler<T> extends ElementHandler<T> {
+
+    /**
+     * Called after a selected element has ended and been handled.  The 
+     * buffer is read-only, and is usually a view of the parser's own input 
+     * buffer or of a mapped file, so it is only valid during this call; 
+     * copy it to keep it.
+     * @param element selected element
+     * @param bytes the element's bytes, from the buffer's position to its limit
+     * @param startOffset byte offset of the start of the element in the input
+     * @param data parser data object
+     */
+    public void elementBytes(StartElement element, ByteBuffer bytes, long startOffset, T data)
+                throws SNAXUserException;
+}
@@ -30,6 +30,11 @@ class ElementEqualsConstraint implements ElementConstraint {
         ElementEqualsConstraint c = (ElementEqualsConstraint)o;
         return qname.equals(c.qname);
     }
+
+    @Override
+    public int hashCode() {
+        return qname.hashCode();
+    }
     
     @Override
     public String toString() {
@@ -0,0 +1,28 @@
+package net.sundell.snax;
+
+import java.util.List;
+
+import javax.xml.stream.events.StartElement;
+
+/**
+ * An ElementHandler that is also told where each selected element is
+ * located in the input.  Ranges are only reported when the parser is given 
+ * byte input, and only for parses that cover the whole document.
+ * <p>
+ * This is a class rather than an interface so that <code>elementRange()</code>,
+ * whose context is made of package-private frames, is not part of the 
+ * public API of subclasses such as {@link OffsetIndexBuilder}.
+ */
+abstract class ElementRangeHandler<T> extends DefaultElementHandler<T> {
+
+    /**
+     * Called after a selected element has ended and been handled.
+     * @param element selected element
+     * @param startOffset byte offset of the start of the element's start tag
+     * @param endOffset byte offset just past the end of its end tag
+     * @param context the element's ancestors, starting with the document element
+     * @param data parser data object
+     */
+    abstract void elementRange(StartElement element, long startOffset, long endOffset,
+                               List<Checkpoint.Frame> context, T data) throws SNAXUserException;
+}
@@ -0,0 +1,26 @@
+package net.sundell.snax;
+
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.StartElement;
+
+/**
+ * Writes the replacement for a selected element when a document is
+ * transformed.  The element and everything within it are left out of the
+ * output, and whatever the replacer writes takes their place.
+ *
+ * @see ElementSelector#replace(ElementReplacer)
+ * @see SNAXParser#transform(java.io.Reader, XMLEventWriter, Object)
+ */
+public interface ElementReplacer<T> {
+
+    /**
+     * Called at the start of a selected element.
+     * @param element selected element
+     * @param writer output of the transform
+     * @param data parser data object
+     * @throws XMLStreamException if the replacement cannot be written
+     */
+    public void replace(StartElement element, XMLEventWriter writer, T data)
+                throws XMLStreamException;
+}
@@ -3,6 +3,7 @@ package net.sundell.snax;
 import java.util.*;
 
 import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventWriter;
 import javax.xml.stream.events.StartElement;
 
 /**
@@ -16,6 +17,9 @@ public abstract class ElementSelector<T> extends Selectable<T> {
     private List<ElementConstraint> constraints = Collections.emptyList();
     private ElementSelector<T> parent = null;
     private NodeState<T> nodeState = null;
+    private int sampleInterval = 0;
+    private double sampleFraction = 1.0;
+    private long sampleSeed;
 
     ElementSelector(NodeModelBuilder<T> context, ElementSelector<T> parent) {
         this.context = context;
@@ -59,7 +63,72 @@ public abstract class ElementSelector<T> extends Selectable<T> {
         if (o == this) return true;
         if (!(o instanceof ElementSelector)) return false;
         ElementSelector e = (ElementSelector)o;
-        return constraints.equals(e.constraints);
+        return constraints.equals(e.constraints) && sampleInterval == e.sampleInterval &&
+                sampleFraction == e.sampleFraction && sampleSeed == e.sampleSeed;
+    }
+
+    @Override
+    public int hashCode() {
+        return constraints.hashCode();
+    }
+
+    /**
+     * Select only every nth element that matches this selector, starting
+     * with the first.  Counts are kept for each parse, across the whole 
+     * document, and carried over when a parse is resumed from a
+     * {@link Checkpoint}.  An element that is not sampled is treated as though this
+     * selector did not match it: nothing within it is selected by way of
+     * this selector, but descendant rules of other selectors still apply,
+     * and when nothing else can match there its events are consumed without
+     * dispatching anything.
+     * <p>
+     * Sampling must be set before anything is attached to the selector or
+     * selected through it.
+     * @param interval sampling interval
+     * @return updated selector
+     * @throws IllegalStateException if the selector is already in use
+     */
+    public ElementSelector<T> sample(int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("Sampling interval must be positive");
+        }
+        checkNotBuilt();
+        this.sampleInterval = interval;
+        this.sampleFraction = 1.0;
+        return this;
+    }
+
+    /**
+     * Select a random fraction of the elements that match this selector.
+     * The choice is made independently for each element, using a random 
+     * sequence that starts from the same seed in each parse, so the same
+     * document always produces the same sample, including when a parse is
+     * resumed from a {@link Checkpoint}.  Elements that are not 
+     * sampled are treated as for <code>sample(int)</code>.  As with
+     * <code>sample(int)</code>, this must be called before the selector
+     * is used.
+     * @param fraction probability that an element is sampled
+     * @param seed random seed
+     * @return updated selector
+     * @throws IllegalStateException if the selector is already in use
+     */
+    public ElementSelector<T> sample(double fraction, long seed) {
+        if (!(fraction > 0 && fraction <= 1)) {
+            throw new IllegalArgumentException("Sampling fraction must be in (0, 1]: " + fraction);
+        }
+        checkNotBuilt();
+        this.sampleInterval = 0;
+        this.sampleFraction = fraction;
+        this.sampleSeed = seed;
+        return this;
+    }
+
+    // Sampling is copied into the state when it is built, so later changes
+    // would be silently ignored
+    private void checkNotBuilt() {
+        if (nodeState != null) {
+            throw new IllegalStateException("Sampling must be set before the selector is used");
+        }
     }
 
     /**
@@ -72,6 +141,37 @@ public abstract class ElementSelector<T> extends Selectable<T> {
     	context.addElementHandler(state, handler);
     }
     
+    /**
+     * Leave selected elements, and everything within them, out of the output
+     * when the document is transformed.  Parsing is unaffected.
+     * @see SNAXParser#transform(java.io.Reader, javax.xml.stream.XMLEventWriter, Object)
+     */
+    @SuppressWarnings("unchecked")
+    public void drop() {
+        replace((ElementReplacer<T>)DROP);
+    }
+
+    /**
+     * Replace selected elements, and everything within them, when the 
+     * document is transformed.  The replacer is called at the start of each
+     * selected element to write whatever takes its place.  Parsing is 
+     * unaffected.
+     * @param replacer element replacer
+     * @throws IllegalStateException if the selected elements already have a 
+     *         different replacement
+     * @see SNAXParser#transform(java.io.Reader, javax.xml.stream.XMLEventWriter, Object)
+     */
+    public void replace(ElementReplacer<T> replacer) {
+        buildState().setReplacer(replacer);
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final ElementReplacer DROP = new ElementReplacer<Object>() {
+        @Override
+        public void replace(StartElement element, XMLEventWriter writer, Object data) {
+        }
+    };
+
     /**
      * Create a transition to another node state represented by its
      * {@link ElementSelector}.
@@ -116,6 +216,7 @@ public abstract class ElementSelector<T> extends Selectable<T> {
         	NodeState<T> parentState = (parent == null) ?
         			context.getModel().getRoot() : parent.buildState();
         	nodeState = addState(parentState);
+        	nodeState.setSampling(sampleInterval, sampleFraction, sampleSeed);
         }
         return nodeState;
     }
@@ -142,14 +243,17 @@ public abstract class ElementSelector<T> extends Selectable<T> {
     
     static class ElementSelectorTest<T> implements ElementConstraint {
         private ElementSelector<T> selector;
+        private ElementConstraint[] constraints;
         ElementSelectorTest(ElementSelector<T> selector) {
             this.selector = selector;
+            this.constraints = selector.constraints.toArray(
+                    new ElementConstraint[selector.constraints.size()]);
         }
         
         @Override
         public boolean matches(StartElement element) {
-            for (ElementConstraint constraint : selector.constraints) {
-                if (!constraint.matches(element)) {
+            for (int i = 0; i < constraints.length; i++) {
+                if (!constraints[i].matches(element)) {
                     return false;
                 }
             }
@@ -159,6 +263,22 @@ public abstract class ElementSelector<T> extends Selectable<T> {
         protected ElementSelector<T> getSelector() {
             return selector;
         }
+
+        ElementConstraint[] getConstraints() {
+            return constraints;
+        }
+
+        /**
+         * Return the element name required by this test, if any.
+         */
+        QName getElementName() {
+            for (ElementConstraint constraint : constraints) {
+                if (constraint instanceof ElementEqualsConstraint) {
+                    return ((ElementEqualsConstraint)constraint).getQName();
+                }
+            }
+            return null;
+        }
         
         @Override
         @SuppressWarnings("rawtypes")
@@ -171,6 +291,11 @@ public abstract class ElementSelector<T> extends Selectable<T> {
             }
             return selector.equals(((ElementSelectorTest)o).selector);
         }
+
+        @Override
+        public int hashCode() {
+            return selector.hashCode();
+        }
         
         @Override
         public String toString() {
@@ -0,0 +1,369 @@
+package net.sundell.snax;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+
+/**
+ * The start of an element, as passed to ElementHandlers when the parser
+ * is set to reuse events.  The parser keeps one view for each level of
+ * nesting, and refills it for each element that starts at that level, so
+ * a view is only valid until its element ends.  Handlers that keep an
+ * element for longer should keep a {@link #snapshot()} of it instead.
+ * <p>
+ * Events replayed from an {@link EventCache} are also views, but unless 
+ * the parser reuses events, each is a new object that remains valid.
+ *
+ * @see SNAXParser#setReuseEvents(boolean)
+ */
+public class ElementView extends EventView implements StartElement {
+
+    private static final XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+
+    private final ElementView parent;
+    private QName name;
+    private int attributeCount;
+    private QName[] attrNames = new QName[8];
+    private String[] attrValues = new String[8];
+    private String[] attrTypes = new String[8];
+    private boolean[] attrSpecified = new boolean[8];
+    private AttributeView[] attrViews = new AttributeView[8];
+    private int namespaceCount;
+    private String[] nsPrefixes = new String[4];
+    private String[] nsURIs = new String[4];
+
+    ElementView(ElementView parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Refill this view from a reader positioned at the start of an element.
+     */
+    void fill(XMLStreamReader reader) {
+        name = reader.getName();
+        attributeCount = reader.getAttributeCount();
+        if (attributeCount > attrNames.length) {
+            int size = Math.max(attributeCount, attrNames.length * 2);
+            attrNames = Arrays.copyOf(attrNames, size);
+            attrValues = Arrays.copyOf(attrValues, size);
+            attrTypes = Arrays.copyOf(attrTypes, size);
+            attrSpecified = Arrays.copyOf(attrSpecified, size);
+            attrViews = Arrays.copyOf(attrViews, size);
+        }
+        for (int i = 0; i < attributeCount; i++) {
+            attrNames[i] = reader.getAttributeName(i);
+            attrValues[i] = reader.getAttributeValue(i);
+            attrTypes[i] = reader.getAttributeType(i);
+            attrSpecified[i] = reader.isAttributeSpecified(i);
+        }
+        namespaceCount = reader.getNamespaceCount();
+        if (namespaceCount > nsPrefixes.length) {
+            int size = Math.max(namespaceCount, nsPrefixes.length * 2);
+            nsPrefixes = Arrays.copyOf(nsPrefixes, size);
+            nsURIs = Arrays.copyOf(nsURIs, size);
+        }
+        for (int i = 0; i < namespaceCount; i++) {
+            String prefix = reader.getNamespacePrefix(i);
+            nsPrefixes[i] = (prefix == null) ? XMLConstants.DEFAULT_NS_PREFIX : prefix;
+            String uri = reader.getNamespaceURI(i);
+            nsURIs[i] = (uri == null) ? XMLConstants.NULL_NS_URI : uri;
+        }
+        setLocation(reader.getLocation());
+    }
+
+    /**
+     * Copy this element into a new event that remains valid after the
+     * element ends.
+     * @return copy of this element
+     */
+    public StartElement snapshot() {
+        List<Attribute> attributes = new ArrayList<Attribute>(attributeCount);
+        for (int i = 0; i < attributeCount; i++) {
+            attributes.add(eventFactory.createAttribute(attrNames[i], attrValues[i]));
+        }
+        List<Namespace> namespaces = new ArrayList<Namespace>(namespaceCount);
+        for (int i = 0; i < namespaceCount; i++) {
+            namespaces.add(nsPrefixes[i].length() == 0 ?
+                    eventFactory.createNamespace(nsURIs[i]) :
+                    eventFactory.createNamespace(nsPrefixes[i], nsURIs[i]));
+        }
+        // The factory is shared, so its location must be set and created
+        // together
+        synchronized (eventFactory) {
+            eventFactory.setLocation(getLocation());
+            try {
+                return eventFactory.createStartElement(name.getPrefix(), name.getNamespaceURI(),
+                        name.getLocalPart(), attributes.iterator(), namespaces.iterator(),
+                        new FixedNamespaceContext(inScopeNamespaces()));
+            }
+            finally {
+                eventFactory.setLocation(null);
+            }
+        }
+    }
+
+    /**
+     * Collect the namespace bindings in scope, innermost first.
+     */
+    private Map<String, String> inScopeNamespaces() {
+        Map<String, String> bindings = new LinkedHashMap<String, String>();
+        for (ElementView v = this; v != null; v = v.parent) {
+            for (int i = 0; i < v.namespaceCount; i++) {
+                if (!bindings.containsKey(v.nsPrefixes[i])) {
+                    bindings.put(v.nsPrefixes[i], v.nsURIs[i]);
+                }
+            }
+        }
+        return bindings;
+    }
+
+    /**
+     * Return an element that remains valid after it ends: a snapshot if it
+     * is a view, or else the element itself.
+     * @param element element passed to an ElementHandler
+     * @return element that can be kept
+     */
+    public static StartElement snapshot(StartElement element) {
+        return (element instanceof ElementView) ? ((ElementView)element).snapshot() : element;
+    }
+
+    @Override
+    public int getEventType() {
+        return START_ELEMENT;
+    }
+
+    @Override
+    public StartElement asStartElement() {
+        return this;
+    }
+
+    @Override
+    public QName getName() {
+        return name;
+    }
+
+    @Override
+    public Iterator<Attribute> getAttributes() {
+        return new Iterator<Attribute>() {
+            private int i = 0;
+            @Override
+            public boolean hasNext() {
+                return i < attributeCount;
+            }
+            @Override
+            public Attribute next() {
+                if (i >= attributeCount) {
+                    throw new NoSuchElementException();
+                }
+                return attribute(i++);
+            }
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public Iterator<Namespace> getNamespaces() {
+        List<Namespace> namespaces = new ArrayList<Namespace>(namespaceCount);
+        for (int i = 0; i < namespaceCount; i++) {
+            namespaces.add(nsPrefixes[i].length() == 0 ?
+                    eventFactory.createNamespace(nsURIs[i]) :
+                    eventFactory.createNamespace(nsPrefixes[i], nsURIs[i]));
+        }
+        return namespaces.iterator();
+    }
+
+    @Override
+    public Attribute getAttributeByName(QName qname) {
+        for (int i = 0; i < attributeCount; i++) {
+            if (attrNames[i].equals(qname)) {
+                return attribute(i);
+            }
+        }
+        return null;
+    }
+
+    private Attribute attribute(int i) {
+        if (attrViews[i] == null) {
+            attrViews[i] = new AttributeView(i);
+        }
+        return attrViews[i];
+    }
+
+    @Override
+    public NamespaceContext getNamespaceContext() {
+        return new FixedNamespaceContext(inScopeNamespaces());
+    }
+
+    @Override
+    public String getNamespaceURI(String prefix) {
+        for (ElementView v = this; v != null; v = v.parent) {
+            for (int i = 0; i < v.namespaceCount; i++) {
+                if (v.nsPrefixes[i].equals(prefix)) {
+                    return v.nsURIs[i];
+                }
+            }
+        }
+        if (XMLConstants.XML_NS_PREFIX.equals(prefix)) {
+            return XMLConstants.XML_NS_URI;
+        }
+        return null;
+    }
+
+    @Override
+    public void writeAsEncodedUnicode(Writer writer) throws XMLStreamException {
+        try {
+            writer.write('<');
+            writer.write(qualifiedName(name));
+            for (int i = 0; i < namespaceCount; i++) {
+                writer.write(nsPrefixes[i].length() == 0 ? " xmlns" : " xmlns:" + nsPrefixes[i]);
+                writer.write("=\"");
+                writeEscaped(writer, nsURIs[i]);
+                writer.write('"');
+            }
+            for (int i = 0; i < attributeCount; i++) {
+                writer.write(' ');
+                writer.write(qualifiedName(attrNames[i]));
+                writer.write("=\"");
+                writeEscaped(writer, attrValues[i]);
+                writer.write('"');
+            }
+            writer.write('>');
+        }
+        catch (IOException e) {
+            throw new XMLStreamException(e);
+        }
+    }
+
+    private static void writeEscaped(Writer writer, String value) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '<': writer.write("&lt;"); break;
+            case '&': writer.write("&amp;"); break;
+            case '"': writer.write("&quot;"); break;
+            default: writer.write(c);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "<" + qualifiedName(name) + ">";
+    }
+
+    /**
+     * Namespace bindings copied from a view, which do not change as the
+     * view is refilled.
+     */
+    private static class FixedNamespaceContext implements NamespaceContext {
+        private Map<String, String> bindings;
+
+        FixedNamespaceContext(Map<String, String> bindings) {
+            this.bindings = bindings;
+        }
+
+        @Override
+        public String getNamespaceURI(String prefix) {
+            String uri = bindings.get(prefix);
+            if (uri == null && XMLConstants.XML_NS_PREFIX.equals(prefix)) {
+                return XMLConstants.XML_NS_URI;
+            }
+            return uri;
+        }
+
+        @Override
+        public String getPrefix(String namespaceURI) {
+            for (Map.Entry<String, String> e : bindings.entrySet()) {
+                if (e.getValue().equals(namespaceURI)) {
+                    return e.getKey();
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Iterator<String> getPrefixes(String namespaceURI) {
+            List<String> prefixes = new ArrayList<String>(1);
+            for (Map.Entry<String, String> e : bindings.entrySet()) {
+                if (e.getValue().equals(namespaceURI)) {
+                    prefixes.add(e.getKey());
+                }
+            }
+            return prefixes.iterator();
+        }
+    }
+
+    /**
+     * An attribute of the view, which reads through to its current contents.
+     */
+    private class AttributeView extends EventView implements Attribute {
+        private final int index;
+
+        AttributeView(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public int getEventType() {
+            return ATTRIBUTE;
+        }
+
+        @Override
+        public Location getLocation() {
+            return ElementView.this.getLocation();
+        }
+
+        @Override
+        public QName getName() {
+            return attrNames[index];
+        }
+
+        @Override
+        public String getValue() {
+            return attrValues[index];
+        }
+
+        @Override
+        public String getDTDType() {
+            return attrTypes[index];
+        }
+
+        @Override
+        public boolean isSpecified() {
+            return attrSpecified[index];
+        }
+
+        @Override
+        public void writeAsEncodedUnicode(Writer writer) throws XMLStreamException {
+            try {
+                writer.write(qualifiedName(attrNames[index]));
+                writer.write("=\"");
+                writeEscaped(writer, attrValues[index]);
+                writer.write('"');
+            }
+            catch (IOException e) {
+                throw new XMLStreamException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package net.sundell.snax;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * A document's events, recorded once in a compact binary form so that the
+ * document can be parsed again, with any model, without tokenizing the XML.
+ * Element and attribute names are kept in a table and referred to by index,
+ * text and attribute values are kept together in a single character array,
+ * and the structure is a stream of variable-length integers.
+ * <p>
+ * A cache is immutable once recorded, and can be replayed by any number of
+ * parsers at once, using <code>SNAXParser.parse(EventCache, Object)</code>.
+ * It can also be saved with <code>writeTo()</code> and loaded again with
+ * <code>readFrom()</code>.
+ * <p>
+ * Comments, processing instructions, the DTD and entity references are
+ * kept.  Of each element's location, only its line number is kept.
+ */
+public final class EventCache {
+
+    private static final int MAGIC = 0x534e4158; // "SNAX"
+    private static final int VERSION = 1;
+
+    // Opcodes for the events
+    static final byte START_DOCUMENT = 1, END_DOCUMENT = 2, START_ELEMENT = 3, END_ELEMENT = 4,
+            CHARACTERS = 5, CDATA = 6, SPACE = 7, COMMENT = 8, PROCESSING_INSTRUCTION = 9,
+            DTD = 10, ENTITY_REFERENCE = 11;
+
+    // Values no longer than this are stored once, however often they occur
+    private static final int SHARED_TEXT_LENGTH = 32;
+
+    final String[] strings;
+    final QName[] names;
+    final char[] arena;
+    final byte[] events;
+    final int eventsLength;
+
+    private EventCache(String[] strings, QName[] names, char[] arena, byte[] events,
+                       int eventsLength) {
+        this.strings = strings;
+        this.names = names;
+        this.arena = arena;
+        this.events = events;
+        this.eventsLength = eventsLength;
+    }
+
+    /**
+     * Record a document.  As with <code>SNAXParser</code>, DTD support is
+     * disabled in the factory, so that external entities are not read.
+     * @param factory factory used to read the document
+     * @param reader XML content to record
+     * @return cache of the document's events
+     * @throws XMLStreamException if there is an error with the underlying XML
+     */
+    public static EventCache record(XMLInputFactory factory, Reader reader)
+                throws XMLStreamException {
+        // Disable DTD parsing to avoid XXE
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        XMLStreamReader streamReader = factory.createXMLStreamReader(reader);
+        try {
+            return record(streamReader);
+        }
+        finally {
+            streamReader.close();
+        }
+    }
+
+    /**
+     * Record the events that remain in a stream reader, which is left at
+     * the end of the document.  The reader is used as it is, so it should
+     * come from a factory with DTD support disabled unless the document is
+     * trusted.
+     * @param reader reader positioned at the start of a document
+     * @return cache of the document's events
+     * @throws XMLStreamException if there is an error with the underlying XML
+     */
+    public static EventCache record(XMLStreamReader reader) throws XMLStreamException {
+        return new Recorder().record(reader);
+    }
+
+    /**
+     * Get the size of the recorded events, not counting the name table.
+     * @return size in bytes, counting two bytes per character of text
+     */
+    public long getSize() {
+        return eventsLength + 2L * arena.length;
+    }
+
+    /**
+     * Create a stream reader that replays the recorded events.
+     */
+    XMLStreamReader createStreamReader() {
+        return new CachedStreamReader(this);
+    }
+
+    /**
+     * Save this cache.  The output is not closed.
+     * @param out output
+     * @throws IOException if the cache cannot be written
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(strings.length);
+        for (String s : strings) {
+            writeString(data, s);
+        }
+        Map<String, Integer> stringIndex = indexOf(strings);
+        data.writeInt(names.length);
+        for (QName name : names) {
+            data.writeInt(stringIndex.get(name.getNamespaceURI()));
+            data.writeInt(stringIndex.get(name.getLocalPart()));
+            data.writeInt(stringIndex.get(name.getPrefix()));
+        }
+        data.writeInt(arena.length);
+        writeString(data, new String(arena));
+        data.writeInt(eventsLength);
+        data.write(events, 0, eventsLength);
+        data.flush();
+    }
+
+    /**
+     * Load a cache saved by <code>writeTo()</code>.
+     * @param in input
+     * @return cache
+     * @throws IOException if the cache cannot be read, or was not written
+     *         by this version of SNAX
+     */
+    public static EventCache readFrom(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not an event cache");
+        }
+        int version = data.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported event cache version " + version);
+        }
+        String[] strings = new String[data.readInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = readString(data);
+        }
+        QName[] names = new QName[data.readInt()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = new QName(strings[data.readInt()], strings[data.readInt()],
+                                 strings[data.readInt()]);
+        }
+        int arenaLength = data.readInt();
+        char[] arena = readString(data).toCharArray();
+        if (arena.length != arenaLength) {
+            throw new IOException("Corrupt event cache");
+        }
+        byte[] events = new byte[data.readInt()];
+        data.readFully(events);
+        return new EventCache(strings, names, arena, events, events.length);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, Integer> indexOf(String[] strings) {
+        Map<String, Integer> index = new HashMap<String, Integer>(strings.length * 2);
+        for (int i = 0; i < strings.length; i++) {
+            index.put(strings[i], i);
+        }
+        return index;
+    }
+
+    /**
+     * Builds a cache from a stream reader.
+     */
+    private static class Recorder {
+        private List<String> strings = new ArrayList<String>();
+        private Map<String, Integer> stringIndex = new HashMap<String, Integer>();
+        private List<QName> names = new ArrayList<QName>();
+        // Name tables compare QNames without their prefixes, so they are
+        // keyed by prefix as well
+        private Map<String, Map<QName, Integer>> namesByPrefix =
+                new HashMap<String, Map<QName, Integer>>();
+        private Map<String, Integer> sharedText = new HashMap<String, Integer>();
+        private char[] arena = new char[8192];
+        private int arenaLength = 0;
+        private byte[] events = new byte[8192];
+        private int eventsLength = 0;
+        private int line = 0;
+
+        EventCache record(XMLStreamReader reader) throws XMLStreamException {
+            while (true) {
+                switch (reader.getEventType()) {
+                case XMLStreamConstants.START_DOCUMENT:
+                    writeByte(START_DOCUMENT);
+                    writeOptionalString(reader.getCharacterEncodingScheme());
+                    writeOptionalString(reader.getVersion());
+                    writeVarint(reader.standaloneSet() ? (reader.isStandalone() ? 2 : 1) : 0);
+                    break;
+                case XMLStreamConstants.START_ELEMENT:
+                    writeByte(START_ELEMENT);
+                    int newLine = (reader.getLocation() == null) ? -1 :
+                                  reader.getLocation().getLineNumber();
+                    if (newLine >= line) {
+                        writeVarint(newLine - line);
+                        line = newLine;
+                    }
+                    else {
+                        writeVarint(0);
+                    }
+                    writeVarint(name(reader.getName()));
+                    writeVarint(reader.getNamespaceCount());
+                    for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                        writeVarint(string(nullToEmpty(reader.getNamespacePrefix(i))));
+                        writeVarint(string(nullToEmpty(reader.getNamespaceURI(i))));
+                    }
+                    writeVarint(reader.getAttributeCount());
+                    for (int i = 0; i < reader.getAttributeCount(); i++) {
+                        writeVarint(name(reader.getAttributeName(i)));
+                        String value = reader.getAttributeValue(i);
+                        writeText(value.toCharArray(), 0, value.length());
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    writeByte(END_ELEMENT);
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    int type = reader.getEventType();
+                    writeByte(type == XMLStreamConstants.CDATA ? CDATA :
+                              type == XMLStreamConstants.SPACE ? SPACE : CHARACTERS);
+                    writeText(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    writeByte(COMMENT);
+                    writeText(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    writeByte(PROCESSING_INSTRUCTION);
+                    writeVarint(string(reader.getPITarget()));
+                    String piData = nullToEmpty(reader.getPIData());
+                    writeText(piData.toCharArray(), 0, piData.length());
+                    break;
+                case XMLStreamConstants.DTD:
+                    writeByte(DTD);
+                    String dtd = reader.getText();
+                    writeText(dtd.toCharArray(), 0, dtd.length());
+                    break;
+                case XMLStreamConstants.ENTITY_REFERENCE:
+                    writeByte(ENTITY_REFERENCE);
+                    writeVarint(string(reader.getLocalName()));
+                    String text = nullToEmpty(reader.getText());
+                    writeText(text.toCharArray(), 0, text.length());
+                    break;
+                case XMLStreamConstants.END_DOCUMENT:
+                    writeByte(END_DOCUMENT);
+                    return new EventCache(strings.toArray(new String[strings.size()]),
+                            names.toArray(new QName[names.size()]),
+                            Arrays.copyOf(arena, arenaLength), events, eventsLength);
+                }
+                reader.next();
+            }
+        }
+
+        private static String nullToEmpty(String s) {
+            return (s == null) ? "" : s;
+        }
+
+        private int string(String s) {
+            Integer i = stringIndex.get(s);
+            if (i == null) {
+                i = strings.size();
+                strings.add(s);
+                stringIndex.put(s, i);
+            }
+            return i;
+        }
+
+        private int name(QName name) {
+            Map<QName, Integer> index = namesByPrefix.get(name.getPrefix());
+            if (index == null) {
+                index = new HashMap<QName, Integer>();
+                namesByPrefix.put(name.getPrefix(), index);
+            }
+            Integer i = index.get(name);
+            if (i == null) {
+                i = names.size();
+                names.add(name);
+                index.put(name, i);
+                // The strings of every name are in the string table, so
+                // that the table can be saved by index
+                string(name.getNamespaceURI());
+                string(name.getLocalPart());
+                string(name.getPrefix());
+            }
+            return i;
+        }
+
+        /**
+         * Add text to the arena, and write a reference to it.  The length
+         * is written doubled; if it is odd, the text is not the next in
+         * the arena, and its offset follows.
+         */
+        private void writeText(char[] chars, int start, int length) {
+            if (length <= SHARED_TEXT_LENGTH) {
+                String s = new String(chars, start, length);
+                Integer offset = sharedText.get(s);
+                if (offset != null) {
+                    writeVarint(length * 2 + 1);
+                    writeVarint(offset);
+                    return;
+                }
+                sharedText.put(s, arenaLength);
+            }
+            if (arenaLength + length > arena.length) {
+                arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaLength + length));
+            }
+            System.arraycopy(chars, start, arena, arenaLength, length);
+            arenaLength += length;
+            writeVarint(length * 2);
+        }
+
+        private void writeOptionalString(String s) {
+            writeVarint((s == null) ? 0 : string(s) + 1);
+        }
+
+        private void writeByte(int b) {
+            if (eventsLength == events.length) {
+                events = Arrays.copyOf(events, events.length * 2);
+            }
+            events[eventsLength++] = (byte)b;
+        }
+
+        private void writeVarint(int value) {
+            while ((value & ~0x7f) != 0) {
+                writeByte((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            writeByte(value);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package net.sundell.snax;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.Characters;
+import javax.xml.stream.events.EndElement;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Base class for the reusable events produced when a parser is set to
+ * reuse events.  Each view is refilled from the stream reader's current
+ * state, and keeps a copy of its location.
+ */
+abstract class EventView implements XMLEvent {
+
+    private final LocationView location = new LocationView();
+
+    void setLocation(Location l) {
+        location.set(l);
+    }
+
+    @Override
+    public Location getLocation() {
+        return location;
+    }
+
+    @Override
+    public boolean isStartElement() {
+        return getEventType() == START_ELEMENT;
+    }
+
+    @Override
+    public boolean isAttribute() {
+        return getEventType() == ATTRIBUTE;
+    }
+
+    @Override
+    public boolean isNamespace() {
+        return getEventType() == NAMESPACE;
+    }
+
+    @Override
+    public boolean isEndElement() {
+        return getEventType() == END_ELEMENT;
+    }
+
+    @Override
+    public boolean isEntityReference() {
+        return false;
+    }
+
+    @Override
+    public boolean isProcessingInstruction() {
+        return false;
+    }
+
+    @Override
+    public boolean isCharacters() {
+        int type = getEventType();
+        return type == CHARACTERS || type == CDATA || type == SPACE;
+    }
+
+    @Override
+    public boolean isStartDocument() {
+        return false;
+    }
+
+    @Override
+    public boolean isEndDocument() {
+        return false;
+    }
+
+    @Override
+    public StartElement asStartElement() {
+        throw new ClassCastException("Not a start element");
+    }
+
+    @Override
+    public EndElement asEndElement() {
+        throw new ClassCastException("Not an end element");
+    }
+
+    @Override
+    public Characters asCharacters() {
+        throw new ClassCastException("Not characters");
+    }
+
+    @Override
+    public QName getSchemaType() {
+        return null;
+    }
+
+    static String qualifiedName(QName name) {
+        return (name.getPrefix().length() > 0) ?
+                name.getPrefix() + ":" + name.getLocalPart() : name.getLocalPart();
+    }
+
+    /**
+     * A copy of a location, which remains valid as the reader moves on.
+     */
+    static class LocationView implements Location {
+        private int line, column, offset;
+        private String publicId, systemId;
+
+        void set(Location l) {
+            if (l == null) {
+                line = column = offset = -1;
+                publicId = systemId = null;
+                return;
+            }
+            line = l.getLineNumber();
+            column = l.getColumnNumber();
+            offset = l.getCharacterOffset();
+            publicId = l.getPublicId();
+            systemId = l.getSystemId();
+        }
+
+        @Override
+        public int getLineNumber() {
+            return line;
+        }
+
+        @Override
+        public int getColumnNumber() {
+            return column;
+        }
+
+        @Override
+        public int getCharacterOffset() {
+            return offset;
+        }
+
+        @Override
+        public String getPublicId() {
+            return publicId;
+        }
+
+        @Override
+        public String getSystemId() {
+            return systemId;
+        }
+    }
+
+    /**
+     * The end of an element, which refers to the view of its start.
+     */
+    static class EndElementView extends EventView implements EndElement {
+        private ElementView start;
+
+        void fill(XMLStreamReader reader, ElementView start) {
+            this.start = start;
+            setLocation(reader.getLocation());
+        }
+
+        @Override
+        public int getEventType() {
+            return END_ELEMENT;
+        }
+
+        @Override
+        public EndElement asEndElement() {
+            return this;
+        }
+
+        @Override
+        public QName getName() {
+            return start.getName();
+        }
+
+        @Override
+        public Iterator<Namespace> getNamespaces() {
+            return start.getNamespaces();
+        }
+
+        @Override
+        public void writeAsEncodedUnicode(Writer writer)
+                    throws XMLStreamException {
+            try {
+                writer.write("</" + qualifiedName(getName()) + ">");
+            }
+            catch (IOException e) {
+                throw new XMLStreamException(e);
+            }
+        }
+    }
+
+    /**
+     * Text, whitespace or a CDATA section.
+     */
+    static class CharactersView extends EventView implements Characters {
+        private int type;
+        private String data;
+
+        void fill(XMLStreamReader reader) {
+            this.type = reader.getEventType();
+            this.data = reader.getText();
+            setLocation(reader.getLocation());
+        }
+
+        @Override
+        public int getEventType() {
+            return type;
+        }
+
+        @Override
+        public Characters asCharacters() {
+            return this;
+        }
+
+        @Override
+        public String getData() {
+            return data;
+        }
+
+        @Override
+        public boolean isWhiteSpace() {
+            for (int i = 0; i < data.length(); i++) {
+                char c = data.charAt(i);
+                if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isCData() {
+            return type == CDATA;
+        }
+
+        @Override
+        public boolean isIgnorableWhiteSpace() {
+            return type == SPACE;
+        }
+
+        @Override
+        public void writeAsEncodedUnicode(Writer writer)
+                    throws XMLStreamException {
+            try {
+                if (type == CDATA) {
+                    writer.write("<![CDATA[" + data + "]]>");
+                    return;
+                }
+                for (int i = 0; i < data.length(); i++) {
+                    char c = data.charAt(i);
+                    switch (c) {
+                    case '<': writer.write("&lt;"); break;
+                    case '&': writer.write("&amp;"); break;
+                    case '>': writer.write("&gt;"); break;
+                    default: writer.write(c);
+                    }
+                }
+            }
+            catch (IOException e) {
+                throw new XMLStreamException(e);
+            }
+        }
+    }
+}
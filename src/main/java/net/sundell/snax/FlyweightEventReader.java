@@ -0,0 +1,238 @@
+package net.sundell.snax;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.EntityDeclaration;
+import javax.xml.stream.events.EntityReference;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * An event reader that returns reusable views in place of new events for
+ * element starts, element ends and text, which are nearly all of the events
+ * in a document.  Each level of nesting has its own element view, which is
+ * refilled for each element at that level; the end view and text view are
+ * refilled for every end and every run of text.  Rarer events are created
+ * as usual.
+ * <p>
+ * Views can also be created afresh for every event, in which case they
+ * remain valid indefinitely.  Unlike the event readers created by an 
+ * XMLInputFactory, this works with any stream reader.
+ * <p>
+ * An event returned by <code>peek()</code> is always created afresh, so
+ * that looking ahead does not refill a view that is still in use.
+ */
+class FlyweightEventReader implements XMLEventReader {
+
+    private static final XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+
+    private XMLStreamReader reader;
+    private List<ElementView> elements = new ArrayList<ElementView>();
+    private int depth;
+    private EventView.EndElementView endView = new EventView.EndElementView();
+    private EventView.CharactersView charactersView = new EventView.CharactersView();
+    private boolean started, ended;
+    private boolean reuse;
+    // The last event returned by nextEvent(), and the event returned by
+    // peek() that nextEvent() will return next
+    private XMLEvent last, peeked;
+
+    FlyweightEventReader(XMLStreamReader reader, boolean reuse) {
+        this.reader = reader;
+        this.reuse = reuse;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return peeked != null || !ended;
+    }
+
+    @Override
+    public XMLEvent nextEvent() throws XMLStreamException {
+        if (peeked != null) {
+            last = peeked;
+            peeked = null;
+        }
+        else {
+            last = read();
+        }
+        return last;
+    }
+
+    private XMLEvent read() throws XMLStreamException {
+        if (ended) {
+            throw new NoSuchElementException();
+        }
+        if (!started) {
+            // The reader is already positioned at the start of the document
+            started = true;
+            return current();
+        }
+        reader.next();
+        return current();
+    }
+
+    private XMLEvent current() {
+        switch (reader.getEventType()) {
+        case XMLStreamConstants.START_ELEMENT:
+            if (depth == elements.size()) {
+                elements.add(null);
+            }
+            ElementView element = elements.get(depth);
+            if (element == null || !reuse) {
+                element = new ElementView(depth == 0 ? null : elements.get(depth - 1));
+                elements.set(depth, element);
+            }
+            depth++;
+            element.fill(reader);
+            return element;
+        case XMLStreamConstants.END_ELEMENT:
+            EventView.EndElementView end = reuse ? endView : new EventView.EndElementView();
+            end.fill(reader, elements.get(--depth));
+            return end;
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.CDATA:
+        case XMLStreamConstants.SPACE:
+            EventView.CharactersView characters = 
+                    reuse ? charactersView : new EventView.CharactersView();
+            characters.fill(reader);
+            return characters;
+        }
+        // Anything else is rare enough to be created as usual
+        synchronized (eventFactory) {
+            eventFactory.setLocation(reader.getLocation());
+            try {
+                return createEvent();
+            }
+            finally {
+                eventFactory.setLocation(null);
+            }
+        }
+    }
+
+    private XMLEvent createEvent() {
+        switch (reader.getEventType()) {
+        case XMLStreamConstants.START_DOCUMENT:
+            String encoding = reader.getCharacterEncodingScheme();
+            String version = reader.getVersion();
+            return (encoding == null) ? eventFactory.createStartDocument() :
+                   eventFactory.createStartDocument(encoding, (version == null) ? "1.0" : version,
+                                                    reader.isStandalone());
+        case XMLStreamConstants.END_DOCUMENT:
+            ended = true;
+            return eventFactory.createEndDocument();
+        case XMLStreamConstants.COMMENT:
+            return eventFactory.createComment(reader.getText());
+        case XMLStreamConstants.PROCESSING_INSTRUCTION:
+            return eventFactory.createProcessingInstruction(reader.getPITarget(), reader.getPIData());
+        case XMLStreamConstants.DTD:
+            return eventFactory.createDTD(reader.getText());
+        case XMLStreamConstants.ENTITY_REFERENCE:
+            return eventFactory.createEntityReference(reader.getLocalName(), null);
+        default:
+            throw new IllegalStateException("Unexpected event type " + reader.getEventType());
+        }
+    }
+
+    @Override
+    public Object next() {
+        try {
+            return nextEvent();
+        }
+        catch (XMLStreamException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public XMLEvent peek() throws XMLStreamException {
+        if (peeked == null && !ended) {
+            boolean wasReusing = reuse;
+            reuse = false;
+            try {
+                peeked = read();
+            }
+            finally {
+                reuse = wasReusing;
+            }
+        }
+        return peeked;
+    }
+
+    @Override
+    public String getElementText() throws XMLStreamException {
+        if (last == null || !last.isStartElement()) {
+            throw new XMLStreamException("Not at the start of an element");
+        }
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            XMLEvent event = nextEvent();
+            switch (event.getEventType()) {
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+            case XMLStreamConstants.SPACE:
+                sb.append(event.asCharacters().getData());
+                break;
+            case XMLStreamConstants.ENTITY_REFERENCE:
+                EntityDeclaration declaration = ((EntityReference)event).getDeclaration();
+                if (declaration != null && declaration.getReplacementText() != null) {
+                    sb.append(declaration.getReplacementText());
+                }
+                break;
+            case XMLStreamConstants.COMMENT:
+            case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                return sb.toString();
+            default:
+                throw new XMLStreamException("Element text cannot contain " + event, 
+                                             event.getLocation());
+            }
+        }
+    }
+
+    @Override
+    public XMLEvent nextTag() throws XMLStreamException {
+        while (true) {
+            XMLEvent event = nextEvent();
+            switch (event.getEventType()) {
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+                if (!event.asCharacters().isWhiteSpace()) {
+                    throw new XMLStreamException("Expected a start or end tag", event.getLocation());
+                }
+                break;
+            case XMLStreamConstants.SPACE:
+            case XMLStreamConstants.COMMENT:
+            case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                break;
+            case XMLStreamConstants.START_ELEMENT:
+            case XMLStreamConstants.END_ELEMENT:
+                return event;
+            default:
+                throw new XMLStreamException("Expected a start or end tag", event.getLocation());
+            }
+        }
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return reader.getProperty(name);
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() throws XMLStreamException {
+        reader.close();
+    }
+}
@@ -0,0 +1,196 @@
+package net.sundell.snax;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A channel that decompresses a gzip or zlib stream on a separate thread, so
+ * that inflation overlaps with parsing.  The inflater thread fills buffers
+ * from a small fixed set and queues them for the reader, which returns each
+ * one to the free queue once it has been consumed.  The number of buffers
+ * bounds how far the inflater can get ahead.
+ * <p>
+ * Closing the channel stops the inflater thread and waits for it to finish,
+ * but does not close the underlying stream.  The thread is interrupted, so
+ * a stream over an interruptible channel may be closed if the thread is 
+ * reading from it at the time.
+ */
+class InflatingChannel implements ReadableByteChannel {
+
+    private static final int BUFFER_COUNT = 4;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<ByteBuffer>(BUFFER_COUNT);
+    private final BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<ByteBuffer>(BUFFER_COUNT + 1);
+    private final Thread inflater;
+    private volatile Throwable error;
+    private ByteBuffer current;
+    private boolean eof = false;
+    private volatile boolean open = true;
+
+    /**
+     * Return a channel for reading a stream, which will decompress it if
+     * it starts with a gzip or zlib header.
+     * @param in stream
+     * @return channel
+     * @throws IOException if the start of the stream can't be read
+     */
+    static ReadableByteChannel open(InputStream in) throws IOException {
+        PushbackInputStream pin = new PushbackInputStream(in, 2);
+        byte[] magic = new byte[2];
+        int n = 0;
+        while (n < 2) {
+            int count = pin.read(magic, n, 2 - n);
+            if (count == -1) {
+                break;
+            }
+            n += count;
+        }
+        pin.unread(magic, 0, n);
+        if (n == 2 && isGzip(magic[0], magic[1])) {
+            return new InflatingChannel(new GZIPInputStream(pin, BUFFER_SIZE));
+        }
+        if (n == 2 && isZlib(magic[0], magic[1])) {
+            return new InflatingChannel(new InflaterInputStream(pin));
+        }
+        return Channels.newChannel(pin);
+    }
+
+    /**
+     * Return true if input that starts with two bytes is compressed with
+     * gzip or zlib.
+     */
+    static boolean isCompressed(byte first, byte second) {
+        return isGzip(first, second) || isZlib(first, second);
+    }
+
+    private static boolean isGzip(byte first, byte second) {
+        return (first & 0xFF) == 0x1F && (second & 0xFF) == 0x8B;
+    }
+
+    // A zlib header with the deflate method; no XML document can start with 'x'
+    private static boolean isZlib(byte first, byte second) {
+        int b0 = first & 0xFF, b1 = second & 0xFF;
+        return b0 == 0x78 && ((b0 << 8) | b1) % 31 == 0;
+    }
+
+    InflatingChannel(final InputStream source) {
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            free.add(ByteBuffer.allocate(BUFFER_SIZE));
+        }
+        inflater = new Thread("SNAX inflater") {
+            @Override
+            public void run() {
+                try {
+                    while (open) {
+                        // close() interrupts the wait
+                        ByteBuffer buffer = free.take();
+                        buffer.clear();
+                        int n = source.read(buffer.array(), 0, buffer.capacity());
+                        if (n == -1) {
+                            break;
+                        }
+                        // Fill the rest of the buffer if more is immediately available
+                        int pos = n;
+                        while (pos < buffer.capacity() && source.available() > 0) {
+                            n = source.read(buffer.array(), pos, buffer.capacity() - pos);
+                            if (n == -1) {
+                                break;
+                            }
+                            pos += n;
+                        }
+                        buffer.limit(pos);
+                        // There is always room, since the queue can hold every buffer
+                        full.add(buffer);
+                    }
+                }
+                catch (InterruptedException e) {
+                    // Closed, so nothing is reading
+                }
+                catch (Throwable e) {
+                    // Reported by read(), once the buffers before it are used
+                    error = e;
+                }
+                finally {
+                    full.offer(END);
+                }
+            }
+        };
+        inflater.setDaemon(true);
+        inflater.start();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        if (eof) {
+            return -1;
+        }
+        while (current == null || !current.hasRemaining()) {
+            if (current != null) {
+                free.add(current);
+            }
+            try {
+                current = full.take();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (current == END) {
+                current = null;
+                eof = true;
+                Throwable e = error;
+                if (e instanceof IOException) {
+                    throw (IOException)e;
+                }
+                if (e instanceof RuntimeException) {
+                    throw (RuntimeException)e;
+                }
+                if (e instanceof Error) {
+                    throw (Error)e;
+                }
+                if (e != null) {
+                    throw new IOException(e);
+                }
+                return -1;
+            }
+        }
+        int n = Math.min(dst.remaining(), current.remaining());
+        int limit = current.limit();
+        current.limit(current.position() + n);
+        dst.put(current);
+        current.limit(limit);
+        return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+        inflater.interrupt();
+        try {
+            inflater.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
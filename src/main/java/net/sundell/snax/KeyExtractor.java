@@ -0,0 +1,27 @@
+package net.sundell.snax;
+
+import javax.xml.stream.events.StartElement;
+
+/**
+ * Chooses a key for an element once it has ended.  An {@link OffsetIndexBuilder}
+ * records each element in its {@link OffsetIndex} under its key, and an
+ * {@link net.sundell.snax.handlers.AsyncListHandler} commits items with the
+ * same key in document order.
+ * 
+ * @param <T> Data object type that will be passed to parse calls
+ * @see OffsetIndexBuilder
+ * @see net.sundell.snax.handlers.AsyncListHandler
+ */
+public interface KeyExtractor<T> {
+
+    /**
+     * Return the key for an element.  This is called once the element has
+     * ended, so the data object may hold information gathered from the 
+     * element's content by other handlers.
+     * @param element element that has ended
+     * @param data parser data object
+     * @return key, or null if the element has none; an OffsetIndexBuilder
+     *         does not index such an element
+     */
+    public String getKey(StartElement element, T data);
+}
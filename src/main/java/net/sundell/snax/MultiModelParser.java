@@ -0,0 +1,111 @@
+package net.sundell.snax;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Runs several independent NodeModels over a document in a single pass.
+ * Each model is paired with its own data object, and its handlers are called
+ * exactly as they would be by a {@link SNAXParser} for that model alone, but
+ * the document is only read and tokenized once:
+ * <pre>
+ * MultiModelParser parser = MultiModelParser.createParser(factory);
+ * parser.addModel(inventoryModel, inventory);
+ * parser.addModel(pricingModel, prices);
+ * parser.parse(reader);
+ * </pre>
+ * For each event, the models' handlers are called in the order in which the
+ * models were added.  An exception from any handler stops the whole parse.
+ * <p>
+ * Only reading and tokenizing the document is shared.  The models are not
+ * merged into a single state machine: each is run by its own SNAXParser, in
+ * lockstep with the others, which keeps its own stack and follows its own
+ * transitions for every event.  The cost of matching therefore still grows
+ * with the number of models, and this saves only the cost of reading the
+ * document more than once.
+ */
+public class MultiModelParser {
+
+    private XMLInputFactory factory;
+    private List<Binding<?>> bindings = new ArrayList<Binding<?>>();
+
+    /**
+     * Return a new MultiModelParser with no models.
+     * @param factory XMLInputFactory to use when creating input streams
+     * @return a new parser
+     */
+    public static MultiModelParser createParser(XMLInputFactory factory) {
+        return new MultiModelParser(factory);
+    }
+
+    private MultiModelParser(XMLInputFactory factory) {
+        this.factory = factory;
+        // Disable DTD parsing to avoid XXE
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    }
+
+    /**
+     * Add a model to be run by subsequent parses.
+     * @param model NodeModel that defines the state machine for this model
+     * @param data optional, user-defined object to be passed as an argument to
+     *        this model's ElementHandlers
+     * @return this parser
+     */
+    public <T> MultiModelParser addModel(NodeModel<T> model, T data) {
+        bindings.add(new Binding<T>(SNAXParser.createParser(factory, model), data));
+        return this;
+    }
+
+    /**
+     * Remove all models.
+     */
+    public void clearModels() {
+        bindings.clear();
+    }
+
+    /**
+     * Parse a data stream, represented by a Reader, to completion, applying
+     * every model.
+     *
+     * @param reader XML content to process
+     * @throws XMLStreamException if there is an error with the underlying XML
+     * @throws SNAXUserException if there is an error in an attached <code>ElementHandler</code>
+     */
+    public void parse(Reader reader) throws XMLStreamException, SNAXUserException {
+        if (bindings.isEmpty()) {
+            throw new IllegalStateException("No models were added");
+        }
+        XMLEventReader xmlReader = factory.createXMLEventReader(reader);
+        for (Binding<?> binding : bindings) {
+            binding.init(xmlReader);
+        }
+        for (XMLEvent event = xmlReader.nextEvent(); xmlReader.hasNext(); event = xmlReader.nextEvent()) {
+            for (int i = 0; i < bindings.size(); i++) {
+                bindings.get(i).parser.processEvent(event);
+            }
+        }
+    }
+
+    /**
+     * A model's parser, together with its data object.
+     */
+    private static class Binding<T> {
+        SNAXParser<T> parser;
+        T data;
+
+        Binding(SNAXParser<T> parser, T data) {
+            this.parser = parser;
+            this.data = data;
+        }
+
+        void init(XMLEventReader xmlReader) {
+            parser.init(xmlReader, data);
+        }
+    }
+}
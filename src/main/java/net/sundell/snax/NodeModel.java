@@ -1,7 +1,11 @@
 package net.sundell.snax;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import javax.xml.stream.events.DTD;
 import javax.xml.stream.events.EntityDeclaration;
@@ -21,6 +25,10 @@ public class NodeModel<T> {
 
     private List<DeclarationHandler<T>> dtdHandlers = new ArrayList<DeclarationHandler<T>>();
     private NodeState<T> root;
+    private List<NodeState<T>> states = new ArrayList<NodeState<T>>();
+    // Set once an ElementBytesHandler is attached, or a build is deferred
+    // that might attach one
+    private volatile boolean bytesHandlers = false;
        
     NodeModel() {
         this(new NodeState<T>());
@@ -34,6 +42,84 @@ public class NodeModel<T> {
         return root;
     }
     
+    /**
+     * Return the state with the specified id, as assigned by <code>compile()</code>.
+     * @param id state id
+     * @return the state, or null if no state has that id
+     */
+    synchronized NodeState<T> getState(int id) {
+        return (id >= 0 && id < states.size()) ? states.get(id) : null;
+    }
+
+    /**
+     * Walk every state reachable from the root, assigning ids to any that do 
+     * not yet have one and building dispatch tables for any that have been
+     * modified since they were last compiled.
+     */
+    void compile() {
+        compile(root);
+    }
+
+    synchronized void compile(NodeState<T> start) {
+        Deque<NodeState<T>> queue = new ArrayDeque<NodeState<T>>();
+        Set<NodeState<T>> visited = new HashSet<NodeState<T>>();
+        queue.add(start);
+        while (!queue.isEmpty()) {
+            NodeState<T> state = queue.removeFirst();
+            if (!visited.add(state)) {
+                continue;
+            }
+            if (state.getId() == -1) {
+                state.setId(states.size());
+                states.add(state);
+            }
+            if (!state.isCompiled()) {
+                state.compile();
+            }
+            for (NodeTransition<T> t : state.getTransitions()) {
+                queue.add(t.getTarget());
+            }
+            for (NodeTransition<T> t : state.getDescendantRules()) {
+                queue.add(t.getTarget());
+            }
+        }
+    }
+
+    /**
+     * Merge equivalent states, then renumber the states that remain reachable 
+     * and trim their storage.
+     * @see StateMinimizer
+     */
+    synchronized void minimize() {
+        new StateMinimizer<T>(states).minimize();
+        for (NodeState<T> state : states) {
+            state.setId(-1);
+        }
+        states = new ArrayList<NodeState<T>>();
+        compile(root);
+        for (NodeState<T> state : states) {
+            state.trim();
+        }
+    }
+
+    /**
+     * Return whether any state may have an <code>ElementBytesHandler</code>,
+     * so that a parser needs to keep the bytes of recent input.  This is 
+     * true of every model with lazily built sub-models, since any of them 
+     * could attach one.
+     */
+    boolean mayHaveBytesHandlers() {
+        return bytesHandlers;
+    }
+
+    void setMayHaveBytesHandlers() {
+        bytesHandlers = true;
+    }
+
+    int getStateCount() {
+        return states.size();
+    }
+
     void addDeclarationHandler(DeclarationHandler<T> handler) {
         dtdHandlers.add(handler);
     }
@@ -1,6 +1,6 @@
 package net.sundell.snax;
 
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
@@ -25,13 +25,25 @@ import java.util.Map;
 public class NodeModelBuilder<T> extends Selectable<T> {
 
     private NodeModel<T> model;
+    // The model built by the outermost builder.  This differs from model
+    // for the sub-builders that are passed to ElementHandler.build().
+    private NodeModel<T> rootModel;
+    private boolean lazy = false;
+    private boolean minimize = false;
 
     public NodeModelBuilder() {
         this.model = new NodeModel<T>();
+        this.rootModel = model;
     }
     
-    NodeModelBuilder(NodeModel<T> model) {
+    /**
+     * Create a builder for a sub-model rooted at a state within
+     * an enclosing model.
+     */
+    NodeModelBuilder(NodeModel<T> model, NodeModel<T> rootModel, boolean lazy) {
         this.model = model;
+        this.rootModel = rootModel;
+        this.lazy = lazy;
     }
     
     @Override
@@ -52,39 +64,103 @@ public class NodeModelBuilder<T> extends Selectable<T> {
         model.addDeclarationHandler(handler);
     }
     
+    /**
+     * Enable or disable lazy construction of nested models.  By default, 
+     * <code>build()</code> calls <code>build()</code> on every attached 
+     * <code>ElementHandler</code>, recursively, before returning.  When lazy
+     * construction is enabled, each handler's <code>build()</code> is instead
+     * called the first time a parser enters the element it is attached to, so
+     * parts of a large model that a document never reaches are never built.
+     * <p>
+     * The resulting model may still be shared by parsers running on several
+     * threads.  Each deferred build is run once, under a lock, and never 
+     * modifies a state that a parser could be using: it builds into new
+     * states and copies of the ones it extends, which are published only
+     * once complete.  Its results are seen by every parser that later enters
+     * the same element.
+     * 
+     * @param lazy true to defer handler <code>build()</code> calls until parsing
+     */
+    public final void setLazy(boolean lazy) {
+        this.lazy = lazy;
+    }
+
+    /**
+     * Enable or disable minimization of the built model.  When enabled, 
+     * <code>build()</code> merges states that would behave identically during 
+     * parsing: states with equal transition tests and descendant rules leading 
+     * to equivalent states, and the same attached handlers.  This is useful for
+     * large or generated models, in which the same structure is often selected
+     * many times.
+     * <p>
+     * Selectors should not be modified after a minimized model has been built.
+     * If lazy construction is also enabled, sub-models built during parsing
+     * are not minimized.
+     * 
+     * @param minimize true to merge equivalent states
+     */
+    public final void setMinimize(boolean minimize) {
+        this.minimize = minimize;
+    }
+
     /**
      * Generate a {@link NodeModel} for use in parsing, based on the selectors
      * and handlers attached to this builder.
      * <p>
      * This will also trigger a cascade <code>build()</code> calls on any attached 
-     * <code>ElementHandler</code> instances.
+     * <code>ElementHandler</code> instances.  Once all selectors are in place, the
+     * model is compiled into per-state dispatch tables, so that transitions that 
+     * require a particular element name are found by a lookup on that name rather 
+     * than by testing every transition in turn.
      * 
      * @return <code>NodeModel</code> for parsing
      */
     public final NodeModel<T> build() {
      	for (Map.Entry<NodeState<T>, List<ElementHandler<T>>> e : statesWithHandlers.entrySet()) {
-    	    NodeState<T> state = e.getKey();
-    	    // Run a sub-builder rooted here for each handler
-    	    // Inject into model
-    	    NodeModel<T> subModel = new NodeModel<T>(state);
-    	    NodeModelBuilder<T> subBuilder = new NodeModelBuilder<T>(subModel);
-    	    for (ElementHandler<T> handler : e.getValue()) {
-    	        handler.build(subBuilder);
+     	    if (lazy) {
+     	        rootModel.setMayHaveBytesHandlers();
+     	        e.getKey().deferBuild(rootModel, e.getValue());
+     	    }
+     	    else {
+     	        buildSubModel(rootModel, e.getKey(), e.getValue(), false);
+     	    }
+    	}
+    	if (model == rootModel) {
+    	    model.compile();
+    	    if (minimize) {
+    	        model.minimize();
     	    }
-    	    // A recursive call is necessary to pick up layers of nesting
-    	    // beyond the first
-    	    subBuilder.build();
     	}
-        
     	return model;
     }
+
+    /**
+     * Run a sub-builder rooted at the specified state for each handler, 
+     * injecting the results into the model.
+     */
+    static <T> void buildSubModel(NodeModel<T> rootModel, NodeState<T> state, 
+                List<ElementHandler<T>> handlers, boolean lazy) {
+        NodeModel<T> subModel = new NodeModel<T>(state);
+        NodeModelBuilder<T> subBuilder = new NodeModelBuilder<T>(subModel, rootModel, lazy);
+        for (ElementHandler<T> handler : handlers) {
+            handler.build(subBuilder);
+        }
+        // A recursive call is necessary to pick up layers of nesting
+        // beyond the first
+        subBuilder.build();
+    }
     
     // Would like to use google-collect MultiMap here...
+    // Insertion order is kept so that handler build() calls, and therefore
+    // state ids, are the same every time a model is built.
     private Map<NodeState<T>, List<ElementHandler<T>>> statesWithHandlers = 
-        new HashMap<NodeState<T>, List<ElementHandler<T>>>();
+        new LinkedHashMap<NodeState<T>, List<ElementHandler<T>>>();
     
     void addElementHandler(NodeState<T> state, ElementHandler<T> handler) {
         state.addElementHandler(handler);
+        if (handler instanceof ElementBytesHandler) {
+            rootModel.setMayHaveBytesHandlers();
+        }
         List<ElementHandler<T>> handlers = statesWithHandlers.get(state);
         if (handlers == null) {
             handlers = new ArrayList<ElementHandler<T>>();
@@ -1,9 +1,15 @@
 package net.sundell.snax;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import javax.xml.namespace.QName;
 import javax.xml.stream.events.Characters;
 import javax.xml.stream.events.EndElement;
 import javax.xml.stream.events.StartElement;
@@ -19,6 +25,40 @@ class NodeState <T>{
     private List<NodeTransition<T>> descendantRules = new ArrayList<NodeTransition<T>>();
     static final int NO_ONLY_LIMIT = Integer.MAX_VALUE;
     private int onlyValue = NO_ONLY_LIMIT;
+    // 1-based range of positions, among the siblings that reach this state
+    // from the same parent, of the elements that may enter it
+    private int positionFrom = 1, positionTo = NO_ONLY_LIMIT;
+    // Either every nth element entering this state is sampled, or a random
+    // fraction of them; see ElementSelector.sample()
+    private int sampleInterval = 0;
+    private double sampleFraction = 1.0;
+    private long sampleSeed;
+    // What takes the place of elements entering this state when a document
+    // is transformed, or null if they are copied
+    private ElementReplacer<T> replacer;
+
+    // Dispatch tables built by compile(), published together so that a parser
+    // never sees some tables from before a change and some from after it.
+    // They are discarded whenever the state is modified, in which case the
+    // lists above are used directly.
+    private int id = -1;
+    private volatile Tables<T> tables;
+    // Set once the state has been compiled, after which parsers may be using
+    // it.  A shared state is not modified again; lazy builds copy it instead.
+    private volatile boolean shared;
+
+    // Build-time indexes of transitions and descendant rules by the element name
+    // their test requires, so that duplicate tests can be found without comparing
+    // against every existing entry.  These are only created for large states.
+    private static final int INDEX_THRESHOLD = 8;
+    private Map<QName, List<NodeTransition<T>>> transitionIndex;
+    private Map<QName, List<NodeTransition<T>>> descendantRuleIndex;
+
+    // Handlers whose build() calls have been deferred until a parser first 
+    // enters this state.  See NodeModelBuilder.setLazy().
+    private volatile boolean built = true;
+    private NodeModel<T> pendingModel;
+    private List<ElementHandler<T>> pendingHandlers;
     
     public NodeState() { }
 
@@ -45,6 +85,340 @@ class NodeState <T>{
         this.onlyValue = onlyValue;
     }
 
+    void setPositions(int from, int to) {
+        this.positionFrom = from;
+        this.positionTo = to;
+    }
+
+    boolean hasPositions() {
+        return positionFrom != 1 || positionTo != NO_ONLY_LIMIT;
+    }
+
+    boolean isInPositions(int position) {
+        return position >= positionFrom && position <= positionTo;
+    }
+
+    void setSampling(int interval, double fraction, long seed) {
+        this.sampleInterval = interval;
+        this.sampleFraction = fraction;
+        this.sampleSeed = seed;
+    }
+
+    boolean isSampled() {
+        return sampleInterval > 1 || sampleFraction < 1.0;
+    }
+
+    int getSampleInterval() {
+        return sampleInterval;
+    }
+
+    double getSampleFraction() {
+        return sampleFraction;
+    }
+
+    long getSampleSeed() {
+        return sampleSeed;
+    }
+
+    void setReplacer(ElementReplacer<T> replacer) {
+        if (this.replacer != null && this.replacer != replacer) {
+            throw new IllegalStateException("Element already has a replacement");
+        }
+        this.replacer = replacer;
+    }
+
+    ElementReplacer<T> getReplacer() {
+        return replacer;
+    }
+
+    /**
+     * Return the id assigned to this state when its model was compiled, 
+     * or -1 if it has not been compiled.
+     */
+    int getId() {
+        return id;
+    }
+
+    void setId(int id) {
+        this.id = id;
+    }
+
+    boolean isCompiled() {
+        return tables != null;
+    }
+
+    /**
+     * Defer the <code>build()</code> calls of the specified handlers until
+     * <code>ensureBuilt()</code> is called.
+     * @param model the model that contains this state
+     * @param handlers handlers attached to this state
+     */
+    synchronized void deferBuild(NodeModel<T> model, List<ElementHandler<T>> handlers) {
+        if (pendingHandlers == null) {
+            pendingHandlers = new ArrayList<ElementHandler<T>>();
+        }
+        pendingHandlers.addAll(handlers);
+        pendingModel = model;
+        built = false;
+    }
+
+    boolean isBuilt() {
+        return built;
+    }
+
+    /**
+     * Release unused capacity in this state's lists and drop its 
+     * build-time indexes.
+     */
+    void trim() {
+        for (List<?> list : Arrays.asList(transitions, elementHandlers, descendantRules)) {
+            if (list instanceof ArrayList) {
+                ((ArrayList<?>)list).trimToSize();
+            }
+        }
+        transitionIndex = null;
+        descendantRuleIndex = null;
+    }
+
+    /**
+     * Run any deferred handler <code>build()</code> calls.  This must be called 
+     * before the state's transitions or descendant rules are used.
+     */
+    void ensureBuilt() {
+        if (!built) {
+            buildPending();
+        }
+    }
+
+    /**
+     * Run the deferred builds.  Parsers on other threads may already be
+     * using this state, and every state it leads to, so the sub-model is
+     * built into a copy of this state; any existing state that the sub-model
+     * extends is copied in turn (see <code>unsharedTarget()</code>).  Once
+     * the new states are compiled, this state takes over the copy's contents
+     * and publishes its new tables in a single write.
+     */
+    private synchronized void buildPending() {
+        if (built) {
+            return;
+        }
+        NodeState<T> draft = copyContents();
+        NodeModelBuilder.buildSubModel(pendingModel, draft, pendingHandlers, true);
+        transitions = draft.transitions;
+        elementHandlers = draft.elementHandlers;
+        descendantRules = draft.descendantRules;
+        transitionIndex = null;
+        descendantRuleIndex = null;
+        pendingModel.compile(this);
+        compile();
+        pendingModel = null;
+        pendingHandlers = null;
+        built = true;
+    }
+
+    /**
+     * Return an unshared copy of this state that a lazy build can modify.  If
+     * this state's own build is still pending, so is the copy's.
+     */
+    synchronized NodeState<T> copy() {
+        NodeState<T> copy = copyContents();
+        if (!built) {
+            copy.deferBuild(pendingModel, pendingHandlers);
+        }
+        return copy;
+    }
+
+    private NodeState<T> copyContents() {
+        NodeState<T> copy = new NodeState<T>(new ArrayList<NodeTransition<T>>(transitions),
+                new ArrayList<ElementHandler<T>>(elementHandlers),
+                new ArrayList<NodeTransition<T>>(descendantRules));
+        copy.onlyValue = onlyValue;
+        copy.positionFrom = positionFrom;
+        copy.positionTo = positionTo;
+        copy.setSampling(sampleInterval, sampleFraction, sampleSeed);
+        copy.replacer = replacer;
+        return copy;
+    }
+
+    /**
+     * Build the dispatch tables used during parsing.  Transitions whose test
+     * requires a particular element name are indexed by that name; each index
+     * entry also contains the transitions that can match any name, so that 
+     * the original transition priority is preserved.  Entries in which many
+     * transitions require different values of one attribute are also indexed
+     * by that value.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    void compile() {
+        Map<QName, List<NodeTransition<T>>> byName = 
+                new HashMap<QName, List<NodeTransition<T>>>();
+        List<NodeTransition<T>> unnamed = new ArrayList<NodeTransition<T>>();
+        for (NodeTransition<T> transition : transitions) {
+            QName name = transition.getElementName();
+            if (name == null) {
+                for (List<NodeTransition<T>> l : byName.values()) {
+                    l.add(transition);
+                }
+                unnamed.add(transition);
+            }
+            else {
+                List<NodeTransition<T>> l = byName.get(name);
+                if (l == null) {
+                    l = new ArrayList<NodeTransition<T>>(unnamed);
+                    byName.put(name, l);
+                }
+                l.add(transition);
+            }
+        }
+        Map<QName, NodeTransition<T>[]> named = 
+                new HashMap<QName, NodeTransition<T>[]>(byName.size() * 2);
+        Map<QName, ValueIndex<T>> valueIndexes = Collections.emptyMap();
+        for (Map.Entry<QName, List<NodeTransition<T>>> e : byName.entrySet()) {
+            NodeTransition<T>[] l = e.getValue().toArray(new NodeTransition[e.getValue().size()]);
+            named.put(e.getKey(), l);
+            ValueIndex<T> index = ValueIndex.create(l);
+            if (index != null) {
+                if (valueIndexes.isEmpty()) {
+                    valueIndexes = new HashMap<QName, ValueIndex<T>>();
+                }
+                valueIndexes.put(e.getKey(), index);
+            }
+        }
+        tables = new Tables<T>(named, valueIndexes,
+                unnamed.toArray(new NodeTransition[unnamed.size()]),
+                handlersFor(START_CALLBACK).toArray(new ElementHandler[0]),
+                handlersFor(END_CALLBACK).toArray(new ElementHandler[0]),
+                handlersFor(CONTENT_CALLBACK).toArray(new ElementHandler[0]),
+                rangeHandlers().toArray(new ElementRangeHandler[0]),
+                bytesHandlers().toArray(new ElementBytesHandler[0]),
+                Collections.unmodifiableList(new ArrayList<NodeTransition<T>>(descendantRules)));
+        shared = true;
+    }
+
+    /**
+     * The dispatch tables of a compiled state.  These are never modified;
+     * a state that changes is given new ones.
+     */
+    private static final class Tables<T> {
+        final Map<QName, NodeTransition<T>[]> namedTransitions;
+        // Indexes by attribute value of the larger entries above
+        final Map<QName, ValueIndex<T>> valueIndexes;
+        final NodeTransition<T>[] unnamedTransitions;
+        // Handlers for each kind of event, leaving out DefaultElementHandlers
+        // that don't override the method for it
+        final ElementHandler<T>[] startHandlers;
+        final ElementHandler<T>[] endHandlers;
+        final ElementHandler<T>[] contentHandlers;
+        final ElementRangeHandler<T>[] rangeHandlers;
+        final ElementBytesHandler<T>[] bytesHandlers;
+        final List<NodeTransition<T>> descendantRules;
+        // Descendant rules in scope inside the state, keyed by the rules in
+        // scope around it.  Shared by all parsers using the model.
+        final Map<DescendantRuleSet<T>, DescendantRuleSet<T>> inheritedRules =
+                new ConcurrentHashMap<DescendantRuleSet<T>, DescendantRuleSet<T>>();
+
+        Tables(Map<QName, NodeTransition<T>[]> namedTransitions,
+               Map<QName, ValueIndex<T>> valueIndexes,
+               NodeTransition<T>[] unnamedTransitions, ElementHandler<T>[] startHandlers,
+               ElementHandler<T>[] endHandlers, ElementHandler<T>[] contentHandlers,
+               ElementRangeHandler<T>[] rangeHandlers, ElementBytesHandler<T>[] bytesHandlers,
+               List<NodeTransition<T>> descendantRules) {
+            this.namedTransitions = namedTransitions;
+            this.valueIndexes = valueIndexes;
+            this.unnamedTransitions = unnamedTransitions;
+            this.startHandlers = startHandlers;
+            this.endHandlers = endHandlers;
+            this.contentHandlers = contentHandlers;
+            this.rangeHandlers = rangeHandlers;
+            this.bytesHandlers = bytesHandlers;
+            this.descendantRules = descendantRules;
+        }
+    }
+
+    // Handler methods, as bits
+    private static final int START_CALLBACK = 1, END_CALLBACK = 2, CONTENT_CALLBACK = 4, 
+            ALL_CALLBACKS = 7;
+    private static final Map<Class<?>, Integer> callbacksByClass = 
+            new ConcurrentHashMap<Class<?>, Integer>();
+
+    private List<ElementHandler<T>> handlersFor(int callback) {
+        List<ElementHandler<T>> l = new ArrayList<ElementHandler<T>>(elementHandlers.size());
+        for (ElementHandler<T> handler : elementHandlers) {
+            if ((callbacks(handler) & callback) != 0) {
+                l.add(handler);
+            }
+        }
+        return l;
+    }
+
+    /**
+     * Find which of the handler methods a handler implements.  Handlers that
+     * extend DefaultElementHandler implement those they override; any other
+     * handler is assumed to implement them all.
+     */
+    static int callbacks(ElementHandler<?> handler) {
+        if (!(handler instanceof DefaultElementHandler)) {
+            return ALL_CALLBACKS;
+        }
+        Class<?> c = handler.getClass();
+        Integer callbacks = callbacksByClass.get(c);
+        if (callbacks == null) {
+            try {
+                callbacks = 0;
+                if (overrides(c, "startElement", StartElement.class, Object.class)) {
+                    callbacks |= START_CALLBACK;
+                }
+                if (overrides(c, "endElement", EndElement.class, Object.class)) {
+                    callbacks |= END_CALLBACK;
+                }
+                if (overrides(c, "characters", StartElement.class, Characters.class, Object.class)) {
+                    callbacks |= CONTENT_CALLBACK;
+                }
+            }
+            catch (NoSuchMethodException e) {
+                callbacks = ALL_CALLBACKS;
+            }
+            catch (SecurityException e) {
+                callbacks = ALL_CALLBACKS;
+            }
+            callbacksByClass.put(c, callbacks);
+        }
+        return callbacks;
+    }
+
+    // A generic override is found through the bridge method that the 
+    // compiler adds to the overriding class
+    private static boolean overrides(Class<?> c, String name, Class<?>... params) 
+                throws NoSuchMethodException {
+        return c.getMethod(name, params).getDeclaringClass() != DefaultElementHandler.class;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<ElementRangeHandler<T>> rangeHandlers() {
+        List<ElementRangeHandler<T>> l = new ArrayList<ElementRangeHandler<T>>();
+        for (ElementHandler<T> handler : elementHandlers) {
+            if (handler instanceof ElementRangeHandler) {
+                l.add((ElementRangeHandler<T>)handler);
+            }
+        }
+        return l;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<ElementBytesHandler<T>> bytesHandlers() {
+        List<ElementBytesHandler<T>> l = new ArrayList<ElementBytesHandler<T>>();
+        for (ElementHandler<T> handler : elementHandlers) {
+            if (handler instanceof ElementBytesHandler) {
+                l.add((ElementBytesHandler<T>)handler);
+            }
+        }
+        return l;
+    }
+
+    private void invalidate() {
+        tables = null;
+    }
+
     /**
      * Immutable empty state returned when nodes can not transition anywhere else.
      */
@@ -56,7 +430,9 @@ class NodeState <T>{
         List<NodeTransition> transitions = Collections.emptyList();
         List<ElementHandler> elementHandlers = Collections.emptyList();
         List<ElementHandler> descendantRules = Collections.emptyList();
-        return new NodeState(transitions, elementHandlers, descendantRules);
+        NodeState state = new NodeState(transitions, elementHandlers, descendantRules);
+        state.compile();
+        return state;
     }
     
     @SuppressWarnings("unchecked")
@@ -67,7 +443,8 @@ class NodeState <T>{
     /**
      * Add a transition to another node state based on the specified test.  Only
      * one transition is allowed for a given test, so if a duplicate test is 
-     * added, the existing target node will be returned.
+     * added, the existing target node will be returned, or an unshared copy
+     * of it if the target is shared.
      * @param test
      * @param targetState
      * @return node that the transition leads to
@@ -75,18 +452,23 @@ class NodeState <T>{
     NodeState<T> addTransition(ElementConstraint test, NodeState<T> targetState) {
     	assert (test != null);
     	assert (targetState != null);
-        for (NodeTransition<T> transition : transitions) {
+        QName name = NodeTransition.getElementName(test);
+        for (NodeTransition<T> transition : candidates(transitions, transitionIndex, name)) {
             if (transition.getTest().equals(test)) {
-                return transition.getTarget();
+                return unsharedTarget(transitions, transitionIndex, transition);
             }
         }
-        transitions.add(new NodeTransition<T>(test, targetState));
+        NodeTransition<T> transition = new NodeTransition<T>(test, targetState);
+        transitions.add(transition);
+        transitionIndex = addToIndex(transitions, transitionIndex, name, transition);
+        invalidate();
         //System.out.println("Added " + this + " --" + test + "-->" + targetState);
         return targetState;
     }
     
     void addElementHandler(ElementHandler<T> handler) {
         this.elementHandlers.add(handler);
+        invalidate();
     }
 
     List<NodeTransition<T>> getDescendantRules() {
@@ -96,15 +478,105 @@ class NodeState <T>{
     NodeState<T> addDescendantRule(ElementSelector<T> selector) {
         // TODO: refactor this use of new
         ElementConstraint test = new ElementSelector.ElementSelectorTest<T>(selector);
-        for (NodeTransition<T> rule : descendantRules) {
+        QName name = NodeTransition.getElementName(test);
+        for (NodeTransition<T> rule : candidates(descendantRules, descendantRuleIndex, name)) {
             if (test.equals(rule.getTest())) {
-                return rule.getTarget();
+                return unsharedTarget(descendantRules, descendantRuleIndex, rule);
             }
         }
         NodeState<T> target = new NodeState<T>();
-        descendantRules.add(new NodeTransition<T>(test, target));
+        NodeTransition<T> rule = new NodeTransition<T>(test, target);
+        descendantRules.add(rule);
+        descendantRuleIndex = addToIndex(descendantRules, descendantRuleIndex, name, rule);
+        invalidate();
         return target;
     }
+
+    /**
+     * Return the target of an existing transition or descendant rule, so that
+     * a selector can modify it.  A shared target may be in use by parsers, so
+     * the entry is first replaced by one leading to a copy of the target.
+     */
+    private NodeState<T> unsharedTarget(List<NodeTransition<T>> list,
+                Map<QName, List<NodeTransition<T>>> index, NodeTransition<T> transition) {
+        NodeState<T> target = transition.getTarget();
+        if (!target.shared) {
+            return target;
+        }
+        NodeTransition<T> replacement = new NodeTransition<T>(transition.getTest(), target.copy());
+        list.set(list.indexOf(transition), replacement);
+        if (index != null) {
+            List<NodeTransition<T>> l = index.get(transition.getElementName());
+            l.set(l.indexOf(transition), replacement);
+        }
+        invalidate();
+        return replacement.getTarget();
+    }
+
+    /**
+     * Return the descendant rules in scope inside this state.
+     * @param outerRules rules in scope around this state
+     * @return outerRules, preceded by this state's own descendant rules
+     */
+    DescendantRuleSet<T> inheritRules(DescendantRuleSet<T> outerRules) {
+        Tables<T> t = tables;
+        if (t == null) {
+            return descendantRules.isEmpty() ? outerRules : outerRules.inherit(descendantRules);
+        }
+        if (t.descendantRules.isEmpty()) {
+            return outerRules;
+        }
+        DescendantRuleSet<T> rules = t.inheritedRules.get(outerRules);
+        if (rules == null) {
+            rules = outerRules.inherit(t.descendantRules);
+            t.inheritedRules.put(outerRules, rules);
+        }
+        return rules;
+    }
+
+    /**
+     * Return the entries of a transition list that could have a test equal
+     * to one requiring the specified element name.
+     */
+    private static <T> List<NodeTransition<T>> candidates(List<NodeTransition<T>> list, 
+                Map<QName, List<NodeTransition<T>>> index, QName name) {
+        if (index == null) {
+            return list;
+        }
+        List<NodeTransition<T>> l = index.get(name);
+        return (l != null) ? l : Collections.<NodeTransition<T>>emptyList();
+    }
+
+    /**
+     * Record a newly added transition in an index, creating the index once
+     * the list has grown large enough to need one.
+     * @return the index, or null if the list is still small
+     */
+    private static <T> Map<QName, List<NodeTransition<T>>> addToIndex(List<NodeTransition<T>> list, 
+                Map<QName, List<NodeTransition<T>>> index, QName name, NodeTransition<T> transition) {
+        if (index == null) {
+            if (list.size() < INDEX_THRESHOLD) {
+                return null;
+            }
+            index = new HashMap<QName, List<NodeTransition<T>>>();
+            for (NodeTransition<T> t : list) {
+                addToIndex(index, t.getElementName(), t);
+            }
+            return index;
+        }
+        addToIndex(index, name, transition);
+        return index;
+    }
+
+    private static <T> void addToIndex(Map<QName, List<NodeTransition<T>>> index, QName name,
+                NodeTransition<T> transition) {
+        List<NodeTransition<T>> l = index.get(name);
+        if (l == null) {
+            l = new ArrayList<NodeTransition<T>>(2);
+            index.put(name, l);
+        }
+        l.add(transition);
+    }
     
     /**
      * Attempt to process a node event and transition to a new state.  If no suitable
@@ -113,33 +585,137 @@ class NodeState <T>{
      * @return the new state, or the empty state
      */  
     NodeState<T> follow(StartElement element) {
+        NodeTransition<T> transition = findTransition(element);
+        return (transition != null) ? transition.getTarget() : emptyState();
+    }
+
+    /**
+     * Find the first transition whose test matches the element.
+     * @param element
+     * @return the matching transition, or null
+     */
+    NodeTransition<T> findTransition(StartElement element) {
         assert (element != null);
-        for (NodeTransition<T> transition : transitions) {
-            if (transition.getTest().matches(element)) {
-                return transition.getTarget();
+        Tables<T> t = tables;
+        if (t == null) {
+            for (NodeTransition<T> transition : transitions) {
+                if (transition.getTest().matches(element)) {
+                    return transition;
+                }
+            }
+            return null;
+        }
+        NodeTransition<T>[] candidates = null;
+        if (!t.namedTransitions.isEmpty()) {
+            QName name = element.getName();
+            ValueIndex<T> index = t.valueIndexes.isEmpty() ? null : t.valueIndexes.get(name);
+            candidates = (index != null) ? index.candidates(element) : t.namedTransitions.get(name);
+        }
+        if (candidates == null) {
+            candidates = t.unnamedTransitions;
+        }
+        for (int i = 0; i < candidates.length; i++) {
+            if (candidates[i].getTest().matches(element)) {
+                return candidates[i];
             }
         }
-        return emptyState();
+        return null;
     }
     
     void handleElementStart(StartElement element, T data) throws SNAXUserException {
-        for (ElementHandler<T> e : elementHandlers) {
-            e.startElement(element, data);
+        Tables<T> t = tables;
+        ElementHandler<T>[] handlers = (t != null) ? t.startHandlers : null;
+        if (handlers == null) {
+            for (ElementHandler<T> e : elementHandlers) {
+                e.startElement(element, data);
+            }
+            return;
+        }
+        for (int i = 0; i < handlers.length; i++) {
+            handlers[i].startElement(element, data);
         }
     }
     
+    /**
+     * Check whether any handler of this state receives text.
+     */
+    boolean hasContentHandlers() {
+        Tables<T> t = tables;
+        ElementHandler<T>[] handlers = (t != null) ? t.contentHandlers : null;
+        return (handlers == null) ? !handlersFor(CONTENT_CALLBACK).isEmpty() : handlers.length > 0;
+    }
+
     void handleContents(StartElement parent, Characters contents, T data) throws SNAXUserException {
-        for (ElementHandler<T> e : elementHandlers) {
-            e.characters(parent, contents, data);
+        Tables<T> t = tables;
+        ElementHandler<T>[] handlers = (t != null) ? t.contentHandlers : null;
+        if (handlers == null) {
+            for (ElementHandler<T> e : elementHandlers) {
+                e.characters(parent, contents, data);
+            }
+            return;
+        }
+        for (int i = 0; i < handlers.length; i++) {
+            handlers[i].characters(parent, contents, data);
         }
     }
     
     void handleElementEnd(EndElement element, T data) throws SNAXUserException {
-        for (ElementHandler<T> e : elementHandlers) {
-            e.endElement(element, data);
+        Tables<T> t = tables;
+        ElementHandler<T>[] handlers = (t != null) ? t.endHandlers : null;
+        if (handlers == null) {
+            for (ElementHandler<T> e : elementHandlers) {
+                e.endElement(element, data);
+            }
+            return;
+        }
+        for (int i = 0; i < handlers.length; i++) {
+            handlers[i].endElement(element, data);
         }
     }
     
+    boolean hasRangeHandlers() {
+        Tables<T> t = tables;
+        ElementRangeHandler<T>[] handlers = (t != null) ? t.rangeHandlers : null;
+        return (handlers == null) ? !rangeHandlers().isEmpty() : handlers.length > 0;
+    }
+
+    void handleElementRange(StartElement element, long startOffset, long endOffset,
+                            List<Checkpoint.Frame> context, T data) throws SNAXUserException {
+        Tables<T> t = tables;
+        ElementRangeHandler<T>[] handlers = (t != null) ? t.rangeHandlers : null;
+        if (handlers == null) {
+            for (ElementRangeHandler<T> e : rangeHandlers()) {
+                e.elementRange(element, startOffset, endOffset, context, data);
+            }
+            return;
+        }
+        for (int i = 0; i < handlers.length; i++) {
+            handlers[i].elementRange(element, startOffset, endOffset, context, data);
+        }
+    }
+
+    boolean hasBytesHandlers() {
+        Tables<T> t = tables;
+        ElementBytesHandler<T>[] handlers = (t != null) ? t.bytesHandlers : null;
+        return (handlers == null) ? !bytesHandlers().isEmpty() : handlers.length > 0;
+    }
+
+    void handleElementBytes(StartElement element, ByteBuffer bytes, long startOffset, T data)
+                throws SNAXUserException {
+        Tables<T> t = tables;
+        ElementBytesHandler<T>[] handlers = (t != null) ? t.bytesHandlers : null;
+        if (handlers == null) {
+            for (ElementBytesHandler<T> e : bytesHandlers()) {
+                // Each handler gets its own position and limit
+                e.elementBytes(element, bytes.duplicate(), startOffset, data);
+            }
+            return;
+        }
+        for (int i = 0; i < handlers.length; i++) {
+            handlers[i].elementBytes(element, bytes.duplicate(), startOffset, data);
+        }
+    }
+
     @Override
     public String toString() {
     	return "NodeState[" + transitions.size() + "]";
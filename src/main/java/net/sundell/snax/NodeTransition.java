@@ -1,5 +1,7 @@
 package net.sundell.snax;
 
+import javax.xml.namespace.QName;
+
 class NodeTransition<T> {
 
     private ElementConstraint test;
@@ -18,6 +20,24 @@ class NodeTransition<T> {
         this.test = test;
     }
 
+    /**
+     * Return the element name that this transition's test requires, or 
+     * null if the test may match elements with any name.
+     */
+    QName getElementName() {
+        return getElementName(test);
+    }
+
+    static QName getElementName(ElementConstraint test) {
+        if (test instanceof ElementEqualsConstraint) {
+            return ((ElementEqualsConstraint)test).getQName();
+        }
+        if (test instanceof ElementSelector.ElementSelectorTest) {
+            return ((ElementSelector.ElementSelectorTest<?>)test).getElementName();
+        }
+        return null;
+    }
+
     NodeState<T> getTarget() {
         return target;
     }
@@ -0,0 +1,236 @@
+package net.sundell.snax;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+
+/**
+ * An index of the locations of elements in a document, by key.  Indexes are
+ * created by an {@link OffsetIndexBuilder} during a parse of the document,
+ * and can be saved to a file alongside it.  An element can then be looked up
+ * and parsed on its own with
+ * {@link SNAXParser#parse(java.nio.channels.FileChannel, java.nio.charset.Charset, Entry, Object)}.
+ * <p>
+ * Each entry records the element's byte range, and the ancestor elements that
+ * are open around it, along with their states in the model.  Entries with the
+ * same ancestors share a single copy of them.  As with {@link Checkpoint}s,
+ * an index can only be used with the model that produced it, or one built
+ * the same way.
+ */
+public class OffsetIndex {
+    private static final int MAGIC = 0x534E5849; // "SNXI"
+    private static final int VERSION = 1;
+
+    private List<List<Checkpoint.Frame>> contexts;
+    // Sorted by key, then by document order
+    private String[] keys;
+    private long[] starts;
+    private long[] ends;
+    private int[] contextIds;
+
+    OffsetIndex(List<List<Checkpoint.Frame>> contexts, String[] keys, long[] starts,
+                long[] ends, int[] contextIds) {
+        this.contexts = contexts;
+        this.keys = keys;
+        this.starts = starts;
+        this.ends = ends;
+        this.contextIds = contextIds;
+    }
+
+    /**
+     * Get the number of entries in the index.
+     * @return entry count
+     */
+    public int size() {
+        return keys.length;
+    }
+
+    /**
+     * Find the elements recorded under a key.
+     * @param key key
+     * @return entries for the key, in document order; empty if there are none
+     */
+    public List<Entry> find(String key) {
+        int i = Arrays.binarySearch(keys, key);
+        if (i < 0) {
+            return Collections.emptyList();
+        }
+        while (i > 0 && keys[i - 1].equals(key)) {
+            i--;
+        }
+        List<Entry> entries = new ArrayList<Entry>(1);
+        for (; i < keys.length && keys[i].equals(key); i++) {
+            entries.add(new Entry(keys[i], starts[i], ends[i], contexts.get(contextIds[i])));
+        }
+        return entries;
+    }
+
+    /**
+     * Write this index.  The stream is not closed.
+     * @param out destination
+     * @throws IOException
+     */
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.writeInt(MAGIC);
+        dos.writeShort(VERSION);
+        dos.writeInt(contexts.size());
+        for (List<Checkpoint.Frame> context : contexts) {
+            dos.writeInt(context.size());
+            for (Checkpoint.Frame frame : context) {
+                writeName(dos, frame.name);
+                dos.writeInt(frame.stateId);
+                dos.writeInt(frame.namespaces.size());
+                for (Map.Entry<String, String> ns : frame.namespaces.entrySet()) {
+                    writeString(dos, ns.getKey());
+                    writeString(dos, ns.getValue());
+                }
+                dos.writeInt(frame.attributes.size());
+                for (Map.Entry<QName, String> attr : frame.attributes.entrySet()) {
+                    writeName(dos, attr.getKey());
+                    writeString(dos, attr.getValue());
+                }
+            }
+        }
+        dos.writeInt(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            writeString(dos, keys[i]);
+            dos.writeLong(starts[i]);
+            dos.writeLong(ends[i] - starts[i]);
+            dos.writeInt(contextIds[i]);
+        }
+        dos.flush();
+    }
+
+    /**
+     * Read an index written by <code>write()</code>.  The stream is not closed.
+     * @param in source
+     * @return index
+     * @throws IOException if the stream does not contain an index
+     */
+    public static OffsetIndex read(InputStream in) throws IOException {
+        DataInputStream dis = new DataInputStream(in);
+        if (dis.readInt() != MAGIC) {
+            throw new IOException("Not an offset index");
+        }
+        int version = dis.readShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported offset index version " + version);
+        }
+        int contextCount = dis.readInt();
+        List<List<Checkpoint.Frame>> contexts = new ArrayList<List<Checkpoint.Frame>>(contextCount);
+        for (int i = 0; i < contextCount; i++) {
+            int frameCount = dis.readInt();
+            List<Checkpoint.Frame> context = new ArrayList<Checkpoint.Frame>(frameCount);
+            for (int j = 0; j < frameCount; j++) {
+                Checkpoint.Frame frame = new Checkpoint.Frame(readName(dis), dis.readInt());
+                for (int k = dis.readInt(); k > 0; k--) {
+                    frame.namespaces.put(readString(dis), readString(dis));
+                }
+                for (int k = dis.readInt(); k > 0; k--) {
+                    frame.attributes.put(readName(dis), readString(dis));
+                }
+                context.add(frame);
+            }
+            contexts.add(Collections.unmodifiableList(context));
+        }
+        int count = dis.readInt();
+        String[] keys = new String[count];
+        long[] starts = new long[count];
+        long[] ends = new long[count];
+        int[] contextIds = new int[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = readString(dis);
+            starts[i] = dis.readLong();
+            ends[i] = starts[i] + dis.readLong();
+            contextIds[i] = dis.readInt();
+            if (contextIds[i] < 0 || contextIds[i] >= contextCount) {
+                throw new IOException("Corrupt offset index");
+            }
+        }
+        return new OffsetIndex(contexts, keys, starts, ends, contextIds);
+    }
+
+    private static void writeName(DataOutputStream dos, QName name) throws IOException {
+        writeString(dos, name.getNamespaceURI());
+        writeString(dos, name.getLocalPart());
+        writeString(dos, name.getPrefix());
+    }
+
+    private static QName readName(DataInputStream dis) throws IOException {
+        return new QName(readString(dis), readString(dis), readString(dis));
+    }
+
+    // Strings are written as a length and UTF-8 bytes, rather than with
+    // writeUTF(), which is limited to 64K bytes
+    private static void writeString(DataOutputStream dos, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+    }
+
+    private static String readString(DataInputStream dis) throws IOException {
+        int length = dis.readInt();
+        if (length < 0) {
+            throw new IOException("Corrupt offset index");
+        }
+        byte[] bytes = new byte[length];
+        dis.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The location of an indexed element.
+     */
+    public static class Entry {
+        private String key;
+        private long startOffset, endOffset;
+        private List<Checkpoint.Frame> context;
+
+        Entry(String key, long startOffset, long endOffset, List<Checkpoint.Frame> context) {
+            this.key = key;
+            this.startOffset = startOffset;
+            this.endOffset = endOffset;
+            this.context = context;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * Get the byte offset of the start of the element's start tag.
+         * @return offset
+         */
+        public long getStartOffset() {
+            return startOffset;
+        }
+
+        /**
+         * Get the byte offset just past the end of the element's end tag.
+         * @return offset
+         */
+        public long getEndOffset() {
+            return endOffset;
+        }
+
+        List<Checkpoint.Frame> getContext() {
+            return context;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry[" + key + ", " + startOffset + "-" + endOffset + "]";
+        }
+    }
+}
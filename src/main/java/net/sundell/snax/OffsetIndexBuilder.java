@@ -0,0 +1,112 @@
+package net.sundell.snax;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.events.StartElement;
+
+/**
+ * An ElementHandler that records the location of each selected element in
+ * an {@link OffsetIndex}.  Attach it to the selector for the elements to be
+ * indexed, and parse the document from a byte stream with
+ * {@link SNAXParser#parse(java.io.InputStream, java.nio.charset.Charset, Object)}:
+ * <pre>
+ * final OffsetIndexBuilder&lt;Object&gt; indexer = new OffsetIndexBuilder&lt;Object&gt;(
+ *         new KeyExtractor&lt;Object&gt;() {
+ *             public String getKey(StartElement element, Object data) {
+ *                 return element.getAttributeByName(new QName("id")).getValue();
+ *             }
+ *         });
+ * NodeModel&lt;Object&gt; model = new NodeModelBuilder&lt;Object&gt;() {{
+ *     element("catalog").element("item").attach(indexer);
+ *     // ... other selectors
+ * }}.build();
+ * </pre>
+ * Entries accumulate across parses until <code>clear()</code> is called.
+ *
+ * @param <T> Data object type that will be passed to parse calls
+ */
+public class OffsetIndexBuilder<T> extends ElementRangeHandler<T> {
+
+    private KeyExtractor<T> keyExtractor;
+    private Map<List<Checkpoint.Frame>, Integer> contextIds =
+            new HashMap<List<Checkpoint.Frame>, Integer>();
+    private List<List<Checkpoint.Frame>> contexts = new ArrayList<List<Checkpoint.Frame>>();
+    private List<String> keys = new ArrayList<String>();
+    private long[] starts = new long[16];
+    private long[] ends = new long[16];
+    private int[] entryContexts = new int[16];
+
+    public OffsetIndexBuilder(KeyExtractor<T> keyExtractor) {
+        this.keyExtractor = keyExtractor;
+    }
+
+    @Override
+    void elementRange(StartElement element, long startOffset, long endOffset,
+                      List<Checkpoint.Frame> context, T data) {
+        String key = keyExtractor.getKey(element, data);
+        if (key == null) {
+            return;
+        }
+        Integer contextId = contextIds.get(context);
+        if (contextId == null) {
+            contextId = contexts.size();
+            contexts.add(context);
+            contextIds.put(context, contextId);
+        }
+        int n = keys.size();
+        if (n == starts.length) {
+            starts = Arrays.copyOf(starts, n * 2);
+            ends = Arrays.copyOf(ends, n * 2);
+            entryContexts = Arrays.copyOf(entryContexts, n * 2);
+        }
+        keys.add(key);
+        starts[n] = startOffset;
+        ends[n] = endOffset;
+        entryContexts[n] = contextId;
+    }
+
+    /**
+     * Create an index of the elements recorded so far.
+     * @return index
+     */
+    public OffsetIndex getIndex() {
+        int n = keys.size();
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        // Stable, so entries with the same key stay in document order
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return keys.get(a).compareTo(keys.get(b));
+            }
+        });
+        String[] sortedKeys = new String[n];
+        long[] sortedStarts = new long[n];
+        long[] sortedEnds = new long[n];
+        int[] sortedContexts = new int[n];
+        for (int i = 0; i < n; i++) {
+            sortedKeys[i] = keys.get(order[i]);
+            sortedStarts[i] = starts[order[i]];
+            sortedEnds[i] = ends[order[i]];
+            sortedContexts[i] = entryContexts[order[i]];
+        }
+        return new OffsetIndex(new ArrayList<List<Checkpoint.Frame>>(contexts),
+                               sortedKeys, sortedStarts, sortedEnds, sortedContexts);
+    }
+
+    /**
+     * Discard the elements recorded so far.
+     */
+    public void clear() {
+        contextIds.clear();
+        contexts.clear();
+        keys.clear();
+    }
+}
@@ -0,0 +1,526 @@
+package net.sundell.snax;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Parses a document made up of a long run of records in parallel.  The
+ * records must all be at the same path in the document, for example
+ * <code>/export/item</code>, and must be independent of each other: each
+ * part of the document is parsed by a separate {@link SNAXParser}, with its
+ * own data object.
+ * <p>
+ * The file is divided into chunks of roughly equal size, each starting at
+ * a record's start tag, which are found by searching the bytes of the file.
+ * Each chunk is memory-mapped and parsed as though the elements enclosing
+ * the records were open, so the model is in the same state for each record
+ * as it would be in a parse of the whole document.  Handlers for the
+ * enclosing elements see their start in the first chunk and their end
+ * in the last.
+ * <p>
+ * A search may find text that looks like a record's start tag but is not,
+ * for example inside a comment or a nested element of the same name.  So
+ * before any chunk is parsed, the markup of the chunk ahead of each 
+ * boundary is scanned, which is much quicker than parsing it, and a 
+ * boundary that does not fall between two records is dropped, joining the
+ * chunks on either side.  Each record is therefore handled exactly once.
+ * Chunk results are delivered in document order.
+ * <p>
+ * <code>only()</code> limits, and positions among the records, are counted
+ * separately for each chunk.
+ *
+ * @param <T> Data object type that will be passed to parse calls
+ */
+public class ParallelParser<T> {
+
+    /**
+     * Creates the data object for each chunk.
+     */
+    public interface DataFactory<T> {
+        T createData();
+    }
+
+    /**
+     * Combines the data objects of chunks.
+     */
+    public interface Merger<T> {
+        /**
+         * Combine the results of two consecutive parts of the document.
+         * @param first results of the earlier part
+         * @param second results of the later part
+         * @return combined results, which may be one of the arguments
+         */
+        T merge(T first, T second);
+    }
+
+    private static final int MIN_CHUNK_SIZE = 64 * 1024;
+    // Mappings are limited to 2GB
+    private static final long MAX_CHUNK_SIZE = 1L << 30;
+    private static final int SEARCH_WINDOW = 64 * 1024;
+
+    private XMLInputFactory factory;
+    private NodeModel<T> model;
+    private List<QName> recordPath;
+    private int chunkCount = Runtime.getRuntime().availableProcessors();
+    private ExecutorService executor;
+
+    /**
+     * Return a new ParallelParser.
+     * @param factory XMLInputFactory to use when creating input streams
+     * @param model NodeModel that defines the state machine to use when parsing
+     * @param recordPath names of the elements down to and including the
+     *        record element, starting with the document element
+     * @return a new parser
+     */
+    public static <T> ParallelParser<T> createParser(XMLInputFactory factory, NodeModel<T> model,
+                                                     QName... recordPath) {
+        if (recordPath.length == 0) {
+            throw new IllegalArgumentException("No record path");
+        }
+        return new ParallelParser<T>(factory, model, Arrays.asList(recordPath));
+    }
+
+    private ParallelParser(XMLInputFactory factory, NodeModel<T> model, List<QName> recordPath) {
+        this.factory = factory;
+        this.model = model;
+        this.recordPath = recordPath;
+    }
+
+    /**
+     * Set the number of chunks to divide a file into.  Small files may be
+     * divided into fewer chunks, and very large ones into more.  The default
+     * is the number of available processors.
+     * @param chunkCount number of chunks
+     */
+    public void setChunkCount(int chunkCount) {
+        if (chunkCount < 1) {
+            throw new IllegalArgumentException("Chunk count must be positive");
+        }
+        this.chunkCount = chunkCount;
+    }
+
+    /**
+     * Set the executor that chunks are parsed on.  If none is set, a thread
+     * pool is created for each parse.
+     * @param executor executor
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Parse a file.
+     * @param file file to parse
+     * @param charset encoding of the file; only UTF-8, UTF-16BE, UTF-16LE
+     *        and single-byte charsets are supported
+     * @param dataFactory creates a data object for each chunk
+     * @return the data object for each chunk, in document order
+     * @throws IOException if the file cannot be read
+     * @throws XMLStreamException if there is an error with the underlying XML
+     * @throws SNAXUserException if there is an error in an attached <code>ElementHandler</code>
+     */
+    public List<T> parse(FileChannel file, Charset charset, DataFactory<T> dataFactory)
+                throws IOException, XMLStreamException, SNAXUserException {
+        final List<T> results = new ArrayList<T>();
+        parse(file, charset, dataFactory, new Sink<T>() {
+            @Override
+            public void accept(T data) {
+                results.add(data);
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Parse a file, combining the chunk results as they become available.
+     * The merger is called on the calling thread, in document order, while
+     * later chunks are still being parsed.
+     * @param file file to parse
+     * @param charset encoding of the file
+     * @param dataFactory creates a data object for each chunk
+     * @param merger combines chunk results
+     * @return the combined result
+     * @throws IOException if the file cannot be read
+     * @throws XMLStreamException if there is an error with the underlying XML
+     * @throws SNAXUserException if there is an error in an attached <code>ElementHandler</code>
+     */
+    public T parse(FileChannel file, Charset charset, DataFactory<T> dataFactory,
+                   final Merger<T> merger) 
+                throws IOException, XMLStreamException, SNAXUserException {
+        final List<T> result = new ArrayList<T>(1);
+        parse(file, charset, dataFactory, new Sink<T>() {
+            @Override
+            public void accept(T data) {
+                if (result.isEmpty()) {
+                    result.add(data);
+                }
+                else {
+                    result.set(0, merger.merge(result.get(0), data));
+                }
+            }
+        });
+        return result.get(0);
+    }
+
+    private interface Sink<T> {
+        void accept(T data);
+    }
+
+    private void parse(FileChannel file, Charset charset, DataFactory<T> dataFactory, Sink<T> sink)
+                throws IOException, XMLStreamException, SNAXUserException {
+        Checkpoint first = SNAXParser.createParser(factory, model)
+                .findElement(file, charset, recordPath);
+        long size = file.size();
+        List<Long> boundaries = new ArrayList<Long>();
+        boundaries.add(0L);
+        if (first != null) {
+            findBoundaries(file, charset, first, size, boundaries);
+        }
+        boundaries.add(size);
+        List<Checkpoint.Frame> context = (first != null) ? first.getFrames()
+                : Collections.<Checkpoint.Frame>emptyList();
+        List<Checkpoint.Frame> none = Collections.emptyList();
+
+        ExecutorService pool = (executor != null) ? executor :
+                Executors.newFixedThreadPool(Math.min(chunkCount, boundaries.size() - 1));
+        List<Future<MarkupScanner>> scans = new ArrayList<Future<MarkupScanner>>();
+        List<Future<T>> futures = new ArrayList<Future<T>>();
+        try {
+            // Scan each chunk but the last, starting with the first record,
+            // to see where its markup, and its elements, end
+            for (int i = 0; i + 2 < boundaries.size(); i++) {
+                long from = (i == 0) ? first.getByteOffset() : boundaries.get(i);
+                scans.add(pool.submit(new MarkupScanner(file, size, charset, from,
+                                                        boundaries.get(i + 1), 0)));
+            }
+            // A boundary is at a record if the scans up to it end there, 
+            // outside any markup, with every element since the first record
+            // closed.  Chunks are parsed as soon as both their ends are known.
+            long start = 0;
+            MarkupScanner scan = null;
+            for (int i = 0; i < scans.size(); i++) {
+                long boundary = boundaries.get(i + 1);
+                if (scan == null || scan.getPosition() == boundaries.get(i)) {
+                    MarkupScanner next = get(scans.get(i));
+                    if (scan != null) {
+                        next.addDepth(scan.getDepth());
+                    }
+                    scan = next;
+                }
+                else {
+                    // The previous boundary was inside markup, so this chunk
+                    // has to be scanned again from where that markup ends
+                    scans.get(i).cancel(false);
+                    scan = new MarkupScanner(file, size, charset, scan.getPosition(), 
+                                             boundary, scan.getDepth()).call();
+                }
+                if (scan.getPosition() == boundary && scan.getDepth() == 0) {
+                    futures.add(pool.submit(new Chunk(file, charset, start, boundary,
+                            (start == 0) ? none : context, context, dataFactory)));
+                    start = boundary;
+                }
+            }
+            futures.add(pool.submit(new Chunk(file, charset, start, size,
+                    (start == 0) ? none : context, none, dataFactory)));
+            for (Future<T> future : futures) {
+                sink.accept(get(future));
+            }
+        }
+        finally {
+            // Interrupting a thread that is reading from the channel would
+            // close it, so only stop tasks that haven't started.
+            for (Future<MarkupScanner> future : scans) {
+                future.cancel(false);
+            }
+            for (Future<T> future : futures) {
+                future.cancel(false);
+            }
+            if (executor == null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private static <T> T get(Future<T> future) throws IOException, XMLStreamException {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof XMLStreamException) {
+                throw (XMLStreamException)cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new SNAXUserException(cause);
+        }
+    }
+
+    /**
+     * Find the start of a record near each chunk boundary.
+     */
+    private void findBoundaries(FileChannel file, Charset charset, Checkpoint first, long size,
+                                List<Long> boundaries) throws IOException {
+        QName name = recordPath.get(recordPath.size() - 1);
+        String tag = "<" + ((name.getPrefix().length() > 0) ?
+                name.getPrefix() + ":" + name.getLocalPart() : name.getLocalPart());
+        byte[] pattern = tag.getBytes(charset);
+        byte[][] terminators = new byte[][] {
+            " ".getBytes(charset), ">".getBytes(charset), "/".getBytes(charset),
+            "\t".getBytes(charset), "\n".getBytes(charset), "\r".getBytes(charset)
+        };
+        int unit = " ".getBytes(charset).length;
+
+        long start = first.getByteOffset();
+        int chunks = (int)Math.max(chunkCount, (size - start + MAX_CHUNK_SIZE - 1) / MAX_CHUNK_SIZE);
+        long chunkSize = Math.max(MIN_CHUNK_SIZE, (size - start) / chunks);
+        long last = 0;
+        for (long target = start + chunkSize; target < size; target += chunkSize) {
+            // Keep to character boundaries in multi-byte encodings
+            long from = Math.max(target - target % unit, last + unit);
+            long found = search(file, from, size, pattern, terminators, unit);
+            if (found == -1) {
+                break;
+            }
+            if (found != last) {
+                boundaries.add(found);
+                last = found;
+            }
+            target = Math.max(target, found);
+        }
+    }
+
+    private static long search(FileChannel file, long from, long size, byte[] pattern,
+                               byte[][] terminators, int unit) throws IOException {
+        int longest = pattern.length + unit;
+        for (long pos = from; pos + longest <= size; pos += SEARCH_WINDOW) {
+            long length = Math.min(SEARCH_WINDOW + longest, size - pos);
+            ByteBuffer window = file.map(FileChannel.MapMode.READ_ONLY, pos, length);
+            for (int i = 0; i + longest <= length; i += unit) {
+                if (matches(window, i, pattern) &&
+                        matchesAny(window, i + pattern.length, terminators)) {
+                    return pos + i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static boolean matches(ByteBuffer buffer, int offset, byte[] bytes) {
+        for (int j = 0; j < bytes.length; j++) {
+            if (buffer.get(offset + j) != bytes[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matchesAny(ByteBuffer buffer, int offset, byte[][] options) {
+        for (byte[] option : options) {
+            if (matches(buffer, offset, option)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Scans the text and markup of part of the file, without parsing it,
+     * to find where the markup around a chunk boundary ends and how many 
+     * elements are open there.  The scan must start outside any markup.
+     * Only the code units of the ASCII characters that delimit markup are 
+     * recognized, which is enough in the encodings that are supported.
+     */
+    private static class MarkupScanner implements Callable<MarkupScanner> {
+        private static final int WINDOW = 1 << 20;
+        private FileChannel file;
+        private long size, limit;
+        private int unit;
+        private boolean bigEndian;
+        private ByteBuffer window;
+        private long windowStart, windowEnd;
+        private long position;
+        private int depth;
+
+        MarkupScanner(FileChannel file, long size, Charset charset, long from, long limit,
+                      int depth) {
+            this.file = file;
+            this.size = size;
+            this.limit = limit;
+            byte[] space = " ".getBytes(charset);
+            this.unit = space.length;
+            this.bigEndian = (space[0] == 0);
+            this.position = from;
+            this.depth = depth;
+        }
+
+        /**
+         * Return the scan's limit if it falls outside markup, or else the 
+         * end of the markup around it.
+         */
+        long getPosition() {
+            return position;
+        }
+
+        /**
+         * Return the number of elements opened, less the number closed, 
+         * between the start of the scan and its position.
+         */
+        int getDepth() {
+            return depth;
+        }
+
+        void addDepth(int depth) {
+            this.depth += depth;
+        }
+
+        @Override
+        public MarkupScanner call() throws IOException {
+            while (position < limit) {
+                position = (charAt(position) == '<') ? skipMarkup(position) : position + unit;
+            }
+            return this;
+        }
+
+        /**
+         * Skip the markup starting at a '&lt;', counting elements, and return
+         * the position after it.
+         */
+        private long skipMarkup(long pos) throws IOException {
+            if (startsWith(pos, "<!--")) {
+                return skipPast(pos, "-->");
+            }
+            if (startsWith(pos, "<![CDATA[")) {
+                return skipPast(pos, "]]>");
+            }
+            if (startsWith(pos, "<?")) {
+                return skipPast(pos, "?>");
+            }
+            boolean endTag = startsWith(pos, "</");
+            int quote = 0, last = 0;
+            for (long p = pos + unit; p < size; p += unit) {
+                int c = charAt(p);
+                if (quote != 0) {
+                    if (c == quote) {
+                        quote = 0;
+                    }
+                }
+                else if (c == '"' || c == '\'') {
+                    quote = c;
+                }
+                else if (c == '>') {
+                    if (endTag) {
+                        depth--;
+                    }
+                    else if (last != '/' && !startsWith(pos, "<!")) {
+                        depth++;
+                    }
+                    return p + unit;
+                }
+                last = c;
+            }
+            return size;
+        }
+
+        private long skipPast(long pos, String end) throws IOException {
+            for (long p = pos + unit; p < size; p += unit) {
+                if (startsWith(p, end)) {
+                    return p + end.length() * unit;
+                }
+            }
+            return size;
+        }
+
+        private boolean startsWith(long pos, String s) throws IOException {
+            for (int i = 0; i < s.length(); i++) {
+                if (charAt(pos + i * unit) != s.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Return the ASCII character at a position, 0 if there is some
+         * other character there, or -1 at the end of the file.
+         */
+        private int charAt(long pos) throws IOException {
+            if (pos >= size) {
+                return -1;
+            }
+            if (pos < windowStart || pos + unit > windowEnd) {
+                windowStart = pos;
+                windowEnd = Math.min(size, pos + WINDOW);
+                window = file.map(FileChannel.MapMode.READ_ONLY, windowStart, 
+                                  windowEnd - windowStart);
+            }
+            int i = (int)(pos - windowStart);
+            if (unit == 1) {
+                return Math.max(window.get(i), 0);
+            }
+            byte high = window.get(bigEndian ? i : i + 1);
+            byte low = window.get(bigEndian ? i + 1 : i);
+            return (high == 0 && low >= 0) ? low : 0;
+        }
+    }
+
+    /**
+     * Parses the part of the file between two boundaries.
+     */
+    private class Chunk implements Callable<T> {
+        private FileChannel file;
+        private Charset charset;
+        private long start, end;
+        private List<Checkpoint.Frame> openContext, closeContext;
+        private DataFactory<T> dataFactory;
+        private SNAXParser<T> parser;
+
+        Chunk(FileChannel file, Charset charset, long start, long end,
+              List<Checkpoint.Frame> openContext, List<Checkpoint.Frame> closeContext,
+              DataFactory<T> dataFactory) {
+            this.file = file;
+            this.charset = charset;
+            this.start = start;
+            this.end = end;
+            this.openContext = openContext;
+            this.closeContext = closeContext;
+            this.dataFactory = dataFactory;
+            // Created here, since creating a parser configures the factory
+            this.parser = SNAXParser.createParser(factory, model);
+        }
+
+        @Override
+        public T call() throws IOException, XMLStreamException, SNAXUserException {
+            T data = dataFactory.createData();
+            ByteBuffer buffer = file.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            parser.parseSegment(buffer, charset, start, openContext, closeContext, data);
+            return data;
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package net.sundell.snax;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.namespace.QName;
+
+/**
+ * A compiled path expression, written in a subset of XPath:
+ * <pre>  a/b//c[@x='y'][2]</pre>
+ * Each step is an element name, <code>{uri}local</code> or <code>*</code>,
+ * preceded by <code>/</code> for a child or <code>//</code> for a descendant;
+ * a path that begins with a name selects a child.  A step may be followed by
+ * predicates:
+ * <ul>
+ * <li><code>[@x]</code>, the attribute is present</li>
+ * <li><code>[@x='y']</code> and <code>[@x!='y']</code></li>
+ * <li><code>[@x&lt;5]</code>, and likewise <code>&lt;=</code>, <code>&gt;</code>
+ *     and <code>&gt;=</code>, which compare numerically</li>
+ * <li><code>[contains(@x,'y')]</code></li>
+ * <li><code>[n]</code>, the nth matching child, for child steps only</li>
+ * </ul>
+ * Conditions within a predicate may be joined with <code>and</code>.
+ * <p>
+ * Expressions are compiled into the same constraints that the selector
+ * methods create, so a path shares states with any equal selector chain,
+ * and paths with a common prefix share the states for that prefix.
+ * Compiled expressions are cached, and are immutable.
+ */
+final class PathExpression {
+
+    private static final int CACHE_LIMIT = 16384;
+    private static final ConcurrentMap<String, PathExpression> cache =
+            new ConcurrentHashMap<String, PathExpression>();
+
+    private final String path;
+    private final Step[] steps;
+
+    /**
+     * Compile a path, or return the cached result of compiling it earlier.
+     * @param path path expression
+     * @return compiled expression
+     * @throws IllegalArgumentException if the path is not valid
+     */
+    static PathExpression compile(String path) {
+        PathExpression expr = cache.get(path);
+        if (expr == null) {
+            expr = new PathExpression(path);
+            // Once the cache is full, further paths are compiled every time
+            if (cache.size() < CACHE_LIMIT) {
+                cache.put(path, expr);
+            }
+        }
+        return expr;
+    }
+
+    private PathExpression(String path) {
+        this.path = path;
+        this.steps = new Parser(path).parse();
+    }
+
+    /**
+     * Create the selectors for this path, starting from a builder or selector.
+     * @param start where the path starts
+     * @return selector for the last step
+     */
+    <T> ElementSelector<T> select(Selectable<T> start) {
+        Selectable<T> current = start;
+        ElementSelector<T> selector = null;
+        for (Step step : steps) {
+            if (step.descendant) {
+                selector = current.descendant(step.constraints);
+            }
+            else {
+                ChildSelector<T> child = current.child(step.constraints);
+                if (step.position > 0) {
+                    child.nth(step.position);
+                }
+                selector = child;
+            }
+            current = selector;
+        }
+        return selector;
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+
+    private static class Step {
+        boolean descendant;
+        ElementConstraint[] constraints;
+        int position;
+    }
+
+    /**
+     * Recursive descent parser for a single path.
+     */
+    private static class Parser {
+        private String path;
+        private int pos;
+
+        Parser(String path) {
+            this.path = path;
+        }
+
+        Step[] parse() {
+            List<Step> steps = new ArrayList<Step>();
+            boolean descendant = false;
+            if (path.startsWith("//")) {
+                descendant = true;
+                pos = 2;
+            }
+            else if (path.startsWith("/")) {
+                pos = 1;
+            }
+            while (true) {
+                steps.add(step(descendant));
+                if (pos == path.length()) {
+                    break;
+                }
+                if (path.startsWith("//", pos)) {
+                    descendant = true;
+                    pos += 2;
+                }
+                else if (path.charAt(pos) == '/') {
+                    descendant = false;
+                    pos++;
+                }
+                else {
+                    throw error("expected '/'");
+                }
+            }
+            return steps.toArray(new Step[steps.size()]);
+        }
+
+        private Step step(boolean descendant) {
+            Step step = new Step();
+            step.descendant = descendant;
+            List<ElementConstraint> constraints = new ArrayList<ElementConstraint>();
+            if (peek() == '*') {
+                pos++;
+            }
+            else {
+                constraints.add(new ElementEqualsConstraint(name()));
+            }
+            while (peek() == '[') {
+                pos++;
+                skipSpace();
+                if (Character.isDigit(peek())) {
+                    if (descendant) {
+                        throw error("positions can only be used on child steps");
+                    }
+                    if (step.position > 0) {
+                        throw error("only one position may be given");
+                    }
+                    step.position = position();
+                    if (step.position < 1) {
+                        throw error("positions start at 1");
+                    }
+                }
+                else {
+                    constraints.add(condition());
+                    skipSpace();
+                    while (path.startsWith("and", pos)) {
+                        pos += 3;
+                        skipSpace();
+                        constraints.add(condition());
+                        skipSpace();
+                    }
+                }
+                skipSpace();
+                expect(']');
+            }
+            step.constraints = constraints.toArray(new ElementConstraint[constraints.size()]);
+            return step;
+        }
+
+        private ElementConstraint condition() {
+            if (path.startsWith("contains(", pos)) {
+                pos += 9;
+                skipSpace();
+                AttributeMatcher attr = attribute();
+                skipSpace();
+                expect(',');
+                skipSpace();
+                String value = literal();
+                skipSpace();
+                expect(')');
+                return attr.contains(value);
+            }
+            AttributeMatcher attr = attribute();
+            skipSpace();
+            switch (peek()) {
+            case '=':
+                pos++;
+                skipSpace();
+                return attr.equalTo(literal());
+            case '!':
+                pos++;
+                expect('=');
+                skipSpace();
+                return attr.notEqualTo(literal());
+            case '<':
+                pos++;
+                if (peek() == '=') {
+                    pos++;
+                    skipSpace();
+                    return attr.lessThanOrEqualTo(number());
+                }
+                skipSpace();
+                return attr.lessThan(number());
+            case '>':
+                pos++;
+                if (peek() == '=') {
+                    pos++;
+                    skipSpace();
+                    return attr.greaterThanOrEqualTo(number());
+                }
+                skipSpace();
+                return attr.greaterThan(number());
+            default:
+                return attr;
+            }
+        }
+
+        private AttributeMatcher attribute() {
+            expect('@');
+            return new AttributeMatcher(name());
+        }
+
+        private QName name() {
+            int start = pos;
+            String uri = null;
+            if (peek() == '{') {
+                int end = path.indexOf('}', pos);
+                if (end == -1) {
+                    throw error("unterminated namespace");
+                }
+                uri = path.substring(pos + 1, end);
+                pos = end + 1;
+                start = pos;
+            }
+            while (pos < path.length() && isNameChar(path.charAt(pos))) {
+                pos++;
+            }
+            if (pos == start) {
+                throw error("expected name");
+            }
+            if (peek() == ':') {
+                throw error("prefixes are not supported; use {uri}name");
+            }
+            String local = path.substring(start, pos);
+            return (uri == null) ? new QName(local) : new QName(uri, local);
+        }
+
+        private static boolean isNameChar(char c) {
+            return Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.';
+        }
+
+        private String literal() {
+            char quote = peek();
+            if (quote != '\'' && quote != '"') {
+                throw error("expected quoted string");
+            }
+            int end = path.indexOf(quote, pos + 1);
+            if (end == -1) {
+                throw error("unterminated string");
+            }
+            String value = path.substring(pos + 1, end);
+            pos = end + 1;
+            return value;
+        }
+
+        private int position() {
+            int start = pos;
+            while (pos < path.length() && Character.isDigit(path.charAt(pos))) {
+                pos++;
+            }
+            try {
+                return Integer.parseInt(path.substring(start, pos));
+            }
+            catch (NumberFormatException e) {
+                throw error("expected position");
+            }
+        }
+
+        /**
+         * Read a number, which may be quoted.
+         */
+        private double number() {
+            char c = peek();
+            String text;
+            if (c == '\'' || c == '"') {
+                text = literal();
+            }
+            else {
+                int start = pos;
+                while (pos < path.length() &&
+                       (Character.isDigit(path.charAt(pos)) || "+-.eE".indexOf(path.charAt(pos)) != -1)) {
+                    pos++;
+                }
+                text = path.substring(start, pos);
+            }
+            try {
+                return TypedValues.parseDouble(text);
+            }
+            catch (NumberFormatException e) {
+                throw error("expected number");
+            }
+        }
+
+        private void expect(char c) {
+            if (peek() != c) {
+                throw error("expected '" + c + "'");
+            }
+            pos++;
+        }
+
+        private char peek() {
+            return (pos < path.length()) ? path.charAt(pos) : 0;
+        }
+
+        private void skipSpace() {
+            while (pos < path.length() && Character.isWhitespace(path.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("Invalid path '" + path + "' at " + pos + ": " + message);
+        }
+    }
+}
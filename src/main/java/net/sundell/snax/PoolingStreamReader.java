@@ -0,0 +1,44 @@
+package net.sundell.snax;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
+
+/**
+ * A stream reader that takes attribute values and text from a
+ * {@link StringPool}.  Events created from it by an XMLEventReader share
+ * the pooled strings.  Text is looked up from the underlying reader's
+ * characters, so a pooled value is never copied; StAX only provides
+ * attribute values as strings, so those are replaced by their pooled copy.
+ */
+class PoolingStreamReader extends StreamReaderDelegate {
+
+    private StringPool pool;
+
+    PoolingStreamReader(XMLStreamReader reader, StringPool pool) {
+        super(reader);
+        this.pool = pool;
+    }
+
+    @Override
+    public String getAttributeValue(int index) {
+        return pool.get(super.getAttributeValue(index));
+    }
+
+    @Override
+    public String getAttributeValue(String namespaceURI, String localName) {
+        return pool.get(super.getAttributeValue(namespaceURI, localName));
+    }
+
+    @Override
+    public String getText() {
+        switch (getEventType()) {
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.CDATA:
+        case XMLStreamConstants.SPACE:
+            return pool.get(getTextCharacters(), getTextStart(), getTextLength());
+        default:
+            return super.getText();
+        }
+    }
+}
@@ -1,10 +1,19 @@
 package net.sundell.snax;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.xml.namespace.QName;
 import javax.xml.stream.*;
 import javax.xml.stream.events.*;
 
@@ -74,6 +83,111 @@ public class SNAXParser<T> implements AutoCloseable {
     private ParseState currentState;
     private Location currentLocation;
     private Map<NodeState<T>, Integer> onlyCounts = new HashMap<NodeState<T>, Integer>();
+    private Map<NodeState<T>, Integer> sampleCounts = new HashMap<NodeState<T>, Integer>();
+    private Map<NodeState<T>, Random> sampleRandoms = new HashMap<NodeState<T>, Random>();
+    private CheckpointListener<T> checkpointListener;
+    private long checkpointInterval;
+    private ByteOffsetReader offsetReader;
+    private long lastCheckpoint;
+    private boolean inEmptyTag;
+    // Depth within a subtree that nothing in the model can match, whose
+    // events are consumed without tracking state
+    private int skipDepth;
+    private boolean pipelined = false;
+    private static final int RING_SIZE = 1024;
+    // Set while a pipelined parse is underway.  It is assigned before the
+    // tokenizer thread starts and cleared only once that thread has ended,
+    // so need not be volatile, and the tokenizer never sees it change.
+    private DispatchRing<T> ring;
+    // Output of a transform, and whether the events being read are left out
+    // of it because they are within a replaced element
+    private XMLEventWriter writer;
+    private boolean dropping;
+    private StringPool stringPool;
+    private boolean reuseEvents = false;
+
+    /**
+     * Enable or disable pipelined parsing.  In pipelined mode, 
+     * <code>parse()</code> reads the XML and matches it against the model on a 
+     * separate thread, while the calling thread makes the ElementHandler 
+     * calls.  Handlers are called in the same order as usual, and always 
+     * on the calling thread, so they need not be thread-safe; but if 
+     * reading is slow compared to handling or vice versa, the two can 
+     * overlap.  The XMLInputFactory must produce a new event object for 
+     * each event, as the standard implementations do.
+     * <p>
+     * Pipelining does not apply to incremental parsing with 
+     * <code>startParsing()</code>.
+     * 
+     * @param pipelined true to enable pipelined parsing
+     * @throws IllegalStateException if this method is called while parsing is underway
+     */
+    public void setPipelined(boolean pipelined) {
+        checkState(xmlReader == null || done, "Pipelining was changed while parsing is underway");
+        checkState(!pipelined || !reuseEvents, "Pipelining cannot be used with reused events");
+        this.pipelined = pipelined;
+    }
+
+    /**
+     * Pass reused views to ElementHandlers in place of a new event for 
+     * each element start, element end and run of text.  This avoids creating
+     * most of the objects that a parse would otherwise produce, but an event
+     * is then only valid while it is in use: an element's start remains 
+     * valid until the element ends, and anything else only during the 
+     * handler call that it is passed to.  A handler that keeps an element 
+     * for longer must keep <code>ElementView.snapshot(element)</code> instead.
+     * <p>
+     * Reused events cannot be combined with pipelined parsing.
+     * 
+     * @param reuseEvents true to reuse events
+     * @throws IllegalStateException if this method is called while parsing is underway,
+     *         or if the parser is pipelined
+     * @see ElementView
+     */
+    public void setReuseEvents(boolean reuseEvents) {
+        checkState(xmlReader == null || done, "Event reuse was changed while parsing is underway");
+        checkState(!reuseEvents || !pipelined, "Pipelining cannot be used with reused events");
+        this.reuseEvents = reuseEvents;
+    }
+
+    /**
+     * Share attribute values and short text through a pool.  Events passed
+     * to ElementHandlers will then hold the pool's copy of each value that 
+     * it contains, so that data built from many similar elements does not
+     * keep a separate copy of each repeated value.
+     * 
+     * @param pool pool, or null to stop pooling
+     * @throws IllegalStateException if this method is called while parsing is underway
+     */
+    public void setStringPool(StringPool pool) {
+        checkState(xmlReader == null || done, "String pool was changed while parsing is underway");
+        this.stringPool = pool;
+    }
+
+    // False when only part of the document is being parsed, in which case
+    // neither checkpoints nor element ranges are reported
+    private boolean wholeDocument;
+
+    /**
+     * Register a listener to receive checkpoints as the document is parsed.  
+     * A checkpoint is produced at the end of an element, once at least 
+     * <code>intervalBytes</code> of input have been consumed since the previous one.  
+     * Checkpoints can only be produced when the parser is given byte input, 
+     * using <code>parse(InputStream, Charset, Object)</code> or 
+     * <code>resume()</code>.
+     * 
+     * @param listener listener, or null to stop producing checkpoints
+     * @param intervalBytes minimum distance between checkpoints, in bytes
+     * @throws IllegalStateException if this method is called while parsing is underway
+     */
+    public void setCheckpointListener(CheckpointListener<T> listener, long intervalBytes) {
+        checkState(xmlReader == null || done, "Checkpoint listener was changed while parsing is underway");
+        if (intervalBytes < 0) {
+            throw new IllegalArgumentException("Negative checkpoint interval: " + intervalBytes);
+        }
+        this.checkpointListener = listener;
+        this.checkpointInterval = intervalBytes;
+    }
     
     /**
      * Begin incremental parsing of a data stream, represented by a Reader.  This will initialize
@@ -128,24 +242,444 @@ public class SNAXParser<T> implements AutoCloseable {
      */
     public void parse(Reader reader, T data) throws XMLStreamException, SNAXUserException {
         // TODO: this needs to catch concurrent parse attempts
+        checkState(checkpointListener == null, "Checkpoints require byte input");
+        init(reader, data);
+        parseAll();
+    }
+
+    /**
+     * Copy a document to a writer, leaving out or replacing the elements 
+     * selected by <code>drop()</code> and <code>replace()</code> in the model.
+     * Everything else is written unchanged, event by event, so memory use
+     * does not depend on the size of the document.  Regions that nothing in
+     * the model can match are copied without any matching or handler calls.
+     * <p>
+     * ElementHandlers are called as they would be by <code>parse()</code>,
+     * except that none are called for replaced elements or anything within 
+     * them.  Pipelining does not apply to transforms.
+     * 
+     * @param reader XML content to process
+     * @param writer output; it is flushed, but not closed
+     * @param data optional, user-defined object to be passed as an argument to 
+     *        ElementHandlers and ElementReplacers
+     * @throws XMLStreamException if there is an error with the underlying XML,
+     *         or writing the output
+     * @throws SNAXUserException if there is an error in an attached <code>ElementHandler</code>
+     *         or <code>ElementReplacer</code>
+     * @see ElementSelector#drop()
+     * @see ElementSelector#replace(ElementReplacer)
+     */
+    public void transform(Reader reader, XMLEventWriter writer, T data) 
+                throws XMLStreamException, SNAXUserException {
+        checkState(checkpointListener == null, "Checkpoints require byte input");
         init(reader, data);
+        this.writer = writer;
+        while (xmlReader.hasNext()) {
+            XMLEvent event = xmlReader.nextEvent();
+            boolean wasDropping = dropping;
+            processEvent(event);
+            if (!wasDropping && !dropping) {
+                writer.add(event);
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * Parse a document from the events recorded in an {@link EventCache}.
+     * This makes the same ElementHandler calls as parsing the document 
+     * itself, but without tokenizing the XML again, so a document that is
+     * parsed many times with different models need only be tokenized once.
+     * Element locations only include line numbers.
+     * 
+     * @param cache recorded document
+     * @param data optional, user-defined object to be passed as an argument to ElementHandlers
+     * @throws XMLStreamException if the cache is not valid
+     * @throws SNAXUserException if there is an error in an attached <code>ElementHandler</code>
+     */
+    public void parse(EventCache cache, T data) throws XMLStreamException, SNAXUserException {
+        checkState(model != null, "No model was set");
+        checkState(checkpointListener == null, "Checkpoints require byte input");
+        XMLStreamReader streamReader = cache.createStreamReader();
+        if (stringPool != null) {
+            streamReader = new PoolingStreamReader(streamReader, stringPool);
+        }
+        // The factory's event readers only work with its own stream readers
+        init(new FlyweightEventReader(streamReader, reuseEvents), data);
+        parseAll();
+    }
+
+    /**
+     * Parse a byte stream to completion.  This is equivalent to 
+     * <code>parse(Reader, Object)</code>, except that because the parser 
+     * decodes the input itself it can also produce checkpoints, if a 
+     * <code>CheckpointListener</code> has been registered.
+     * <p>
+     * Input that is compressed with gzip or zlib is detected and decompressed
+     * on a separate thread while it is parsed.  Checkpoint offsets then refer 
+     * to the decompressed content.
+     * 
+     * @param in XML content to process
+     * @param charset encoding of the content; only UTF-8, UTF-16BE, UTF-16LE
+     *        and single-byte charsets are supported
+     * @param data optional, user-defined object to be passed as an argument to ElementHandlers
+     * @throws XMLStreamException if there is an error with the underlying XML
+     * @throws SNAXUserException if there is an error in an attached <code>ElementHandler</code>
+     * @see #setCheckpointListener(CheckpointListener, long)
+     */
+    public void parse(InputStream in, Charset charset, T data) 
+                throws XMLStreamException, SNAXUserException {
+        ReadableByteChannel channel;
+        try {
+            channel = InflatingChannel.open(in);
+        }
+        catch (IOException e) {
+            throw new XMLStreamException(e);
+        }
+        try {
+            ByteOffsetReader reader = new ByteOffsetReader(channel, charset, 0, null, null);
+            reader.setRetainBytes(model.mayHaveBytesHandlers());
+            init(reader, data);
+            offsetReader = reader;
+            lastCheckpoint = 0;
+            wholeDocument = true;
+            parseAll();
+        }
+        finally {
+            // Stops any inflater thread; the stream itself belongs to the caller
+            if (channel instanceof InflatingChannel) {
+                ((InflatingChannel)channel).close();
+            }
+        }
+    }
+
+    /**
+     * Parse a file to completion.  This is equivalent to 
+     * <code>parse(InputStream, Charset, Object)</code>, except that the file
+     * is memory-mapped, so the bytes passed to an 
+     * <code>ElementBytesHandler</code> are views of the file rather than 
+     * copies.  Files too large to map are read as a stream.  Compressed
+     * files are detected and read as a stream, as they would be by
+     * <code>parse(InputStream, Charset, Object)</code>, so their bytes are
+     * copies of the decompressed content.
+     * 
+     * @param file XML content to process; it is read from the start
+     * @param charset encoding of the content; only UTF-8, UTF-16BE, UTF-16LE
+     *        and single-byte charsets are supported
+     * @param data optional, user-defined object to be passed as an argument to ElementHandlers
+     * @throws IOException if the file cannot be mapped
+     * @throws XMLStreamException if there is an error with the underlying XML
+     * @throws SNAXUserException if there is an error in an attached <code>ElementHandler</code>
+     * @see ElementBytesHandler
+     */
+    public void parse(FileChannel file, Charset charset, T data) 
+                throws IOException, XMLStreamException, SNAXUserException {
+        checkState(model != null, "No model was set");
+        ByteBuffer magic = ByteBuffer.allocate(2);
+        while (magic.hasRemaining()) {
+            if (file.read(magic, magic.position()) == -1) {
+                break;
+            }
+        }
+        if (magic.position() == 2 && InflatingChannel.isCompressed(magic.get(0), magic.get(1))) {
+            file.position(0);
+            parse(Channels.newInputStream(file), charset, data);
+            return;
+        }
+        ByteOffsetReader reader;
+        if (file.size() <= Integer.MAX_VALUE) {
+            ByteBuffer buffer = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+            reader = new ByteOffsetReader(buffer, charset, 0, null, null);
+        }
+        else {
+            file.position(0);
+            reader = new ByteOffsetReader(file, charset, 0, null, null);
+        }
+        reader.setRetainBytes(model.mayHaveBytesHandlers());
+        init(reader, data);
+        offsetReader = reader;
+        lastCheckpoint = 0;
+        wholeDocument = true;
+        parseAll();
+    }
+
+    /**
+     * Resume parsing a file from a checkpoint, and continue to the end
+     * of the document.  The file is read starting from the checkpoint's 
+     * byte offset; nothing that precedes it is read.  The parser is restored 
+     * to the state it was in when the checkpoint was taken, including the
+     * open elements and any <code>only()</code> counts.  No ElementHandler 
+     * calls are made for the start of elements that were already open, but
+     * their ends will be handled as usual.
+     * <p>
+     * If a <code>CheckpointListener</code> is registered, further checkpoints
+     * will be produced.
+     * 
+     * @param channel file to read; its position will be changed
+     * @param charset encoding of the file
+     * @param checkpoint checkpoint produced by an earlier parse of the file using 
+     *        this parser's model
+     * @param data optional, user-defined object to be passed as an argument to ElementHandlers
+     * @throws IOException if the file cannot be positioned
+     * @throws XMLStreamException if there is an error with the underlying XML
+     * @throws SNAXUserException if there is an error in an attached <code>ElementHandler</code>
+     */
+    public void resume(FileChannel channel, Charset charset, Checkpoint checkpoint, T data)
+                throws IOException, XMLStreamException, SNAXUserException {
+        checkState(model != null, "No model was set");
+        channel.position(checkpoint.getByteOffset());
+        List<Checkpoint.Frame> frames = checkpoint.getFrames();
+        ByteOffsetReader reader = new ByteOffsetReader(channel, charset, checkpoint.getByteOffset(),
+                                        Checkpoint.openTags(frames), null);
+        reader.setRetainBytes(model.mayHaveBytesHandlers());
+        init(reader, data);
+        offsetReader = reader;
+        lastCheckpoint = checkpoint.getByteOffset();
+        for (Map.Entry<Integer, Integer> e : checkpoint.getOnlyCounts().entrySet()) {
+            onlyCounts.put(stateForId(e.getKey()), e.getValue());
+        }
+        for (Map.Entry<Integer, Integer> e : checkpoint.getSampleCounts().entrySet()) {
+            sampleCounts.put(stateForId(e.getKey()), e.getValue());
+        }
+        restore(frames);
+        for (Map.Entry<Integer, Map<Integer, Integer>> e : checkpoint.getPositions().entrySet()) {
+            int depth = e.getKey();
+            ParseState s = (depth == 0) ? stack.get(0).parent : stack.get(depth - 1);
+            s.positions = new HashMap<NodeState<T>, Integer>();
+            for (Map.Entry<Integer, Integer> p : e.getValue().entrySet()) {
+                s.positions.put(stateForId(p.getKey()), p.getValue());
+            }
+        }
+        wholeDocument = true;
+        parseAll();
+    }
+
+    /**
+     * Parse a single element from a file, using the location and context 
+     * recorded for it in an {@link OffsetIndex}.  Only the element's own
+     * bytes are read.  The element is processed as it would be in a parse
+     * of the whole document, except that no ElementHandler calls are made
+     * for its ancestors.
+     * 
+     * @param file file that was indexed
+     * @param charset encoding of the file
+     * @param entry index entry for the element
+     * @param data optional, user-defined object to be passed as an argument to ElementHandlers
+     * @throws IOException if the file cannot be mapped
+     * @throws XMLStreamException if there is an error with the underlying XML
+     * @throws SNAXUserException if there is an error in an attached <code>ElementHandler</code>
+     * @see OffsetIndexBuilder
+     */
+    public void parse(FileChannel file, Charset charset, OffsetIndex.Entry entry, T data)
+                throws IOException, XMLStreamException, SNAXUserException {
+        checkState(model != null, "No model was set");
+        ByteBuffer buffer = file.map(FileChannel.MapMode.READ_ONLY, entry.getStartOffset(),
+                                     entry.getEndOffset() - entry.getStartOffset());
+        parseSegment(buffer, charset, entry.getStartOffset(), entry.getContext(), 
+                     entry.getContext(), data);
+    }
+
+    /**
+     * Parse part of a document.  The open elements of the context in which
+     * the segment starts are replayed ahead of it, and end tags for the 
+     * elements that are open at its end are supplied after it.  Neither
+     * results in ElementHandler calls.  Checkpoints and element ranges are
+     * not reported.
+     * @param buffer bytes of the segment
+     * @param charset encoding of the document
+     * @param byteOffset offset of the segment in the document
+     * @param openContext elements open where the segment starts
+     * @param closeContext elements open where the segment ends
+     * @param data data object
+     */
+    void parseSegment(ByteBuffer buffer, Charset charset, long byteOffset,
+                      List<Checkpoint.Frame> openContext, List<Checkpoint.Frame> closeContext, 
+                      T data) throws XMLStreamException, SNAXUserException {
+        checkState(model != null, "No model was set");
+        ByteOffsetReader reader = new ByteOffsetReader(buffer, charset, byteOffset,
+                Checkpoint.openTags(openContext), Checkpoint.closeTags(closeContext));
+        init(reader, data);
+        offsetReader = reader;
+        restore(openContext);
+        parseAll();
+    }
+
+    /**
+     * Read a document until the first element at a given path starts, and
+     * return a checkpoint at the start of that element, which describes the 
+     * elements that enclose it.  No ElementHandler calls are made.
+     * @param file document
+     * @param charset encoding of the document
+     * @param path names of the elements down to and including the element 
+     *        to find, starting with the document element
+     * @return checkpoint, or null if there is no such element
+     */
+    Checkpoint findElement(FileChannel file, Charset charset, List<QName> path) 
+                throws IOException, XMLStreamException {
+        checkState(model != null, "No model was set");
+        file.position(0);
+        ByteOffsetReader reader = new ByteOffsetReader(file, charset, 0, null, null);
+        init(reader, null);
+        offsetReader = reader;
+        while (xmlReader.hasNext()) {
+            XMLEvent event = xmlReader.nextEvent();
+            if (event.isStartElement()) {
+                StartElement startEl = event.asStartElement();
+                inEmptyTag = (offsetReader.nextTag() == ByteOffsetReader.EMPTY_TAG);
+                NodeState<T> nextState = findState(startEl);
+                if (stack.size() == path.size() - 1 && matchesPath(path)
+                        && startEl.getName().equals(path.get(path.size() - 1))) {
+                    return new Checkpoint(offsetReader.getTagByteStart(),
+                            currentState.path(), Collections.<Integer, Integer>emptyMap(),
+                            Collections.<Integer, Map<Integer, Integer>>emptyMap(),
+                            Collections.<Integer, Integer>emptyMap());
+                }
+                currentState = new ParseState(currentState, nextState, 
+                        nextState.inheritRules(currentState.deferredRules), startEl);
+                stack.push(currentState);
+            }
+            else if (event.isEndElement()) {
+                if (!inEmptyTag) {
+                    offsetReader.nextTag();
+                }
+                inEmptyTag = false;
+                stack.pop();
+                currentState = stack.empty() ? currentState.parent : stack.peek();
+            }
+        }
+        return null;
+    }
+
+    private boolean matchesPath(List<QName> path) {
+        for (int i = 0; i < stack.size(); i++) {
+            if (!stack.get(i).element.getName().equals(path.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Consume the start tags of the open elements of a restored context,
+     * which are replayed by the XML parser, and restore their states as 
+     * they arrive rather than following transitions.
+     */
+    private void restore(List<Checkpoint.Frame> frames) throws XMLStreamException {
+        for (int i = 0; i < frames.size(); ) {
+            XMLEvent event = xmlReader.nextEvent();
+            if (event.isStartElement()) {
+                offsetReader.nextTag();
+                Checkpoint.Frame frame = frames.get(i++);
+                NodeState<T> state = stateForId(frame.stateId);
+                state.ensureBuilt();
+                currentState = new ParseState(currentState, state, 
+                        state.inheritRules(currentState.deferredRules), event.asStartElement());
+                stack.push(currentState);
+            }
+        }
+    }
+
+    /**
+     * Find the state for an element that is starting in the current state.
+     */
+    @SuppressWarnings("unchecked")
+    private NodeState<T> findState(StartElement startEl) {
+        NodeState<T> nextState = currentState.nodeState.follow(startEl);
+        if (nextState.hasPositions() && !nextState.isInPositions(currentState.nextPosition(nextState))) {
+            nextState = NodeState.EMPTY_STATE;
+        }
+        if (nextState.equals(NodeState.EMPTY_STATE)) {
+            // Look for a match among the inherited descendant rules
+            NodeTransition<T> rule = currentState.deferredRules.find(startEl);
+            if (rule != null) {
+                nextState = rule.getTarget();
+            }
+        }
+        nextState.ensureBuilt();
+        return nextState;
+    }
+
+    /**
+     * Find the state for an element that was not sampled in the state it 
+     * entered.  As with an element outside a selector's positions, only the
+     * inherited descendant rules of other selectors can match it.
+     */
+    @SuppressWarnings("unchecked")
+    private NodeState<T> findUnsampledState(StartElement startEl, NodeState<T> rejected) {
+        List<NodeState<T>> excluded = new ArrayList<NodeState<T>>(2);
+        NodeState<T> nextState = rejected;
+        do {
+            excluded.add(nextState);
+            NodeTransition<T> rule = currentState.deferredRules.find(startEl, excluded);
+            nextState = (rule != null) ? rule.getTarget() : NodeState.EMPTY_STATE;
+            nextState.ensureBuilt();
+        } while (nextState.isSampled() && !sample(nextState));
+        return nextState;
+    }
+
+    @SuppressWarnings("unchecked")
+    private NodeState<T> stateForId(int id) {
+        if (id == -1) {
+            return NodeState.EMPTY_STATE;
+        }
+        NodeState<T> state = model.getState(id);
+        if (state == null) {
+            throw new IllegalArgumentException("Checkpoint does not match model: no state " + id);
+        }
+        return state;
+    }
+
+    private void parseAll() throws XMLStreamException, SNAXUserException {
+        if (pipelined) {
+            parsePipelined();
+            return;
+        }
         for (XMLEvent event = xmlReader.nextEvent(); xmlReader.hasNext(); event = xmlReader.nextEvent()) {
             processEvent(event);
         }
     }
     
     private void init(Reader reader, T data) throws XMLStreamException {
-        this.xmlReader = factory.createXMLEventReader(reader);
+        if (stringPool == null && !reuseEvents) {
+            init(factory.createXMLEventReader(reader), data);
+            return;
+        }
+        init(factory.createXMLStreamReader(reader), data);
+    }
+
+    private void init(XMLStreamReader streamReader, T data) throws XMLStreamException {
+        if (stringPool != null) {
+            streamReader = new PoolingStreamReader(streamReader, stringPool);
+        }
+        init(reuseEvents ? new FlyweightEventReader(streamReader, true) :
+                           factory.createXMLEventReader(streamReader), data);
+    }
+
+    /**
+     * Prepare to process events from a reader, which may be shared with other
+     * parsers that are each passed the same events.
+     */
+    void init(XMLEventReader xmlReader, T data) {
+        this.xmlReader = xmlReader;
+        this.offsetReader = null;
+        this.wholeDocument = false;
+        this.inEmptyTag = false;
+        this.skipDepth = 0;
+        this.writer = null;
+        this.dropping = false;
         this.data = data;
         stack = new Stack<ParseState>();
         onlyCounts.clear();
-        currentState = getParseState(model.getRoot(), model.getRoot().getDescendantRules(), null);
+        sampleCounts.clear();
+        sampleRandoms.clear();
+        currentState = getParseState(null, model.getRoot(), 
+                model.getRoot().inheritRules(DescendantRuleSet.<T>empty()), null);
         currentLocation = null;
         done = false;
     }
 
-    private ParseState getParseState(NodeState<T> nodeState, 
-            Iterable<NodeTransition<T>> deferredRules, StartElement element) {
+    private ParseState getParseState(ParseState parent, NodeState<T> nodeState, 
+            DescendantRuleSet<T> deferredRules, StartElement element) {
         if (nodeState.getOnlyValue() != NodeState.NO_ONLY_LIMIT) {
             Integer only = onlyCounts.get(nodeState);
             if (only == null) {
@@ -156,10 +690,11 @@ public class SNAXParser<T> implements AutoCloseable {
             }
             onlyCounts.put(nodeState, only);
         }
-        return new ParseState(nodeState, deferredRules, element);
+        return new ParseState(parent, nodeState, deferredRules, element);
     }
 
-    private XMLEvent processEvent(XMLEvent event) throws SNAXUserException {       
+    @SuppressWarnings("unchecked")
+    XMLEvent processEvent(XMLEvent event) throws SNAXUserException {       
         try {
             int type = event.getEventType();
             currentLocation = event.getLocation();
@@ -170,55 +705,112 @@ public class SNAXParser<T> implements AutoCloseable {
                     logger.fine("START: " + startEl.getName().getLocalPart());
                 }
                 checkState(!done, "Element started after end of document");
+                if (offsetReader != null) {
+                    inEmptyTag = (offsetReader.nextTag() == ByteOffsetReader.EMPTY_TAG);
+                }
+                if (skipDepth > 0) {
+                    skipDepth++;
+                    break;
+                }
                 
-                NodeState<T> nextState = currentState.nodeState.follow(startEl);
-                if (nextState.equals(NodeState.EMPTY_STATE)) {
-                    // Look for a match among the inherited descendant rules
-                    for (NodeTransition<T> rule : currentState.deferredRules) {
-                        if (rule.getTest().matches(startEl)) {
-                            nextState = rule.getTarget();
-                            break;
-                        }
+                NodeState<T> nextState = findState(startEl);
+                DescendantRuleSet<T> rules = nextState.inheritRules(currentState.deferredRules);
+                if (nextState.isSampled() && !sample(nextState)) {
+                    nextState = findUnsampledState(startEl, nextState);
+                    rules = nextState.inheritRules(currentState.deferredRules);
+                }
+                if (writer != null && nextState.getReplacer() != null) {
+                    // The element is replaced in the output, and nothing 
+                    // within it is handled
+                    nextState.getReplacer().replace(startEl, writer, data);
+                    dropping = true;
+                    skipDepth = 1;
+                    break;
+                }
+                if (canSkip(nextState, rules)) {
+                    skipDepth = 1;
+                    break;
+                }
+                ParseState newState = getParseState(currentState, nextState, rules, startEl);
+                if (wholeDocument && (nextState.hasRangeHandlers() || nextState.hasBytesHandlers())) {
+                    newState.startOffset = offsetReader.getTagByteStart();
+                    if (nextState.hasBytesHandlers()) {
+                        offsetReader.pin(newState.startOffset);
                     }
                 }
-                ParseState newState = getParseState(nextState, 
-                        CompoundIterable.prepend(nextState.getDescendantRules(), 
-                                                 currentState.deferredRules), 
-                        startEl);
                 stack.push(newState);
-                newState.nodeState.handleElementStart(startEl, data);
+                dispatch(START, newState.nodeState, startEl, startEl, 0, 0, null);
                 currentState = newState;
                 break;
             case XMLEvent.END_ELEMENT:
-                ParseState ended = stack.pop();
                 EndElement endEl = event.asEndElement();
+                boolean synthetic = false;
+                if (offsetReader != null) {
+                    // An empty tag was already taken for the element's start
+                    if (!inEmptyTag) {
+                        offsetReader.nextTag();
+                        synthetic = offsetReader.isSuffix(offsetReader.getTagStart());
+                    }
+                    inEmptyTag = false;
+                }
+                if (skipDepth > 0) {
+                    if (--skipDepth == 0) {
+                        dropping = false;
+                        if (stack.empty()) {
+                            this.done = true;
+                        }
+                    }
+                    break;
+                }
+                ParseState ended = stack.pop();
                 if (logger.isLoggable(Level.FINE)) {
                     logger.fine("END: " + endEl.getName().getLocalPart());
                 }
-                ended.nodeState.handleElementEnd(endEl, data);
+                if (!synthetic) {
+                    dispatch(END, ended.nodeState, ended.element, endEl, 0, 0, null);
+                    if (ended.startOffset != -1) {
+                        long endOffset = offsetReader.getTagByteEnd();
+                        if (ended.nodeState.hasRangeHandlers()) {
+                            dispatch(RANGE, ended.nodeState, ended.element, endEl, ended.startOffset, 
+                                     endOffset, ended.parent.path());
+                        }
+                        if (ended.nodeState.hasBytesHandlers()) {
+                            ByteBuffer bytes = offsetReader.slice(ended.startOffset, endOffset);
+                            if (ring != null) {
+                                // The input buffer will have moved on by the 
+                                // time the handler thread gets to it
+                                ByteBuffer copy = ByteBuffer.allocate(bytes.remaining());
+                                copy.put(bytes).flip();
+                                bytes = copy.asReadOnlyBuffer();
+                            }
+                            dispatch(BYTES, ended.nodeState, ended.element, endEl, ended.startOffset, 
+                                     endOffset, bytes);
+                            offsetReader.unpin();
+                        }
+                    }
+                }
                 if (stack.empty()) {
                     // End of document!
                     this.done = true;
                 }
                 else {
                     currentState = stack.peek();
+                    if (checkpointListener != null && wholeDocument) {
+                        checkpoint(endEl);
+                    }
                 }
                 break;
             case XMLEvent.CHARACTERS:
-                currentState.nodeState.handleContents(currentState.element, 
-                                            event.asCharacters(), data);
+                if (skipDepth > 0 || !currentState.nodeState.hasContentHandlers()) {
+                    break;
+                }
+                dispatch(CONTENTS, currentState.nodeState, currentState.element, event, 0, 0, null);
                 break;
             case XMLEvent.DTD:
-                model.handleDTD((DTD)event, data);
-                break;
             case XMLEvent.ENTITY_DECLARATION:
-                model.handleEntityDeclaration((EntityDeclaration)event, data);
-                break;
             case XMLEvent.ENTITY_REFERENCE:
-                model.handleEntityReference((EntityReference)event, data);
-                break;
             case XMLEvent.NOTATION_DECLARATION:
-                model.handleNotationDeclaration((NotationDeclaration)event, data);
+                dispatch(DECLARATION, null, null, event, 0, 0, null);
                 break;
             }
             return event;
@@ -239,6 +831,230 @@ public class SNAXParser<T> implements AutoCloseable {
         }
     }
 
+    /**
+     * Emit a checkpoint at the end of the element that just ended, if enough
+     * input has been read since the last one.
+     */
+    private void checkpoint(XMLEvent event) {
+        long byteOffset = offsetReader.getTagByteEnd();
+        if (byteOffset - lastCheckpoint < checkpointInterval) {
+            return;
+        }
+        Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+        for (Map.Entry<NodeState<T>, Integer> e : onlyCounts.entrySet()) {
+            counts.put(stateId(e.getKey()), e.getValue());
+        }
+        Map<Integer, Integer> samples = new HashMap<Integer, Integer>();
+        for (Map.Entry<NodeState<T>, Integer> e : sampleCounts.entrySet()) {
+            samples.put(stateId(e.getKey()), e.getValue());
+        }
+        Map<Integer, Map<Integer, Integer>> positions = new HashMap<Integer, Map<Integer, Integer>>();
+        int depth = stack.size();
+        for (ParseState s = currentState; s != null; s = s.parent, depth--) {
+            if (s.positions != null) {
+                Map<Integer, Integer> p = new HashMap<Integer, Integer>();
+                for (Map.Entry<NodeState<T>, Integer> e : s.positions.entrySet()) {
+                    p.put(stateId(e.getKey()), e.getValue());
+                }
+                positions.put(depth, p);
+            }
+        }
+        lastCheckpoint = byteOffset;
+        dispatch(CHECKPOINT, null, null, event, 0, 0, 
+                 new Checkpoint(byteOffset, currentState.path(), counts, positions, samples));
+    }
+
+    // Kinds of handler call
+    private static final int START = 0, END = 1, CONTENTS = 2, RANGE = 3, 
+            DECLARATION = 4, CHECKPOINT = 5, END_OF_INPUT = 6, FAILURE = 7, BYTES = 8;
+
+    /**
+     * Make a handler call, or in pipelined mode, queue it for the handler
+     * thread.
+     */
+    private void dispatch(int type, NodeState<T> state, StartElement element, XMLEvent event,
+                          long startOffset, long endOffset, Object extra) {
+        if (ring == null) {
+            execute(type, state, element, event, startOffset, endOffset, extra);
+            return;
+        }
+        DispatchRing.Slot<T> slot = ring.claim();
+        slot.type = type;
+        slot.state = state;
+        slot.element = element;
+        slot.event = event;
+        slot.startOffset = startOffset;
+        slot.endOffset = endOffset;
+        slot.extra = extra;
+        ring.publish();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void execute(int type, NodeState<T> state, StartElement element, XMLEvent event,
+                         long startOffset, long endOffset, Object extra) {
+        switch (type) {
+        case START:
+            state.handleElementStart(element, data);
+            break;
+        case END:
+            state.handleElementEnd(event.asEndElement(), data);
+            break;
+        case CONTENTS:
+            state.handleContents(element, event.asCharacters(), data);
+            break;
+        case RANGE:
+            state.handleElementRange(element, startOffset, endOffset, 
+                                     (List<Checkpoint.Frame>)extra, data);
+            break;
+        case BYTES:
+            state.handleElementBytes(element, (ByteBuffer)extra, startOffset, data);
+            break;
+        case CHECKPOINT:
+            checkpointListener.checkpoint((Checkpoint)extra, data);
+            break;
+        case DECLARATION:
+            switch (event.getEventType()) {
+            case XMLEvent.DTD:
+                model.handleDTD((DTD)event, data);
+                break;
+            case XMLEvent.ENTITY_DECLARATION:
+                model.handleEntityDeclaration((EntityDeclaration)event, data);
+                break;
+            case XMLEvent.ENTITY_REFERENCE:
+                model.handleEntityReference((EntityReference)event, data);
+                break;
+            case XMLEvent.NOTATION_DECLARATION:
+                model.handleNotationDeclaration((NotationDeclaration)event, data);
+                break;
+            }
+            break;
+        }
+    }
+
+    /**
+     * Parse on two threads: a tokenizer thread reads events and matches them
+     * against the model, and the calling thread makes the resulting handler
+     * calls, in the same order as they would otherwise be made.
+     */
+    private void parsePipelined() throws XMLStreamException, SNAXUserException {
+        final DispatchRing<T> dispatchRing = new DispatchRing<T>(RING_SIZE);
+        ring = dispatchRing;
+        Thread tokenizer = new Thread("SNAX tokenizer") {
+            @Override
+            public void run() {
+                try {
+                    for (XMLEvent event = xmlReader.nextEvent(); xmlReader.hasNext(); 
+                            event = xmlReader.nextEvent()) {
+                        processEvent(event);
+                    }
+                    dispatch(END_OF_INPUT, null, null, null, 0, 0, null);
+                }
+                catch (CancellationException e) {
+                    // The handler thread has stopped
+                }
+                catch (Throwable t) {
+                    try {
+                        dispatch(FAILURE, null, null, null, 0, 0, t);
+                    }
+                    catch (CancellationException e) {
+                        // The handler thread has stopped
+                    }
+                }
+            }
+        };
+        tokenizer.setDaemon(true);
+        tokenizer.start();
+        boolean interrupted = false;
+        try {
+            while (true) {
+                DispatchRing.Slot<T> slot = dispatchRing.take();
+                if (slot.type == END_OF_INPUT) {
+                    break;
+                }
+                if (slot.type == FAILURE) {
+                    rethrow((Throwable)slot.extra);
+                }
+                try {
+                    execute(slot.type, slot.state, slot.element, slot.event, 
+                            slot.startOffset, slot.endOffset, slot.extra);
+                }
+                catch (SNAXUserException e) {
+                    e.setLocation(slot.event.getLocation());
+                    throw e;
+                }
+                dispatchRing.release(slot);
+            }
+        }
+        finally {
+            // The tokenizer stops at its next handler call; it must have 
+            // done so before the parser is used again
+            dispatchRing.cancel();
+            while (true) {
+                try {
+                    tokenizer.join();
+                    break;
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            ring = null;
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void rethrow(Throwable t) throws XMLStreamException {
+        if (t instanceof XMLStreamException) {
+            throw (XMLStreamException)t;
+        }
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException)t;
+        }
+        if (t instanceof Error) {
+            throw (Error)t;
+        }
+        throw new SNAXUserException(t);
+    }
+
+    /**
+     * Check whether the subtree of an element entering a state can be skipped,
+     * because no handler can be called within it.  Checkpoints are produced 
+     * inside such subtrees like anywhere else, so in that case they are not
+     * skipped.
+     */
+    private boolean canSkip(NodeState<T> state, DescendantRuleSet<T> rules) {
+        return state.equals(NodeState.EMPTY_STATE) && rules.isEmpty() &&
+                !(checkpointListener != null && wholeDocument);
+    }
+
+    /**
+     * Decide whether an element entering a state with sampling is sampled.
+     */
+    private boolean sample(NodeState<T> state) {
+        Integer count = sampleCounts.get(state);
+        int n = (count == null) ? 0 : count;
+        sampleCounts.put(state, n + 1);
+        if (state.getSampleInterval() > 0) {
+            return n % state.getSampleInterval() == 0;
+        }
+        Random random = sampleRandoms.get(state);
+        if (random == null) {
+            random = new Random(state.getSampleSeed());
+            // When resuming, skip the values drawn before the checkpoint
+            for (int i = 0; i < n; i++) {
+                random.nextDouble();
+            }
+            sampleRandoms.put(state, random);
+        }
+        return random.nextDouble() < state.getSampleFraction();
+    }
+
+    private int stateId(NodeState<T> state) {
+        return state.equals(NodeState.EMPTY_STATE) ? -1 : state.getId();
+    }
+
     private void checkState(boolean test, String message) {
         if (!test) {
             throw new IllegalStateException(message);
@@ -249,17 +1065,55 @@ public class SNAXParser<T> implements AutoCloseable {
      * Holder for runtime state.
      */
     class ParseState {
+        ParseState parent;
         NodeState<T> nodeState;
-        Iterable<NodeTransition<T>> deferredRules;
+        DescendantRuleSet<T> deferredRules;
         StartElement element;
         int onlyLimit;
+        long startOffset = -1;
+        private List<Checkpoint.Frame> path;
+        // Number of children so far that entered each state with positions
+        Map<NodeState<T>, Integer> positions;
 
-        ParseState(NodeState<T> nodeState, Iterable<NodeTransition<T>> deferredRules,
+        ParseState(ParseState parent, NodeState<T> nodeState, DescendantRuleSet<T> deferredRules,
                    StartElement element) { 
+            this.parent = parent;
             this.nodeState = nodeState;
             this.onlyLimit = nodeState.getOnlyValue();
             this.deferredRules = deferredRules;
             this.element = element;
         }
+
+        /**
+         * Count a child entering a state with positions.
+         * @return the child's position among those entering the state
+         */
+        int nextPosition(NodeState<T> state) {
+            if (positions == null) {
+                positions = new HashMap<NodeState<T>, Integer>(4);
+            }
+            Integer count = positions.get(state);
+            int position = (count == null) ? 1 : count + 1;
+            positions.put(state, position);
+            return position;
+        }
+
+        /**
+         * Return the open elements down to and including this one, starting 
+         * with the document element.
+         */
+        List<Checkpoint.Frame> path() {
+            if (path == null) {
+                if (element == null) {
+                    path = Collections.emptyList();
+                }
+                else {
+                    List<Checkpoint.Frame> p = new ArrayList<Checkpoint.Frame>(parent.path());
+                    p.add(new Checkpoint.Frame(element, stateId(nodeState)));
+                    path = Collections.unmodifiableList(p);
+                }
+            }
+            return path;
+        }
     }
 }
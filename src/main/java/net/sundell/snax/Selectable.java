@@ -115,6 +115,31 @@ public abstract class Selectable<T> {
         return descendant(new QName(localName), constraints);
     }
 
+    /**
+     * Select elements with a path written in a subset of XPath, such as
+     * <pre>  select("a/b//c[@x='y']")</pre>
+     * which is equivalent to
+     * <pre>  element("a").element("b").descendant("c", with("x").equalTo("y"))</pre>
+     * Steps may be element names, <code>{uri}local</code> names, or
+     * <code>*</code>.  Predicates may test for an attribute (<code>[@x]</code>),
+     * compare it with <code>=</code>, <code>!=</code>, <code>&lt;</code>,
+     * <code>&lt;=</code>, <code>&gt;</code> or <code>&gt;=</code>, test
+     * <code>contains(@x,'y')</code>, or give the position of a child
+     * (<code>[2]</code>).  Conditions may be joined with <code>and</code>.
+     * <p>
+     * Compiled paths are cached, and a path shares model states with any
+     * other path or selector chain that has the same prefix, so large sets
+     * of rules that are written as paths cost little more to match against
+     * than the distinct element names that they contain.
+     *
+     * @param path path expression, relative to this selector
+     * @return selector for the last step of the path
+     * @throws IllegalArgumentException if the path is not valid
+     */
+    public final ElementSelector<T> select(String path) {
+        return PathExpression.compile(path).select(this);
+    }
+
     /**
      * Used to match an attribute when adding a constraint to an <code>ElementSelector</code>.
      * The returned <code>AttributeMatcher</code> instance can be used to specify the constraint, as in
@@ -0,0 +1,164 @@
+package net.sundell.snax;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges equivalent states in a compiled model.  Two states are equivalent if
+ * they are the same kind of state, have the same handlers (by identity) in the
+ * same order, and have equal transition and descendant rule tests that lead to
+ * equivalent states.  Equivalence is found by partition refinement: states
+ * start out grouped by everything except their targets, and groups are split
+ * until every member's targets fall into the same groups.
+ * <p>
+ * States with an <code>only()</code> limit, positions or sampling are never
+ * merged, since their counts are kept per state, and neither are states
+ * whose handlers have not yet been built by a lazy model.
+ */
+class StateMinimizer<T> {
+
+    private List<NodeState<T>> states;
+    private int[] blocks;
+
+    StateMinimizer(List<NodeState<T>> states) {
+        this.states = states;
+    }
+
+    /**
+     * Redirect every transition and descendant rule to a single
+     * representative of its target's equivalence class.
+     * @return the number of states that are no longer reachable
+     */
+    int minimize() {
+        int count = refine(false);
+        int previous;
+        do {
+            previous = count;
+            count = refine(true);
+        } while (count != previous);
+
+        // The representative of each block is its lowest-numbered state,
+        // so the root (state 0) always represents itself.
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        NodeState<T>[] representatives = new NodeState[count];
+        for (int i = 0; i < states.size(); i++) {
+            if (representatives[blocks[i]] == null) {
+                representatives[blocks[i]] = states.get(i);
+            }
+        }
+        for (NodeState<T> state : states) {
+            for (NodeTransition<T> t : state.getTransitions()) {
+                t.setTarget(representatives[blocks[t.getTarget().getId()]]);
+            }
+            for (NodeTransition<T> t : state.getDescendantRules()) {
+                t.setTarget(representatives[blocks[t.getTarget().getId()]]);
+            }
+        }
+        return states.size() - count;
+    }
+
+    /**
+     * Assign each state to a block based on its own contents and the current
+     * blocks of its targets.
+     * @param withTargets false for the first round, which ignores targets
+     * @return number of blocks
+     */
+    private int refine(boolean withTargets) {
+        Map<Signature, Integer> ids = new HashMap<Signature, Integer>();
+        int[] next = new int[states.size()];
+        for (int i = 0; i < states.size(); i++) {
+            NodeState<T> state = states.get(i);
+            Signature key = signature(state, withTargets);
+            Integer id = ids.get(key);
+            if (id == null) {
+                id = ids.size();
+                ids.put(key, id);
+            }
+            next[i] = id;
+        }
+        blocks = next;
+        return ids.size();
+    }
+
+    private Signature signature(NodeState<T> state, boolean withTargets) {
+        List<NodeTransition<T>> transitions = state.getTransitions();
+        List<NodeTransition<T>> rules = state.getDescendantRules();
+        Object[] tests = new Object[transitions.size() + rules.size()];
+        int[] targets = new int[withTargets ? tests.length + 1 : 0];
+        int n = 0;
+        for (NodeTransition<T> t : transitions) {
+            tests[n++] = t.getTest();
+        }
+        for (NodeTransition<T> t : rules) {
+            tests[n++] = t.getTest();
+        }
+        if (withTargets) {
+            // Include the state's current block so each round refines the last
+            targets[0] = blocks[state.getId()];
+            n = 1;
+            for (NodeTransition<T> t : transitions) {
+                targets[n++] = blocks[t.getTarget().getId()];
+            }
+            for (NodeTransition<T> t : rules) {
+                targets[n++] = blocks[t.getTarget().getId()];
+            }
+        }
+        // States that can't be merged get a signature that matches nothing else
+        Object identity = (state.getOnlyValue() != NodeState.NO_ONLY_LIMIT || 
+                state.hasPositions() || state.isSampled() || !state.isBuilt() ||
+                state.getReplacer() != null) ? state : state.getClass();
+        return new Signature(identity, transitions.size(), state.getHandlers().toArray(),
+                             tests, targets);
+    }
+
+    private static class Signature {
+        private Object identity;
+        private int transitionCount;
+        private Object[] handlers;
+        private Object[] tests;
+        private int[] targets;
+        private int hash;
+
+        Signature(Object identity, int transitionCount, Object[] handlers,
+                  Object[] tests, int[] targets) {
+            this.identity = identity;
+            this.transitionCount = transitionCount;
+            this.handlers = handlers;
+            this.tests = tests;
+            this.targets = targets;
+            int h = System.identityHashCode(identity) * 31 + transitionCount;
+            for (Object handler : handlers) {
+                h = h * 31 + System.identityHashCode(handler);
+            }
+            this.hash = (h * 31 + Arrays.hashCode(tests)) * 31 + Arrays.hashCode(targets);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (!(o instanceof Signature)) {
+                return false;
+            }
+            Signature s = (Signature)o;
+            if (identity != s.identity || transitionCount != s.transitionCount ||
+                handlers.length != s.handlers.length) {
+                return false;
+            }
+            for (int i = 0; i < handlers.length; i++) {
+                if (handlers[i] != s.handlers[i]) {
+                    return false;
+                }
+            }
+            return Arrays.equals(targets, s.targets) && Arrays.equals(tests, s.tests);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
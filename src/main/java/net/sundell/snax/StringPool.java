@@ -0,0 +1,110 @@
+package net.sundell.snax;
+
+/**
+ * A bounded pool of short strings, used to share a single copy of values
+ * that repeat many times in a document, such as codes and flags.  A pool
+ * may be given to any number of parsers with
+ * {@link SNAXParser#setStringPool(StringPool)}, including parsers running
+ * concurrently.
+ * <p>
+ * The pool is a fixed-size table indexed by hash.  A lookup whose slot
+ * holds an equal string returns that string; otherwise a new string is
+ * created and replaces whatever was in the slot.  Values that are rare
+ * therefore don't accumulate, and common ones quickly settle in.  Nothing
+ * is locked: concurrent updates to a slot may overwrite each other, which
+ * only costs a missed chance to share.
+ */
+public class StringPool {
+
+    private static final int DEFAULT_CAPACITY = 4096;
+    private static final int DEFAULT_MAX_LENGTH = 32;
+
+    // Strings are immutable, so entries are safe to read without
+    // synchronization
+    private final String[] table;
+    private final int mask;
+    private final int maxLength;
+
+    /**
+     * Create a pool with 4096 slots, for strings up to 32 characters.
+     */
+    public StringPool() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * @param capacity number of slots, which is rounded up to a power of two
+     * @param maxLength length of the longest strings to pool; longer ones are
+     *        always created afresh
+     */
+    public StringPool(int capacity, int maxLength) {
+        if (capacity < 1 || maxLength < 0) {
+            throw new IllegalArgumentException("Invalid pool size");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.table = new String[size];
+        this.mask = size - 1;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Return a string with the contents of a range of characters, creating
+     * one only if the pool doesn't already hold it.
+     * @param chars characters
+     * @param start start of the range
+     * @param length length of the range
+     * @return string
+     */
+    public String get(char[] chars, int start, int length) {
+        if (length > maxLength) {
+            return new String(chars, start, length);
+        }
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + chars[start + i];
+        }
+        int slot = spread(hash) & mask;
+        String s = table[slot];
+        if (s != null && s.length() == length && matches(s, chars, start)) {
+            return s;
+        }
+        s = new String(chars, start, length);
+        table[slot] = s;
+        return s;
+    }
+
+    /**
+     * Return the pooled copy of a string, adding this one to the pool if
+     * there is none.
+     * @param value string
+     * @return a string equal to <code>value</code>
+     */
+    public String get(String value) {
+        if (value == null || value.length() > maxLength) {
+            return value;
+        }
+        int slot = spread(value.hashCode()) & mask;
+        String s = table[slot];
+        if (value.equals(s)) {
+            return s;
+        }
+        table[slot] = value;
+        return value;
+    }
+
+    private static boolean matches(String s, char[] chars, int start) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) != chars[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,467 @@
+package net.sundell.snax;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.Location;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Characters;
+import javax.xml.stream.events.StartElement;
+
+/**
+ * Typed access to attribute values and text, for use in ElementHandlers:
+ * <pre>
+ * public void startElement(StartElement element, Order data) {
+ *     data.quantity = TypedValues.getInt(element, QTY);
+ *     data.placed = TypedValues.getDateMillis(element, PLACED);
+ * }
+ * </pre>
+ * Values are parsed directly from the strings held by the events, without
+ * trimming or copying them.  Leading and trailing XML whitespace is
+ * ignored.  A value that is missing or can't be parsed causes a
+ * {@link SNAXUserException} whose location is that of the element or
+ * text.
+ * <p>
+ * Text may be delivered in several pieces unless the XMLInputFactory is
+ * set to coalesce it, so the text accessors should only be used with a
+ * coalescing factory or on text that is known to be short.
+ */
+public final class TypedValues {
+
+    private TypedValues() { }
+
+    /**
+     * Get an attribute's value as an int.
+     * @throws SNAXUserException if the attribute is missing or is not an int
+     */
+    public static int getInt(StartElement element, QName name) {
+        return toInt(getLong(element, name), element, name);
+    }
+
+    /**
+     * Get an attribute's value as an int, or a default if it is missing.
+     * @throws SNAXUserException if the attribute is not an int
+     */
+    public static int getInt(StartElement element, QName name, int defaultValue) {
+        Attribute attr = element.getAttributeByName(name);
+        return (attr == null) ? defaultValue : getInt(element, name);
+    }
+
+    /**
+     * Get an attribute's value as a long.
+     * @throws SNAXUserException if the attribute is missing or is not a long
+     */
+    public static long getLong(StartElement element, QName name) {
+        String value = getValue(element, name);
+        try {
+            return parseLong(value);
+        }
+        catch (NumberFormatException e) {
+            throw invalid("integer", value, name, element.getLocation());
+        }
+    }
+
+    /**
+     * Get an attribute's value as a long, or a default if it is missing.
+     * @throws SNAXUserException if the attribute is not a long
+     */
+    public static long getLong(StartElement element, QName name, long defaultValue) {
+        Attribute attr = element.getAttributeByName(name);
+        return (attr == null) ? defaultValue : getLong(element, name);
+    }
+
+    /**
+     * Get an attribute's value as a double.  The XML Schema values
+     * <code>INF</code>, <code>-INF</code> and <code>NaN</code> are accepted.
+     * @throws SNAXUserException if the attribute is missing or is not a number
+     */
+    public static double getDouble(StartElement element, QName name) {
+        String value = getValue(element, name);
+        try {
+            return parseDouble(value);
+        }
+        catch (NumberFormatException e) {
+            throw invalid("number", value, name, element.getLocation());
+        }
+    }
+
+    /**
+     * Get an attribute's value as a double, or a default if it is missing.
+     * @throws SNAXUserException if the attribute is not a number
+     */
+    public static double getDouble(StartElement element, QName name, double defaultValue) {
+        Attribute attr = element.getAttributeByName(name);
+        return (attr == null) ? defaultValue : getDouble(element, name);
+    }
+
+    /**
+     * Get an attribute's value as a boolean: <code>true</code> or <code>1</code>,
+     * or <code>false</code> or <code>0</code>.
+     * @throws SNAXUserException if the attribute is missing or is not a boolean
+     */
+    public static boolean getBoolean(StartElement element, QName name) {
+        String value = getValue(element, name);
+        try {
+            return parseBoolean(value);
+        }
+        catch (IllegalArgumentException e) {
+            throw invalid("boolean", value, name, element.getLocation());
+        }
+    }
+
+    /**
+     * Get an attribute's value as a boolean, or a default if it is missing.
+     * @throws SNAXUserException if the attribute is not a boolean
+     */
+    public static boolean getBoolean(StartElement element, QName name, boolean defaultValue) {
+        Attribute attr = element.getAttributeByName(name);
+        return (attr == null) ? defaultValue : getBoolean(element, name);
+    }
+
+    /**
+     * Get an attribute's value as an ISO 8601 date or date and time, in
+     * milliseconds since the epoch.  The accepted forms are
+     * <code>2024-03-01</code>, <code>2024-03-01T12:30</code>,
+     * <code>2024-03-01T12:30:15</code> and <code>2024-03-01T12:30:15.250</code>,
+     * optionally followed by <code>Z</code> or an offset such as
+     * <code>+02:00</code>.  Values without an offset are taken to be UTC.
+     * @throws SNAXUserException if the attribute is missing or is not a date
+     */
+    public static long getDateMillis(StartElement element, QName name) {
+        String value = getValue(element, name);
+        try {
+            return parseDateMillis(value);
+        }
+        catch (IllegalArgumentException e) {
+            throw invalid("date", value, name, element.getLocation());
+        }
+    }
+
+    /**
+     * Get an attribute's value as a date in milliseconds since the epoch,
+     * or a default if it is missing.
+     * @throws SNAXUserException if the attribute is not a date
+     */
+    public static long getDateMillis(StartElement element, QName name, long defaultValue) {
+        Attribute attr = element.getAttributeByName(name);
+        return (attr == null) ? defaultValue : getDateMillis(element, name);
+    }
+
+    /**
+     * Get text as an int.
+     * @throws SNAXUserException if the text is not an int
+     */
+    public static int getInt(Characters text) {
+        long value = getLong(text);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw invalid("int", text.getData(), null, text.getLocation());
+        }
+        return (int)value;
+    }
+
+    /**
+     * Get text as a long.
+     * @throws SNAXUserException if the text is not a long
+     */
+    public static long getLong(Characters text) {
+        try {
+            return parseLong(text.getData());
+        }
+        catch (NumberFormatException e) {
+            throw invalid("integer", text.getData(), null, text.getLocation());
+        }
+    }
+
+    /**
+     * Get text as a double.
+     * @throws SNAXUserException if the text is not a number
+     */
+    public static double getDouble(Characters text) {
+        try {
+            return parseDouble(text.getData());
+        }
+        catch (NumberFormatException e) {
+            throw invalid("number", text.getData(), null, text.getLocation());
+        }
+    }
+
+    /**
+     * Get text as a boolean.
+     * @throws SNAXUserException if the text is not a boolean
+     */
+    public static boolean getBoolean(Characters text) {
+        try {
+            return parseBoolean(text.getData());
+        }
+        catch (IllegalArgumentException e) {
+            throw invalid("boolean", text.getData(), null, text.getLocation());
+        }
+    }
+
+    /**
+     * Get text as a date in milliseconds since the epoch.
+     * @throws SNAXUserException if the text is not a date
+     */
+    public static long getDateMillis(Characters text) {
+        try {
+            return parseDateMillis(text.getData());
+        }
+        catch (IllegalArgumentException e) {
+            throw invalid("date", text.getData(), null, text.getLocation());
+        }
+    }
+
+    private static String getValue(StartElement element, QName name) {
+        Attribute attr = element.getAttributeByName(name);
+        if (attr == null) {
+            SNAXUserException e = new SNAXUserException("Missing attribute " + name +
+                    " on element " + element.getName());
+            e.setLocation(element.getLocation());
+            throw e;
+        }
+        return attr.getValue();
+    }
+
+    private static int toInt(long value, StartElement element, QName name) {
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw invalid("int", String.valueOf(value), name, element.getLocation());
+        }
+        return (int)value;
+    }
+
+    private static SNAXUserException invalid(String type, String value, QName name,
+                                             Location location) {
+        SNAXUserException e = new SNAXUserException("Invalid " + type + " '" + value + "'" +
+                ((name != null) ? " in attribute " + name : ""));
+        e.setLocation(location);
+        return e;
+    }
+
+    // Parsers, which report errors with NumberFormatException or
+    // IllegalArgumentException
+
+    static long parseLong(CharSequence s) {
+        int end = trimEnd(s), i = trimStart(s, end);
+        boolean negative = false;
+        if (i < end && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+            negative = (s.charAt(i) == '-');
+            i++;
+        }
+        if (i == end) {
+            throw new NumberFormatException();
+        }
+        // Accumulate negatively, so that Long.MIN_VALUE can be represented
+        long result = 0;
+        for (; i < end; i++) {
+            int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || result < (Long.MIN_VALUE + digit) / 10) {
+                throw new NumberFormatException();
+            }
+            result = result * 10 - digit;
+        }
+        if (!negative) {
+            if (result == Long.MIN_VALUE) {
+                throw new NumberFormatException();
+            }
+            result = -result;
+        }
+        return result;
+    }
+
+    static double parseDouble(CharSequence s) {
+        int end = trimEnd(s), start = trimStart(s, end);
+        if (regionEquals(s, start, end, "INF") || regionEquals(s, start, end, "+INF")) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (regionEquals(s, start, end, "-INF")) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        if (regionEquals(s, start, end, "NaN")) {
+            return Double.NaN;
+        }
+        // Reject Java-only forms such as "Infinity", "0x1p3" and "1d"
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (!((c >= '0' && c <= '9') || c == '.' || c == '-' || c == '+' ||
+                    c == 'e' || c == 'E')) {
+                throw new NumberFormatException();
+            }
+        }
+        return Double.parseDouble(s.subSequence(start, end).toString());
+    }
+
+    static boolean parseBoolean(CharSequence s) {
+        int end = trimEnd(s), start = trimStart(s, end);
+        if (regionEquals(s, start, end, "true") || regionEquals(s, start, end, "1")) {
+            return true;
+        }
+        if (regionEquals(s, start, end, "false") || regionEquals(s, start, end, "0")) {
+            return false;
+        }
+        throw new IllegalArgumentException();
+    }
+
+    static long parseDateMillis(CharSequence s) {
+        int end = trimEnd(s), i = trimStart(s, end);
+        boolean negativeYear = (i < end && s.charAt(i) == '-');
+        if (negativeYear) {
+            i++;
+        }
+        int yearStart = i;
+        while (i < end && isDigit(s.charAt(i))) {
+            i++;
+        }
+        if (i - yearStart < 4) {
+            throw new IllegalArgumentException();
+        }
+        long year = digits(s, yearStart, i);
+        if (negativeYear) {
+            year = -year;
+        }
+        int month = field(s, i, end, '-', 1, 12);
+        int day = field(s, i + 3, end, '-', 1, 31);
+        i += 6;
+        long millis = 0;
+        if (i < end && s.charAt(i) == 'T') {
+            int hour = field(s, i, end, 'T', 0, 23);
+            int minute = field(s, i + 3, end, ':', 0, 59);
+            i += 6;
+            int second = 0, fraction = 0;
+            if (i < end && s.charAt(i) == ':') {
+                second = field(s, i, end, ':', 0, 59);
+                i += 3;
+                // A fraction is only allowed after the seconds
+                if (i < end && s.charAt(i) == '.') {
+                    i++;
+                    int fractionStart = i;
+                    while (i < end && isDigit(s.charAt(i))) {
+                        i++;
+                    }
+                    if (i == fractionStart) {
+                        throw new IllegalArgumentException();
+                    }
+                    // Milliseconds; further digits are dropped
+                    int digits = Math.min(i - fractionStart, 3);
+                    fraction = (int)digits(s, fractionStart, fractionStart + digits);
+                    for (; digits < 3; digits++) {
+                        fraction *= 10;
+                    }
+                }
+            }
+            millis = ((hour * 60L + minute) * 60 + second) * 1000 + fraction;
+        }
+        if (i < end && s.charAt(i) == 'Z') {
+            i++;
+        }
+        else if (i < end && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+            int sign = (s.charAt(i) == '-') ? -1 : 1;
+            int hours = (int)digits(s, check(i + 1, i + 3, end), i + 3);
+            int minutes = field(s, i + 3, end, ':', 0, 59);
+            if (hours > 14) {
+                throw new IllegalArgumentException();
+            }
+            millis -= sign * (hours * 60L + minutes) * 60000;
+            i += 6;
+        }
+        if (i != end || day > daysInMonth(year, month)) {
+            throw new IllegalArgumentException();
+        }
+        return daysFromEpoch(year, month, day) * 86400000L + millis;
+    }
+
+    /**
+     * Parse a two-digit field preceded by a separator, starting at the
+     * separator.
+     */
+    private static int field(CharSequence s, int pos, int end, char separator, int min, int max) {
+        check(pos, pos + 3, end);
+        if (s.charAt(pos) != separator) {
+            throw new IllegalArgumentException();
+        }
+        int value = (int)digits(s, pos + 1, pos + 3);
+        if (value < min || value > max) {
+            throw new IllegalArgumentException();
+        }
+        return value;
+    }
+
+    private static int check(int pos, int needed, int end) {
+        if (needed > end) {
+            throw new IllegalArgumentException();
+        }
+        return pos;
+    }
+
+    private static long digits(CharSequence s, int start, int end) {
+        if (end - start > 18) {
+            throw new IllegalArgumentException();
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (!isDigit(c)) {
+                throw new IllegalArgumentException();
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int daysInMonth(long year, int month) {
+        switch (month) {
+        case 2:
+            boolean leap = (year % 4 == 0) && (year % 100 != 0 || year % 400 == 0);
+            return leap ? 29 : 28;
+        case 4: case 6: case 9: case 11:
+            return 30;
+        default:
+            return 31;
+        }
+    }
+
+    /**
+     * Days from 1970-01-01 to a date in the proleptic Gregorian calendar.
+     */
+    private static long daysFromEpoch(long year, int month, int day) {
+        long y = (month <= 2) ? year - 1 : year;
+        long era = ((y >= 0) ? y : y - 399) / 400;
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    private static int trimEnd(CharSequence s) {
+        int end = s.length();
+        while (end > 0 && isSpace(s.charAt(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+
+    private static int trimStart(CharSequence s, int end) {
+        int start = 0;
+        while (start < end && isSpace(s.charAt(start))) {
+            start++;
+        }
+        return start;
+    }
+
+    private static boolean regionEquals(CharSequence s, int start, int end, String value) {
+        if (end - start != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (s.charAt(start + i) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,133 @@
+package net.sundell.snax;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+
+/**
+ * An index of the transitions for one element name by the value that their
+ * tests require an attribute to have.  Rules that differ only in such a
+ * predicate, as paths like <code>item[@type='book']</code> often do, are then
+ * found by a lookup on the element's value for that attribute rather than
+ * by testing each in turn.  The candidates for each value, and the
+ * candidates for any other value, keep their original priority order.
+ */
+final class ValueIndex<T> {
+
+    // Smaller sets of transitions are just tested in turn
+    private static final int THRESHOLD = 8;
+
+    private QName attribute;
+    private Map<String, NodeTransition<T>[]> byValue;
+    private NodeTransition<T>[] others;
+
+    private ValueIndex(QName attribute, Map<String, NodeTransition<T>[]> byValue,
+                       NodeTransition<T>[] others) {
+        this.attribute = attribute;
+        this.byValue = byValue;
+        this.others = others;
+    }
+
+    /**
+     * Index a list of transitions by the attribute that most of their tests
+     * require a value for.
+     * @param transitions transitions in priority order
+     * @return the index, or null if too few transitions require a value for
+     *         the same attribute
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    static <T> ValueIndex<T> create(NodeTransition<T>[] transitions) {
+        if (transitions.length < THRESHOLD) {
+            return null;
+        }
+        Map<QName, Integer> counts = new HashMap<QName, Integer>();
+        QName attribute = null;
+        int best = 0;
+        for (NodeTransition<T> t : transitions) {
+            for (AttributeEqualsConstraint c : equalities(t.getTest())) {
+                Integer n = counts.get(c.getQName());
+                n = (n == null) ? 1 : n + 1;
+                counts.put(c.getQName(), n);
+                if (n > best) {
+                    best = n;
+                    attribute = c.getQName();
+                }
+            }
+        }
+        if (best < THRESHOLD) {
+            return null;
+        }
+        // As when indexing by name, transitions that don't require a value
+        // are added to every entry
+        Map<String, List<NodeTransition<T>>> lists = new LinkedHashMap<String, List<NodeTransition<T>>>();
+        List<NodeTransition<T>> other = new ArrayList<NodeTransition<T>>();
+        for (NodeTransition<T> t : transitions) {
+            String value = requiredValue(t.getTest(), attribute);
+            if (value == null) {
+                for (List<NodeTransition<T>> l : lists.values()) {
+                    l.add(t);
+                }
+                other.add(t);
+            }
+            else {
+                List<NodeTransition<T>> l = lists.get(value);
+                if (l == null) {
+                    l = new ArrayList<NodeTransition<T>>(other);
+                    lists.put(value, l);
+                }
+                l.add(t);
+            }
+        }
+        Map<String, NodeTransition<T>[]> byValue =
+                new HashMap<String, NodeTransition<T>[]>(lists.size() * 2);
+        for (Map.Entry<String, List<NodeTransition<T>>> e : lists.entrySet()) {
+            byValue.put(e.getKey(), e.getValue().toArray(new NodeTransition[e.getValue().size()]));
+        }
+        return new ValueIndex<T>(attribute, byValue, other.toArray(new NodeTransition[other.size()]));
+    }
+
+    /**
+     * Return the transitions that could match an element, in priority order.
+     */
+    NodeTransition<T>[] candidates(StartElement element) {
+        Attribute attr = element.getAttributeByName(attribute);
+        NodeTransition<T>[] candidates = (attr != null) ? byValue.get(attr.getValue()) : null;
+        return (candidates != null) ? candidates : others;
+    }
+
+    private static String requiredValue(ElementConstraint test, QName attribute) {
+        for (AttributeEqualsConstraint c : equalities(test)) {
+            if (c.getQName().equals(attribute)) {
+                return c.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the constraints of a test that require an attribute to have
+     * a particular value.
+     */
+    private static List<AttributeEqualsConstraint> equalities(ElementConstraint test) {
+        if (test instanceof AttributeEqualsConstraint) {
+            AttributeEqualsConstraint c = (AttributeEqualsConstraint)test;
+            return c.isRequired() ? Collections.singletonList(c)
+                                  : Collections.<AttributeEqualsConstraint>emptyList();
+        }
+        if (test instanceof ElementSelector.ElementSelectorTest) {
+            List<AttributeEqualsConstraint> l = new ArrayList<AttributeEqualsConstraint>(1);
+            for (ElementConstraint c : ((ElementSelector.ElementSelectorTest<?>)test).getConstraints()) {
+                l.addAll(equalities(c));
+            }
+            return l;
+        }
+        return Collections.emptyList();
+    }
+}
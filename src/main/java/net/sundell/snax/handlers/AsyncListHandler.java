@@ -0,0 +1,221 @@
+package net.sundell.snax.handlers;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.events.EndElement;
+import javax.xml.stream.events.StartElement;
+
+import net.sundell.snax.DefaultElementHandler;
+import net.sundell.snax.ElementView;
+import net.sundell.snax.KeyExtractor;
+import net.sundell.snax.NodeModelBuilder;
+import net.sundell.snax.SNAXUserException;
+
+/**
+ * Handler for lists whose items need slow, independent processing, such as
+ * a lookup in another system.  Like {@link ListHandler}, it is attached to
+ * the element that contains the list.  As each item ends,
+ * <code>submit()</code> is called to start processing it, typically by
+ * submitting a task to an ExecutorService, and parsing continues while
+ * the result is outstanding.  Results are passed to <code>commit()</code>
+ * on the parsing thread.  Each time an item ends, every outstanding item 
+ * that is done and whose turn has come is committed:
+ * <ul>
+ * <li>By default, items take turns in document order.</li>
+ * <li>If a KeyExtractor is supplied, they take turns in document order among
+ * items with the same key, with items that have no key sharing one.  Items
+ * with different keys don't wait for each other, so a slow item only holds
+ * up items that share its key.</li>
+ * </ul>
+ * Results are not checked for between items, so one that finishes while
+ * a long item is being parsed waits for that item's end.  At most 
+ * <code>window</code> items are outstanding at once; when the window is 
+ * full, parsing waits for the oldest.  All outstanding items are committed
+ * before the end of the list is handled.  Any items left outstanding by a
+ * list that was not finished, because parsing failed, are cancelled when
+ * the next list starts.
+ *
+ * @param <T> Data object type that will be passed to parse calls
+ * @param <R> Result type of item processing
+ */
+public abstract class AsyncListHandler<T, R> extends DefaultElementHandler<T> {
+    private QName elementName;
+    private String localName;
+    private int window;
+    private KeyExtractor<T> keyExtractor;
+
+    private StartElement currentItem;
+    // Outstanding items in document order, and by key
+    private LinkedList<Pending<R>> pending = new LinkedList<Pending<R>>();
+    private Map<String, Deque<Pending<R>>> pendingByKey = new HashMap<String, Deque<Pending<R>>>();
+
+    /**
+     * @param elementName name of the item elements
+     * @param window maximum number of items outstanding at once
+     * @param keyExtractor keys that determine commit order, or null to
+     *        commit in document order
+     */
+    public AsyncListHandler(QName elementName, int window, KeyExtractor<T> keyExtractor) {
+        this(window, keyExtractor);
+        this.elementName = elementName;
+    }
+
+    public AsyncListHandler(String localName, int window, KeyExtractor<T> keyExtractor) {
+        this(window, keyExtractor);
+        this.localName = localName;
+    }
+
+    private AsyncListHandler(int window, KeyExtractor<T> keyExtractor) {
+        if (window < 1) {
+            throw new IllegalArgumentException("Window must be positive");
+        }
+        this.window = window;
+        this.keyExtractor = keyExtractor;
+    }
+
+    /**
+     * Start processing an item.  Called on the parsing thread when the item ends.
+     * @param item item element
+     * @param data parser data object
+     * @return future result
+     */
+    protected abstract Future<R> submit(StartElement item, T data);
+
+    /**
+     * Receive the result of processing an item.  Called on the parsing thread.
+     * @param item item element
+     * @param result result
+     * @param data parser data object
+     */
+    protected abstract void commit(StartElement item, R result, T data);
+
+    @Override
+    public void startElement(StartElement element, T data) {
+        cancelAll();
+    }
+
+    @Override
+    public void endElement(EndElement element, T data) {
+        while (!pending.isEmpty()) {
+            commitOldest(data);
+        }
+    }
+
+    @Override
+    public void build(NodeModelBuilder<T> builder) {
+        if (elementName != null) {
+            builder.element(elementName).attach(new ItemHandler());
+        }
+        else {
+            builder.element(localName).attach(new ItemHandler());
+        }
+    }
+
+    private void itemEnded(StartElement item, T data) {
+        String key = (keyExtractor != null) ? keyExtractor.getKey(item, data) : null;
+        Pending<R> p = new Pending<R>(item, key == null ? "" : key, submit(item, data));
+        pending.add(p);
+        Deque<Pending<R>> queue = pendingByKey.get(p.key);
+        if (queue == null) {
+            queue = new ArrayDeque<Pending<R>>();
+            pendingByKey.put(p.key, queue);
+        }
+        queue.add(p);
+        commitReady(data);
+        while (pending.size() >= window) {
+            commitOldest(data);
+        }
+    }
+
+    /**
+     * Commit every item that is done and is first in line for its key.
+     */
+    private void commitReady(T data) {
+        for (Iterator<Pending<R>> it = pending.iterator(); it.hasNext(); ) {
+            Pending<R> p = it.next();
+            if (p.future.isDone() && pendingByKey.get(p.key).peek() == p) {
+                it.remove();
+                commit(p, data);
+            }
+        }
+    }
+
+    /**
+     * Wait for the oldest item, which is always first in line for its key.
+     */
+    private void commitOldest(T data) {
+        commit(pending.removeFirst(), data);
+        commitReady(data);
+    }
+
+    private void commit(Pending<R> p, T data) {
+        Deque<Pending<R>> queue = pendingByKey.get(p.key);
+        queue.removeFirst();
+        if (queue.isEmpty()) {
+            pendingByKey.remove(p.key);
+        }
+        R result;
+        try {
+            result = p.future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancelAll();
+            throw new SNAXUserException(e);
+        }
+        catch (ExecutionException e) {
+            cancelAll();
+            throw new SNAXUserException(e.getCause());
+        }
+        commit(p.item, result, data);
+    }
+
+    private void cancelAll() {
+        for (Pending<R> p : pending) {
+            p.future.cancel(false);
+        }
+        pending.clear();
+        pendingByKey.clear();
+    }
+
+    /**
+     * Get the number of items that are outstanding.
+     * @return count
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    static class Pending<R> {
+        StartElement item;
+        String key;
+        Future<R> future;
+
+        Pending(StartElement item, String key, Future<R> future) {
+            this.item = item;
+            this.key = key;
+            this.future = future;
+        }
+    }
+
+    class ItemHandler extends DefaultElementHandler<T> {
+        @Override
+        public void startElement(StartElement element, T data) {
+            // Kept until the result is committed, after the element ends
+            currentItem = ElementView.snapshot(element);
+        }
+
+        @Override
+        public void endElement(EndElement element, T data) throws SNAXUserException {
+            itemEnded(currentItem, data);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package net.sundell.snax.handlers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.events.EndElement;
+
+/**
+ * A ListConsumer that delivers the items of a list in fixed-size batches,
+ * rather than collecting them all as DefaultListConsumer does.  This keeps
+ * memory use bounded for very long lists, and suits callbacks that work 
+ * best in bulk, such as database inserts.  The final batch of each list 
+ * may be smaller.
+ * <p>
+ * The same batch list is reused for every batch, so callbacks must copy
+ * anything they need to keep once they return.
+ */
+public abstract class BatchingListConsumer<T> implements ListConsumer {
+
+    /**
+     * Receives batches of items.
+     */
+    public interface BatchCallback<T> {
+        /**
+         * Process a batch of items.  The list is only valid until this
+         * method returns.
+         * @param batch items, in document order
+         */
+        void processBatch(List<T> batch);
+    }
+
+    private int batchSize;
+    private BatchCallback<T> callback;
+    private List<T> batch;
+    private long count;
+
+    public BatchingListConsumer(int batchSize, BatchCallback<T> callback) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        this.batchSize = batchSize;
+        this.callback = callback;
+        this.batch = new ArrayList<T>(batchSize);
+    }
+
+    @Override
+    public void beginList() {
+        batch.clear();
+        count = 0;
+    }
+
+    @Override
+    public void consumeElementEnd(EndElement element) {
+    }
+
+    protected void add(T t) {
+        batch.add(t);
+        count++;
+        if (batch.size() == batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Deliver any items that have not yet been delivered.
+     */
+    protected void flush() {
+        if (!batch.isEmpty()) {
+            try {
+                callback.processBatch(batch);
+            }
+            finally {
+                batch.clear();
+            }
+        }
+    }
+
+    @Override
+    public void endList() {
+        flush();
+    }
+
+    /**
+     * Get the number of items added to the current list so far.
+     * @return count
+     */
+    public long getCount() {
+        return count;
+    }
+}
@@ -10,7 +10,13 @@ import org.junit.runners.Suite;
 @Suite.SuiteClasses({
     TestParser.class,
     TestSelectors.class,
-    TestConstraints.class
+    TestConstraints.class,
+    TestCheckpoints.class,
+    TestOffsetIndex.class,
+    TestParallelParser.class,
+    TestMultiModelParser.class,
+    TestTypedValues.class,
+    TestEventCache.class
 })
 public class SNAXTestSuite {
     public static void main(String[] args) {
@@ -0,0 +1,249 @@
+package net.sundell.snax;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.events.Characters;
+import javax.xml.stream.events.StartElement;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TestCheckpoints {
+
+    private static XMLInputFactory factory = XMLInputFactory.newInstance();
+    static {
+        // Text may otherwise be split differently when parsing is resumed
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+    private static final String NS = "urn:test";
+
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("snax", ".xml");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testResumeUTF8() throws Exception {
+        checkResume(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testResumeUTF16() throws Exception {
+        checkResume(StandardCharsets.UTF_16LE);
+    }
+
+    @Test
+    public void testOnlyCountsRestored() throws Exception {
+        write(document(20), StandardCharsets.UTF_8);
+        SNAXParser<List<String>> parser = SNAXParser.createParser(factory,
+                new NodeModelBuilder<List<String>>() {{
+            element(new QName(NS, "doc")).element(new QName(NS, "head")).only(1)
+                        .attach(new DefaultElementHandler<List<String>>());
+            descendant().element(new QName(NS, "rec")).attach(new RecordHandler());
+        }}.build());
+        final List<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+        parser.setCheckpointListener(new CheckpointListener<List<String>>() {
+            @Override
+            public void checkpoint(Checkpoint checkpoint, List<String> data) {
+                checkpoints.add(checkpoint);
+            }
+        }, 0);
+        parser.parse(Files.newInputStream(file), StandardCharsets.UTF_8, new ArrayList<String>());
+        // The head element is already used up at every checkpoint in the body,
+        // so a second one must still be rejected after resuming.
+        Checkpoint last = null;
+        for (Checkpoint checkpoint : checkpoints) {
+            if (checkpoint.getElementStack().size() == 2) {
+                last = checkpoint;
+            }
+        }
+        assertEquals(new QName(NS, "body"), last.getElementStack().get(1));
+        Files.write(file, (read(StandardCharsets.UTF_8, 0, last.getByteOffset()) +
+                "</t:body><t:head/></t:doc>").getBytes(StandardCharsets.UTF_8));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            parser.resume(channel, StandardCharsets.UTF_8, last, new ArrayList<String>());
+            fail("only() limit was not restored");
+        }
+        catch (SNAXUserException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPositionsRestored() throws Exception {
+        write(document(30), StandardCharsets.UTF_8);
+        SNAXParser<List<String>> parser = SNAXParser.createParser(factory,
+                new NodeModelBuilder<List<String>>() {{
+            element(new QName(NS, "doc")).element(new QName(NS, "body"))
+                .element(new QName(NS, "group")).element(new QName(NS, "rec")).first(3)
+                .attach(new RecordHandler());
+        }}.build());
+        final List<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+        parser.setCheckpointListener(new CheckpointListener<List<String>>() {
+            @Override
+            public void checkpoint(Checkpoint checkpoint, List<String> data) {
+                // After the second record of the first group
+                if (data.size() == 2 && checkpoint.getElementStack().size() == 3) {
+                    checkpoints.add(checkpoint);
+                }
+            }
+        }, 0);
+        parser.parse(Files.newInputStream(file), StandardCharsets.UTF_8, new ArrayList<String>());
+        assertEquals(1, checkpoints.size());
+        List<String> resumed = new ArrayList<String>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            parser.resume(channel, StandardCharsets.UTF_8, checkpoints.get(0), resumed);
+        }
+        assertEquals(Arrays.asList("r2", "r10", "r11", "r12", "r20", "r21", "r22"), resumed);
+    }
+
+    @Test
+    public void testSamplingRestored() throws Exception {
+        write(document(100), StandardCharsets.UTF_8);
+        checkSamplingRestored(new NodeModelBuilder<List<String>>() {{
+            descendant().element(new QName(NS, "rec")).sample(7).attach(new RecordHandler());
+        }}.build());
+        checkSamplingRestored(new NodeModelBuilder<List<String>>() {{
+            descendant().element(new QName(NS, "rec")).sample(0.3, 7).attach(new RecordHandler());
+        }}.build());
+    }
+
+    private void checkSamplingRestored(NodeModel<List<String>> model) throws Exception {
+        SNAXParser<List<String>> parser = SNAXParser.createParser(factory, model);
+        final List<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+        final List<Integer> progress = new ArrayList<Integer>();
+        parser.setCheckpointListener(new CheckpointListener<List<String>>() {
+            @Override
+            public void checkpoint(Checkpoint checkpoint, List<String> data) {
+                checkpoints.add(checkpoint);
+                progress.add(data.size());
+            }
+        }, 2000);
+        List<String> all = new ArrayList<String>();
+        parser.parse(Files.newInputStream(file), StandardCharsets.UTF_8, all);
+        // Resuming produces further checkpoints, which aren't checked
+        int count = checkpoints.size();
+        assertTrue(count > 2);
+        for (int i = 0; i < count; i++) {
+            List<String> resumed = new ArrayList<String>();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                parser.resume(channel, StandardCharsets.UTF_8, checkpoints.get(i), resumed);
+            }
+            assertEquals(all.subList(progress.get(i), all.size()), resumed);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCheckpointsRequireByteInput() throws Exception {
+        SNAXParser<List<String>> parser = createParser();
+        parser.setCheckpointListener(new CheckpointListener<List<String>>() {
+            @Override
+            public void checkpoint(Checkpoint checkpoint, List<String> data) {
+            }
+        }, 0);
+        parser.parse(new StringReader(document(1)), new ArrayList<String>());
+    }
+
+    private void checkResume(Charset charset) throws Exception {
+        // Big enough to cross several of the reader's buffers
+        write(document(2000), charset);
+        SNAXParser<List<String>> parser = createParser();
+        final List<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+        final List<Integer> progress = new ArrayList<Integer>();
+        parser.setCheckpointListener(new CheckpointListener<List<String>>() {
+            @Override
+            public void checkpoint(Checkpoint checkpoint, List<String> data) {
+                checkpoints.add(checkpoint);
+                progress.add(data.size());
+            }
+        }, 4096);
+        List<String> all = new ArrayList<String>();
+        parser.parse(Files.newInputStream(file), charset, all);
+        assertEquals(4000, all.size());
+        assertTrue(checkpoints.size() > 10);
+
+        long previous = 0;
+        for (Checkpoint checkpoint : checkpoints) {
+            assertTrue(checkpoint.getByteOffset() - previous >= 4096);
+            previous = checkpoint.getByteOffset();
+            assertEquals(NS, checkpoint.getElementStack().get(0).getNamespaceURI());
+            assertTrue(read(charset, 0, checkpoint.getByteOffset()).endsWith(">"));
+        }
+
+        for (int i : new int[] { 0, checkpoints.size() / 2, checkpoints.size() - 1 }) {
+            List<String> resumed = new ArrayList<String>();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                parser.resume(channel, charset, checkpoints.get(i), resumed);
+            }
+            assertEquals(all.subList(progress.get(i), all.size()), resumed);
+        }
+    }
+
+    private SNAXParser<List<String>> createParser() {
+        return SNAXParser.createParser(factory, new NodeModelBuilder<List<String>>() {{
+            descendant().element(new QName(NS, "rec")).attach(new RecordHandler());
+            descendant().element(new QName(NS, "rec")).element(new QName(NS, "val"))
+                        .attach(new ValueHandler());
+        }}.build());
+    }
+
+    // Records nest in groups of ten, and carry non-ASCII text
+    private static String document(int count) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\"?>\n<t:doc xmlns:t=\"" + NS + "\" a=\"&quot;x&quot;\">");
+        sb.append("<t:head/>\n<t:body>\n");
+        for (int i = 0; i < count; i++) {
+            if (i % 10 == 0) {
+                sb.append("<t:group n=\"" + i + "\">");
+            }
+            sb.append("<t:rec id=\"r" + i + "\"><t:val>été 日本 " + i +
+                      " 😀</t:val></t:rec>\n");
+            if (i % 10 == 9) {
+                sb.append("</t:group>\n");
+            }
+        }
+        sb.append("</t:body></t:doc>");
+        return sb.toString();
+    }
+
+    private void write(String content, Charset charset) throws IOException {
+        Files.write(file, content.getBytes(charset));
+    }
+
+    private String read(Charset charset, long start, long end) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        return new String(bytes, (int)start, (int)(end - start), charset);
+    }
+
+    class RecordHandler extends DefaultElementHandler<List<String>> {
+        @Override
+        public void startElement(StartElement element, List<String> data) {
+            data.add(element.getAttributeByName(new QName("id")).getValue());
+        }
+    }
+
+    class ValueHandler extends DefaultElementHandler<List<String>> {
+        @Override
+        public void characters(StartElement parent, Characters contents, List<String> data) {
+            data.add(contents.getData());
+        }
+    }
+}
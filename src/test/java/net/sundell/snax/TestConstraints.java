@@ -2,16 +2,21 @@ package net.sundell.snax;
 
 import java.io.Reader;
 import java.io.StringReader;
+import java.util.Arrays;
 import java.util.regex.Pattern;
 
 import javax.xml.namespace.QName;
 import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.events.Characters;
+import javax.xml.stream.events.StartElement;
 
 import net.sundell.snax.TestUtils.TestCHandler;
 
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Tests of element constraints.
@@ -112,4 +117,65 @@ public class TestConstraints {
         assertEquals("FOO", foo.contents);
        
     }
+
+    @Test
+    public void testAttrNumericRanges() throws Exception {
+        String xml = "<xml><foo n='5'>A</foo><foo n='1000'>B</foo><foo n='1000.5'>C</foo>" +
+                     "<foo n='-3e2'>D</foo><foo n='x'>E</foo><foo>F</foo>" +
+                     "<foo n='99999999999999999999'>G</foo></xml>";
+        assertEquals("CG", selected(xml, new AttributeMatcher(new QName("n")).greaterThan(1000)));
+        assertEquals("BCG", selected(xml, new AttributeMatcher(new QName("n")).greaterThanOrEqualTo(1000)));
+        assertEquals("AD", selected(xml, new AttributeMatcher(new QName("n")).lessThan(1000)));
+        assertEquals("ABD", selected(xml, new AttributeMatcher(new QName("n")).lessThanOrEqualTo(1000)));
+        assertEquals("AB", selected(xml, new AttributeMatcher(new QName("n")).between(5, 1000)));
+        assertEquals("ABD", selected(xml, 
+                new AttributeMatcher(new QName("n")).inRanges(900, 1000, -400, -200, 0, 10)));
+    }
+
+    @Test
+    public void testAttrNumericRangeEquality() throws Exception {
+        AttributeMatcher n = new AttributeMatcher(new QName("n"));
+        assertEquals(n.inRanges(1, 5, 10, 20), n.inRanges(10, 20, 1, 3, 2, 5));
+        assertEquals(n.between(1, 5), n.inRanges(1, 5));
+        assertFalse(n.greaterThan(1).equals(n.greaterThanOrEqualTo(1)));
+    }
+
+    @Test
+    public void testAttrIn() throws Exception {
+        String xml = "<xml><foo c='EUR'>A</foo><foo c='USD'>B</foo><foo c='GBP'>C</foo><foo>D</foo></xml>";
+        AttributeMatcher c = new AttributeMatcher(new QName("c"));
+        assertEquals("AC", selected(xml, c.in(Arrays.asList("EUR", "GBP", "JPY"))));
+        assertEquals("BD", selected(xml, c.notIn(Arrays.asList("EUR", "GBP", "JPY"))));
+        assertEquals(c.in(Arrays.asList("EUR", "GBP")), c.in(Arrays.asList("GBP", "EUR", "GBP")));
+    }
+
+    @Test
+    public void testAttrContainsAny() throws Exception {
+        String xml = "<xml><foo t='ushers'>A</foo><foo t='hisher'>B</foo><foo t='xyz'>C</foo>" +
+                     "<foo t='ahishe'>D</foo><foo t='sh'>E</foo></xml>";
+        AttributeMatcher t = new AttributeMatcher(new QName("t"));
+        assertEquals("ABD", selected(xml, t.containsAny(Arrays.asList("he", "she", "his", "hers"))));
+        assertEquals("CE", selected(xml, t.containsNone(Arrays.asList("he", "she", "his", "hers"))));
+        assertEquals("BD", selected(xml, t.containsAny(Arrays.asList("ishe", "qq"))));
+        assertEquals("ABCDE", selected(xml, t.containsAny(Arrays.asList(""))));
+        // Failure links must find the shorter pattern inside a failed longer one
+        AttributeContainsAnyConstraint ac = new AttributeContainsAnyConstraint(new QName("t"),
+                Arrays.asList("abcd", "bc"), true);
+        assertTrue(ac.containsAny("xabcx"));
+        assertFalse(ac.containsAny("xabdcx"));
+    }
+
+    private String selected(String xml, final ElementConstraint constraint) throws Exception {
+        final StringBuilder sb = new StringBuilder();
+        SNAXParser<?> parser = SNAXParser.createParser(factory, new NodeModelBuilder<Object>() {{
+            element("xml").element("foo", constraint).attach(new DefaultElementHandler<Object>() {
+                @Override
+                public void characters(StartElement parent, Characters contents, Object data) {
+                    sb.append(contents.getData());
+                }
+            });
+        }}.build());
+        parser.parse(new StringReader(xml), null);
+        return sb.toString();
+    }
 }
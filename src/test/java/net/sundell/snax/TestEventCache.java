@@ -0,0 +1,105 @@
+package net.sundell.snax;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Characters;
+import javax.xml.stream.events.EndElement;
+import javax.xml.stream.events.StartElement;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TestEventCache {
+
+    private static XMLInputFactory factory = XMLInputFactory.newInstance();
+
+    private static final String XML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<!-- header --><?pi data?>\n" +
+            "<c:catalog xmlns:c=\"urn:c\" xmlns=\"urn:d\">\n" +
+            "  <item id=\"1\" c:kind=\"book\"><name>Café &amp; Bar</name></item>\n" +
+            "  <item id=\"2\" c:kind=\"book\"><name><![CDATA[<raw>]]></name></item>\n" +
+            "  <c:item id=\"3\" xmlns=\"urn:e\"><name/></c:item>\n" +
+            "</c:catalog>";
+
+    @Test
+    public void testReplay() throws Exception {
+        NodeModel<List<String>> model = new NodeModelBuilder<List<String>>() {{
+            descendant().attach(new RecordingHandler());
+        }}.build();
+        List<String> expected = new ArrayList<String>();
+        SNAXParser.createParser(factory, model).parse(new StringReader(XML), expected);
+
+        EventCache cache = EventCache.record(factory, new StringReader(XML));
+        assertTrue(cache.getSize() > 0);
+        List<String> replayed = new ArrayList<String>();
+        SNAXParser<List<String>> parser = SNAXParser.createParser(factory, model);
+        parser.parse(cache, replayed);
+        assertEquals(expected, replayed);
+
+        // The same cache can be replayed again, with reused events
+        replayed.clear();
+        parser.setReuseEvents(true);
+        parser.parse(cache, replayed);
+        assertEquals(expected, replayed);
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        NodeModel<List<String>> model = new NodeModelBuilder<List<String>>() {{
+            select("catalog/item/name").attach(new RecordingHandler());
+        }}.build();
+        EventCache cache = EventCache.record(factory, new StringReader(XML));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cache.writeTo(out);
+        EventCache loaded = EventCache.readFrom(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(cache.getSize(), loaded.getSize());
+
+        List<String> expected = new ArrayList<String>();
+        SNAXParser.createParser(factory, model).parse(cache, expected);
+        List<String> actual = new ArrayList<String>();
+        SNAXParser.createParser(factory, model).parse(loaded, actual);
+        assertEquals(expected, actual);
+    }
+
+    @Test(expected = IOException.class)
+    public void testLoadInvalid() throws Exception {
+        EventCache.readFrom(new ByteArrayInputStream(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }));
+    }
+
+    static class RecordingHandler extends DefaultElementHandler<List<String>> {
+        @Override
+        public void startElement(StartElement element, List<String> data) {
+            StringBuilder sb = new StringBuilder(element.getName().toString());
+            sb.append('@').append(element.getLocation().getLineNumber());
+            // Attributes are not always returned in document order
+            List<String> attrs = new ArrayList<String>();
+            for (Iterator<Attribute> it = element.getAttributes(); it.hasNext(); ) {
+                Attribute attr = it.next();
+                attrs.add(attr.getName() + "=" + attr.getValue());
+            }
+            Collections.sort(attrs);
+            sb.append(' ').append(attrs);
+            sb.append(" default=").append(element.getNamespaceContext().getNamespaceURI(""));
+            data.add(sb.toString());
+        }
+
+        @Override
+        public void characters(StartElement parent, Characters contents, List<String> data) {
+            data.add((contents.isCData() ? "cdata:" : "text:") + contents.getData());
+        }
+
+        @Override
+        public void endElement(EndElement element, List<String> data) {
+            data.add("/" + element.getName());
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package net.sundell.snax;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.events.Characters;
+import javax.xml.stream.events.EndElement;
+import javax.xml.stream.events.StartElement;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TestMultiModelParser {
+
+    private static XMLInputFactory factory = XMLInputFactory.newInstance();
+
+    private static final String DOCUMENT =
+            "<catalog><item id='1'><price>5</price></item>" +
+            "<item id='2'><name>x</name><price>7</price></item>" +
+            "<section><item id='3'><price>9</price></item></section></catalog>";
+
+    @Test
+    public void testSinglePass() throws Exception {
+        NodeModel<List<String>> ids = new NodeModelBuilder<List<String>>() {{
+            descendant().element("item").attach(new DefaultElementHandler<List<String>>() {
+                @Override
+                public void startElement(StartElement element, List<String> data) {
+                    data.add(element.getAttributeByName(new QName("id")).getValue());
+                }
+                @Override
+                public void endElement(EndElement element, List<String> data) {
+                    data.add("/" + element.getName().getLocalPart());
+                }
+            });
+        }}.build();
+        NodeModel<StringBuilder> prices = new NodeModelBuilder<StringBuilder>() {{
+            elements("catalog", "item", "price").attach(new DefaultElementHandler<StringBuilder>() {
+                @Override
+                public void characters(StartElement parent, Characters characters,
+                                       StringBuilder data) {
+                    data.append(characters.getData()).append(";");
+                }
+            });
+        }}.build();
+
+        List<String> expectedIds = new ArrayList<String>();
+        SNAXParser.createParser(factory, ids).parse(new StringReader(DOCUMENT), expectedIds);
+        StringBuilder expectedPrices = new StringBuilder();
+        SNAXParser.createParser(factory, prices).parse(new StringReader(DOCUMENT), expectedPrices);
+        assertEquals(6, expectedIds.size());
+        assertEquals("5;7;", expectedPrices.toString());
+
+        List<String> actualIds = new ArrayList<String>();
+        StringBuilder actualPrices = new StringBuilder();
+        MultiModelParser parser = MultiModelParser.createParser(factory)
+                .addModel(ids, actualIds)
+                .addModel(prices, actualPrices);
+        parser.parse(new StringReader(DOCUMENT));
+        assertEquals(expectedIds, actualIds);
+        assertEquals(expectedPrices.toString(), actualPrices.toString());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNoModels() throws Exception {
+        MultiModelParser.createParser(factory).parse(new StringReader(DOCUMENT));
+    }
+}
@@ -0,0 +1,258 @@
+package net.sundell.snax;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.events.Characters;
+import javax.xml.stream.events.StartElement;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TestOffsetIndex {
+
+    private static XMLInputFactory factory = XMLInputFactory.newInstance();
+    static {
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("snax", ".xml");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testIndexedLookup() throws Exception {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\"?>\n" +
+                "<!DOCTYPE catalog [ <!ATTLIST item id CDATA \"<x>\"> ]>\n" +
+                "<catalog xmlns=\"urn:c\">\n");
+        for (int i = 0; i < 500; i++) {
+            // Markup that could be mistaken for tags
+            sb.append("<!-- <item id=\"c\"> --><?pi <item>?><![CDATA[<item>]]>");
+            sb.append("<section n=\"" + (i / 100) + "\" gt=\">\" slash='/>'>");
+            sb.append("<item id=\"k" + i + "\"><name>Ünïcode " + i + "</name></item>");
+            sb.append("<item id=\"dup\"/>");
+            sb.append("</section>\n");
+        }
+        sb.append("</catalog>");
+        Files.write(file, sb.toString().getBytes(StandardCharsets.UTF_8));
+
+        final OffsetIndexBuilder<List<String>> indexer = new OffsetIndexBuilder<List<String>>(
+                new KeyExtractor<List<String>>() {
+            @Override
+            public String getKey(StartElement element, List<String> data) {
+                return element.getAttributeByName(new QName("id")).getValue();
+            }
+        });
+        SNAXParser<List<String>> parser = SNAXParser.createParser(factory, 
+                new NodeModelBuilder<List<String>>() {{
+            ChildSelector<List<String>> item = element(new QName("urn:c", "catalog"))
+                    .child().element(new QName("urn:c", "item"));
+            item.attach(indexer);
+            item.element(new QName("urn:c", "name")).attach(new NameHandler());
+        }}.build());
+        List<String> names = new ArrayList<String>();
+        parser.parse(Files.newInputStream(file), StandardCharsets.UTF_8, names);
+        assertEquals(500, names.size());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        indexer.getIndex().write(out);
+        OffsetIndex index = OffsetIndex.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(1000, index.size());
+        assertTrue(index.find("missing").isEmpty());
+
+        List<OffsetIndex.Entry> entries = index.find("k321");
+        assertEquals(1, entries.size());
+        OffsetIndex.Entry entry = entries.get(0);
+        String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        assertEquals("<item id=\"k321\"><name>Ünïcode 321</name></item>",
+                new String(bytes, (int)entry.getStartOffset(),
+                           (int)(entry.getEndOffset() - entry.getStartOffset()), 
+                           StandardCharsets.UTF_8));
+
+        List<String> found = new ArrayList<String>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            parser.parse(channel, StandardCharsets.UTF_8, entry, found);
+        }
+        assertEquals(1, found.size());
+        assertEquals("Ünïcode 321", found.get(0));
+        // Parsing a single record doesn't add to the index
+        assertEquals(1000, indexer.getIndex().size());
+
+        entries = index.find("dup");
+        assertEquals(500, entries.size());
+        for (int i = 1; i < entries.size(); i++) {
+            assertTrue(entries.get(i).getStartOffset() > entries.get(i - 1).getStartOffset());
+        }
+        assertEquals("<item id=\"dup\"/>", new String(bytes, (int)entries.get(0).getStartOffset(),
+                (int)(entries.get(0).getEndOffset() - entries.get(0).getStartOffset()),
+                StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testLongValues() throws Exception {
+        // Keys and context attributes longer than writeUTF() allows
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 70000; i++) {
+            sb.append('\u00e9');
+        }
+        String value = sb.toString();
+        byte[] content = ("<catalog v=\"" + value + "\"><item id=\"" + value + "\"/></catalog>")
+                .getBytes(StandardCharsets.UTF_8);
+        final OffsetIndexBuilder<List<String>> indexer = new OffsetIndexBuilder<List<String>>(
+                new KeyExtractor<List<String>>() {
+            @Override
+            public String getKey(StartElement element, List<String> data) {
+                return element.getAttributeByName(new QName("id")).getValue();
+            }
+        });
+        SNAXParser.createParser(factory, new NodeModelBuilder<List<String>>() {{
+            elements("catalog", "item").attach(indexer);
+        }}.build()).parse(new ByteArrayInputStream(content), StandardCharsets.UTF_8, 
+                          new ArrayList<String>());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        indexer.getIndex().write(out);
+        OffsetIndex index = OffsetIndex.read(new ByteArrayInputStream(out.toByteArray()));
+        List<OffsetIndex.Entry> entries = index.find(value);
+        assertEquals(1, entries.size());
+        assertEquals(value, entries.get(0).getContext().get(0).attributes.get(new QName("v")));
+    }
+
+    class NameHandler extends DefaultElementHandler<List<String>> {
+        @Override
+        public void characters(StartElement parent, Characters contents, List<String> data) {
+            data.add(contents.getData());
+        }
+    }
+
+    @Test
+    public void testElementBytes() throws Exception {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\"?>\n<records>\n");
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 300; i++) {
+            StringBuilder record = new StringBuilder("<record id=\"" + i + "\">");
+            // Some records are much larger than the parser's buffers
+            int size = (i % 100 == 7) ? 50000 : 3;
+            for (int j = 0; j < size; j++) {
+                record.append("<v>\u00e9" + j + "</v>");
+            }
+            record.append("</record>");
+            expected.add(record.toString());
+            sb.append(record).append("\n<skip>x</skip>\n");
+        }
+        sb.append("</records>");
+        byte[] content = sb.toString().getBytes(StandardCharsets.UTF_8);
+        Files.write(file, content);
+
+        NodeModel<List<String>> model = new NodeModelBuilder<List<String>>() {{
+            elements("records", "record").attach(new BytesHandler());
+        }}.build();
+        SNAXParser<List<String>> parser = SNAXParser.createParser(factory, model);
+        List<String> records = new ArrayList<String>();
+        parser.parse(new ByteArrayInputStream(content), StandardCharsets.UTF_8, records);
+        assertEquals(expected, records);
+
+        records.clear();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            parser.parse(channel, StandardCharsets.UTF_8, records);
+        }
+        assertEquals(expected, records);
+
+        records.clear();
+        parser.setPipelined(true);
+        parser.parse(new ByteArrayInputStream(content), StandardCharsets.UTF_8, records);
+        assertEquals(expected, records);
+
+        // Compressed files are read as a stream
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(file))) {
+            out.write(content);
+        }
+        records.clear();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            parser.parse(channel, StandardCharsets.UTF_8, records);
+        }
+        assertEquals(expected, records);
+    }
+
+    @Test
+    public void testLazyElementBytes() throws Exception {
+        StringBuilder sb = new StringBuilder("<records>");
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 2000; i++) {
+            String record = "<record id=\"" + i + "\"><v>\u00e9</v></record>";
+            expected.add(record);
+            sb.append(record);
+        }
+        byte[] content = sb.append("</records>").toString().getBytes(StandardCharsets.UTF_8);
+
+        NodeModel<List<String>> plain = new NodeModelBuilder<List<String>>() {{
+            elements("records", "record").attach(new DefaultElementHandler<List<String>>());
+        }}.build();
+        assertFalse(plain.mayHaveBytesHandlers());
+
+        // The bytes handler is only attached once parsing reaches <records>
+        NodeModel<List<String>> model = new NodeModelBuilder<List<String>>() {{
+            setLazy(true);
+            element("records").attach(new DefaultElementHandler<List<String>>() {
+                @Override
+                public void build(NodeModelBuilder<List<String>> builder) {
+                    builder.element("record").attach(new BytesHandler());
+                }
+            });
+        }}.build();
+        assertTrue(model.mayHaveBytesHandlers());
+        List<String> records = new ArrayList<String>();
+        SNAXParser.createParser(factory, model)
+                  .parse(new ByteArrayInputStream(content), StandardCharsets.UTF_8, records);
+        assertEquals(expected, records);
+    }
+
+    @Test
+    public void testLongStartTag() throws Exception {
+        // The start tag is longer than the characters the parser keeps
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 300000; i++) {
+            value.append((char)('a' + i % 26));
+        }
+        String record = "<record v=\"" + value + "\"><v>\u00e9</v></record>";
+        byte[] content = ("<records>" + record + "<record/></records>").getBytes(StandardCharsets.UTF_8);
+
+        NodeModel<List<String>> model = new NodeModelBuilder<List<String>>() {{
+            elements("records", "record").attach(new BytesHandler());
+        }}.build();
+        List<String> records = new ArrayList<String>();
+        SNAXParser.createParser(factory, model)
+                  .parse(new ByteArrayInputStream(content), StandardCharsets.UTF_8, records);
+        assertEquals(Arrays.asList(record, "<record/>"), records);
+    }
+
+    static class BytesHandler extends DefaultElementHandler<List<String>> 
+                implements ElementBytesHandler<List<String>> {
+        @Override
+        public void elementBytes(StartElement element, ByteBuffer bytes, long startOffset, 
+                                 List<String> data) {
+            assertTrue(bytes.isReadOnly());
+            data.add(StandardCharsets.UTF_8.decode(bytes).toString());
+        }
+    }
+}
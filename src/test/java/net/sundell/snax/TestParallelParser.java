@@ -0,0 +1,204 @@
+package net.sundell.snax;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.events.EndElement;
+import javax.xml.stream.events.StartElement;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TestParallelParser {
+
+    private static XMLInputFactory factory = XMLInputFactory.newInstance();
+
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("snax", ".xml");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testParallelParse() throws Exception {
+        checkParallelParse(document(5000, false), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testParallelParseUTF16() throws Exception {
+        checkParallelParse(document(5000, false), StandardCharsets.UTF_16BE);
+    }
+
+    @Test
+    public void testFalseBoundaries() throws Exception {
+        // A long comment full of fake records, which chunk searches will land in
+        checkParallelParse(document(5000, true), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testFalseBoundariesHandledOnce() throws Exception {
+        // Fake records in a comment, in a CDATA section and nested within
+        // a record, each long enough for a chunk search to land in it
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\"?>\n<export version=\"2\">\n");
+        for (int i = 0; i < 5000; i++) {
+            sb.append("<item id=\"i" + i + "\">");
+            if (i == 1000) {
+                sb.append("<!--");
+                appendFakes(sb, "<item id=\"fake\">");
+                sb.append("-->");
+            }
+            else if (i == 2000) {
+                sb.append("<![CDATA[");
+                appendFakes(sb, "<item id='fake'>");
+                sb.append("]]>");
+            }
+            else if (i == 3000) {
+                sb.append("<notes>");
+                appendFakes(sb, "<item id=\"fake\"/>");
+                sb.append("</notes>");
+            }
+            sb.append("<title>Item " + i + "</title></item>\n");
+        }
+        sb.append("</export>");
+        Files.write(file, sb.toString().getBytes(StandardCharsets.UTF_8));
+
+        AtomicInteger calls = new AtomicInteger();
+        ParallelParser<List<String>> parser = ParallelParser.createParser(factory, model(calls),
+                new QName("export"), new QName("item"));
+        parser.setChunkCount(4);
+        List<List<String>> results;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            results = parser.parse(channel, StandardCharsets.UTF_8, new ListFactory());
+        }
+        List<String> all = new ArrayList<String>();
+        for (List<String> result : results) {
+            all.addAll(result);
+        }
+        assertEquals(sequential(StandardCharsets.UTF_8), all);
+        // Every handler call went into a delivered result
+        assertEquals(5002, calls.get());
+    }
+
+    private static void appendFakes(StringBuilder sb, String fake) {
+        for (int j = 0; j < 20000; j++) {
+            sb.append(fake);
+        }
+    }
+
+    @Test
+    public void testMerger() throws Exception {
+        Files.write(file, document(5000, false).getBytes(StandardCharsets.UTF_8));
+        ParallelParser<List<String>> parser = ParallelParser.createParser(factory, model(),
+                new QName("export"), new QName("item"));
+        parser.setChunkCount(4);
+        List<String> merged;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            merged = parser.parse(channel, StandardCharsets.UTF_8, new ListFactory(),
+                    new ParallelParser.Merger<List<String>>() {
+                @Override
+                public List<String> merge(List<String> first, List<String> second) {
+                    first.addAll(second);
+                    return first;
+                }
+            });
+        }
+        assertEquals(sequential(StandardCharsets.UTF_8), merged);
+    }
+
+    private void checkParallelParse(String document, Charset charset) throws Exception {
+        Files.write(file, document.getBytes(charset));
+        List<String> expected = sequential(charset);
+        assertEquals(5002, expected.size());
+
+        ParallelParser<List<String>> parser = ParallelParser.createParser(factory, model(),
+                new QName("export"), new QName("item"));
+        parser.setChunkCount(4);
+        List<List<String>> results;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            results = parser.parse(channel, charset, new ListFactory());
+        }
+        assertTrue(results.size() > 1);
+        List<String> all = new ArrayList<String>();
+        for (List<String> result : results) {
+            all.addAll(result);
+        }
+        assertEquals(expected, all);
+        // The enclosing element is started in the first chunk and ended in the last
+        assertEquals("start", results.get(0).get(0));
+        List<String> last = results.get(results.size() - 1);
+        assertEquals("end", last.get(last.size() - 1));
+    }
+
+    private List<String> sequential(Charset charset) throws Exception {
+        List<String> expected = new ArrayList<String>();
+        SNAXParser.createParser(factory, model()).parse(Files.newInputStream(file), charset, expected);
+        return expected;
+    }
+
+    private static String document(int count, boolean fakes) {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\"?>\n<export version=\"2\">\n");
+        for (int i = 0; i < count; i++) {
+            sb.append("<item id=\"i" + i + "\"><title>Item " + i + " ü</title></item>\n");
+            if (fakes && i == 100) {
+                sb.append("<!--");
+                for (int j = 0; j < 20000; j++) {
+                    sb.append("<item id=\"fake\">");
+                }
+                sb.append("-->\n");
+            }
+        }
+        sb.append("</export>");
+        return sb.toString();
+    }
+
+    private static NodeModel<List<String>> model() {
+        return model(new AtomicInteger());
+    }
+
+    private static NodeModel<List<String>> model(final AtomicInteger calls) {
+        return new NodeModelBuilder<List<String>>() {{
+            element("export").attach(new DefaultElementHandler<List<String>>() {
+                @Override
+                public void startElement(StartElement element, List<String> data) {
+                    calls.incrementAndGet();
+                    data.add("start");
+                }
+                @Override
+                public void endElement(EndElement element, List<String> data) {
+                    calls.incrementAndGet();
+                    data.add("end");
+                }
+            });
+            element("export").element("item").attach(new DefaultElementHandler<List<String>>() {
+                @Override
+                public void startElement(StartElement element, List<String> data) {
+                    calls.incrementAndGet();
+                    data.add(element.getAttributeByName(new QName("id")).getValue());
+                }
+            });
+        }}.build();
+    }
+
+    static class ListFactory implements ParallelParser.DataFactory<List<String>> {
+        @Override
+        public List<String> createData() {
+            return new ArrayList<String>();
+        }
+    }
+}
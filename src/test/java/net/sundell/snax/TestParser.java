@@ -4,10 +4,25 @@ import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventWriter;
 import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Characters;
+import javax.xml.stream.events.EndElement;
 import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
 
 import net.sundell.snax.SNAXParser;
 import static net.sundell.snax.TestUtils.*;
@@ -131,6 +146,129 @@ public class TestParser {
         assertEquals("YES", foo.contents);
     }
 
+    @Test
+    public void testLazyNestedBuilders() throws Exception {
+        final TestCHandler foo = new TestCHandler();
+        final int[] builds = new int[1];
+        SNAXParser<?> parser = SNAXParser.createParser(factory, new NodeModelBuilder<Object>() {{
+            setLazy(true);
+            elements("xml", "a").attach(new DefaultElementHandler<Object>() {
+                @Override
+                public void build(NodeModelBuilder<Object> builder) {
+                    builds[0]++;
+                    builder.element("foo").attach(new DefaultElementHandler<Object>() {
+                        @Override
+                        public void build(NodeModelBuilder<Object> builder2) {
+                            builds[0]++;
+                            builder2.element("bar").attach(foo);
+                        }
+                    });
+                }
+            });
+        }}.build());
+        assertEquals(0, builds[0]);
+        parser.parse(new StringReader("<xml><b><foo><bar>NO</bar></foo></b></xml>"), null);
+        assertEquals(0, builds[0]);
+        assertEquals("", foo.contents);
+        parser.parse(new StringReader("<xml><a><baz/></a></xml>"), null);
+        assertEquals(1, builds[0]);
+        parser.parse(new StringReader("<xml><a><foo><bar>YES</bar></foo></a></xml>"), null);
+        assertEquals(2, builds[0]);
+        assertEquals("YES", foo.contents);
+        parser.parse(new StringReader("<xml><a><foo><bar>AGAIN</bar></foo></a></xml>"), null);
+        assertEquals(2, builds[0]);
+        assertEquals("AGAIN", foo.contents);
+    }
+
+    @Test
+    public void testLazyModelSharedBetweenThreads() throws Exception {
+        final int elements = 50, threads = 8, passes = 20;
+        final AtomicInteger builds = new AtomicInteger();
+        final AtomicInteger foos = new AtomicInteger();
+        final AtomicInteger bars = new AtomicInteger();
+        final DefaultElementHandler<Object> fooCounter = new DefaultElementHandler<Object>() {
+            @Override
+            public void startElement(StartElement element, Object data) {
+                foos.incrementAndGet();
+            }
+        };
+        final DefaultElementHandler<Object> barCounter = new DefaultElementHandler<Object>() {
+            @Override
+            public void startElement(StartElement element, Object data) {
+                bars.incrementAndGet();
+            }
+        };
+        final NodeModel<Object> model = new NodeModelBuilder<Object>() {{
+            setLazy(true);
+            for (int i = 0; i < elements; i++) {
+                // Each lazy build extends a state that parsers may already be using
+                element("xml").element("a" + i).element("foo").attach(fooCounter);
+                element("xml").element("a" + i).attach(new DefaultElementHandler<Object>() {
+                    @Override
+                    public void build(NodeModelBuilder<Object> builder) {
+                        builds.incrementAndGet();
+                        builder.element("foo").element("bar").attach(barCounter);
+                    }
+                });
+            }
+        }}.build();
+        StringBuilder sb = new StringBuilder("<xml>");
+        for (int i = 0; i < elements; i++) {
+            sb.append("<a").append(i).append("><foo><bar/></foo></a").append(i).append(">");
+        }
+        final String xml = sb.append("</xml>").toString();
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            workers.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        SNAXParser<Object> parser =
+                                SNAXParser.createParser(XMLInputFactory.newInstance(), model);
+                        for (int p = 0; p < passes; p++) {
+                            parser.parse(new StringReader(xml), null);
+                        }
+                    }
+                    catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(Collections.<Throwable>emptyList(), errors);
+        assertEquals(elements, builds.get());
+        assertEquals(elements * threads * passes, foos.get());
+        assertEquals(elements * threads * passes, bars.get());
+    }
+
+    @Test
+    public void testMinimizedModel() throws Exception {
+        final TestMultiHandler x = new TestMultiHandler();
+        final TestMultiHandler y = new TestMultiHandler();
+        NodeModel<Object> model = new NodeModelBuilder<Object>() {{
+            setMinimize(true);
+            element("xml").element("a").element("x").attach(x);
+            element("xml").element("b").element("x").attach(x);
+            element("xml").element("c").element("x").attach(y);
+            element("xml").element("d").only(1).element("x").attach(x);
+        }}.build();
+        // root, xml, a and b, c, c/x, d, and one state for a/x, b/x and d/x
+        assertEquals(7, model.getStateCount());
+        SNAXParser<?> parser = SNAXParser.createParser(factory, model);
+        parser.parse(new StringReader("<xml><a><x/></a><b><x/><y/></b><c><x/></c><d><x/></d></xml>"), null);
+        assertEquals(3, x.elementNames.size());
+        assertEquals(1, y.elementNames.size());
+    }
+
     @Test
     public void testAddExplicitTransition() throws Exception {
         final TestCHandler foo = new TestCHandler();
@@ -203,6 +341,385 @@ public class TestParser {
         assertEquals("a", bar.elementName);
     }
 
+    @Test
+    public void testCompressedInput() throws Exception {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\"?>\n<xml>");
+        for (int i = 0; i < 20000; i++) {
+            sb.append("<foo n=\"" + i + "\">Text ").append(i).append("</foo>\n");
+        }
+        sb.append("</xml>");
+        byte[] xml = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(gzipped)) {
+            out.write(xml);
+        }
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        try (OutputStream out = new DeflaterOutputStream(deflated)) {
+            out.write(xml);
+        }
+        for (byte[] input : new byte[][] { xml, gzipped.toByteArray(), deflated.toByteArray() }) {
+            final int[] count = new int[1];
+            SNAXParser<?> parser = SNAXParser.createParser(factory, new NodeModelBuilder<Object>() {{
+                element("xml").element("foo").attach(new DefaultElementHandler<Object>() {
+                    @Override
+                    public void startElement(StartElement element, Object data) {
+                        count[0]++;
+                    }
+                });
+            }}.build());
+            parser.parse(new ByteArrayInputStream(input), StandardCharsets.UTF_8, null);
+            assertEquals(20000, count[0]);
+        }
+        // Truncated input is reported as an error, rather than hanging
+        byte[] truncated = Arrays.copyOf(gzipped.toByteArray(), gzipped.size() / 2);
+        SNAXParser<?> parser = SNAXParser.createParser(factory, new NodeModelBuilder<Object>() {{
+            element("xml").element("foo");
+        }}.build());
+        try {
+            parser.parse(new ByteArrayInputStream(truncated), StandardCharsets.UTF_8, null);
+            fail("Truncated input was not detected");
+        }
+        catch (XMLStreamException e) {
+            // expected
+        }
+        // So is any other failure of the source, rather than hanging
+        final byte[] compressed = gzipped.toByteArray();
+        InputStream failing = new InputStream() {
+            private int pos = 0;
+            @Override
+            public int read() {
+                if (pos == compressed.length / 2) {
+                    throw new IllegalStateException("source failed");
+                }
+                return compressed[pos++] & 0xFF;
+            }
+        };
+        try {
+            parser.parse(failing, StandardCharsets.UTF_8, null);
+            fail("Source failure was not reported");
+        }
+        catch (Exception e) {
+            Throwable t = e;
+            while (t != null && !"source failed".equals(t.getMessage())) {
+                t = t.getCause();
+            }
+            assertNotNull("Unexpected exception: " + e, t);
+        }
+    }
+
+    @Test
+    public void testPipelined() throws Exception {
+        StringBuilder sb = new StringBuilder("<xml>");
+        for (int i = 0; i < 10000; i++) {
+            sb.append("<foo n=\"" + i + "\"><bar>Text ").append(i).append("</bar></foo>");
+        }
+        sb.append("</xml>");
+        NodeModel<List<String>> model = new NodeModelBuilder<List<String>>() {{
+            element("xml").element("foo").attach(new DefaultElementHandler<List<String>>() {
+                @Override
+                public void startElement(StartElement element, List<String> data) {
+                    data.add(element.getAttributeByName(new QName("n")).getValue());
+                }
+                @Override
+                public void endElement(EndElement element, List<String> data) {
+                    data.add("/" + element.getName().getLocalPart());
+                }
+            });
+            element("xml").element("foo").element("bar").attach(new DefaultElementHandler<List<String>>() {
+                @Override
+                public void characters(StartElement parent, Characters contents, List<String> data) {
+                    data.add(contents.getData());
+                }
+            });
+        }}.build();
+        List<String> expected = new ArrayList<String>();
+        SNAXParser<List<String>> parser = SNAXParser.createParser(factory, model);
+        parser.parse(new StringReader(sb.toString()), expected);
+        List<String> actual = new ArrayList<String>();
+        parser.setPipelined(true);
+        parser.parse(new StringReader(sb.toString()), actual);
+        assertEquals(expected, actual);
+
+        // Errors from either thread are reported by parse()
+        try {
+            parser.parse(new StringReader("<xml><foo n=\"1\"></xml>"), new ArrayList<String>());
+            fail("Malformed XML was not reported");
+        }
+        catch (XMLStreamException e) {
+            // expected
+        }
+        SNAXParser<Object> errorParser = SNAXParser.createParser(factory, new NodeModelBuilder<Object>() {{
+            element("xml").child().element("bar").attach(new ErrorThrowingHandler("test"));
+        }}.build());
+        errorParser.setPipelined(true);
+        try {
+            errorParser.parse(new StringReader(sb.toString()), null);
+            fail("Handler exception was not reported");
+        }
+        catch (SNAXUserException e) {
+            assertEquals("test", e.getMessage());
+            assertEquals(22, e.getLocation().getColumnNumber());
+        }
+    }
+
+    @Test
+    public void testDispatchRingCancel() throws Exception {
+        final DispatchRing<Object> ring = new DispatchRing<Object>(2);
+        final List<Throwable> stopped = new ArrayList<Throwable>();
+        Thread consumer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    ring.take();
+                }
+                catch (Throwable t) {
+                    stopped.add(t);
+                }
+            }
+        };
+        consumer.start();
+        // Long enough for the consumer to be parked
+        Thread.sleep(50);
+        ring.cancel();
+        consumer.join(5000);
+        assertFalse(consumer.isAlive());
+        assertEquals(1, stopped.size());
+        assertTrue(stopped.get(0) instanceof CancellationException);
+        try {
+            ring.claim();
+            fail("Claimed a slot after cancellation");
+        }
+        catch (CancellationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPipelinedStopsAfterError() throws Exception {
+        StringBuilder sb = new StringBuilder("<xml>");
+        for (int i = 0; i < 10000; i++) {
+            sb.append("<foo n=\"" + i + "\"/>");
+        }
+        sb.append("</xml>");
+        final AtomicInteger calls = new AtomicInteger();
+        SNAXParser<Integer> parser = SNAXParser.createParser(factory, new NodeModelBuilder<Integer>() {{
+            element("xml").element("foo").attach(new DefaultElementHandler<Integer>() {
+                @Override
+                public void startElement(StartElement element, Integer failAt) {
+                    if (calls.incrementAndGet() == failAt) {
+                        throw new SNAXUserException("test");
+                    }
+                }
+            });
+        }}.build());
+        parser.setPipelined(true);
+        try {
+            parser.parse(new StringReader(sb.toString()), 5);
+            fail("Handler exception was not reported");
+        }
+        catch (SNAXUserException e) {
+            assertEquals("test", e.getMessage());
+        }
+        // No handler is called once parse() has returned
+        Thread.sleep(50);
+        assertEquals(5, calls.get());
+
+        // The parser can be used again
+        calls.set(0);
+        parser.parse(new StringReader(sb.toString()), -1);
+        assertEquals(10000, calls.get());
+    }
+
+    @Test
+    public void testStringPool() throws Exception {
+        final List<String> values = new ArrayList<String>();
+        SNAXParser<List<String>> parser = SNAXParser.createParser(factory, 
+                new NodeModelBuilder<List<String>>() {{
+            elements("rows", "row").attach(new DefaultElementHandler<List<String>>() {
+                @Override
+                public void startElement(StartElement element, List<String> data) {
+                    data.add(element.getAttributeByName(new QName("ccy")).getValue());
+                }
+                @Override
+                public void characters(StartElement parent, Characters contents, List<String> data) {
+                    data.add(contents.getData());
+                }
+            });
+        }}.build());
+        String xml = "<rows><row ccy='EUR'>open</row><row ccy='EUR'>open</row>" +
+                     "<row ccy='USD'>closed</row></rows>";
+        parser.setStringPool(new StringPool());
+        parser.parse(new StringReader(xml), values);
+        assertEquals(Arrays.asList("EUR", "open", "EUR", "open", "USD", "closed"), values);
+        assertSame(values.get(0), values.get(2));
+        assertSame(values.get(1), values.get(3));
+
+        values.clear();
+        parser.setStringPool(null);
+        parser.parse(new StringReader(xml), values);
+        assertEquals(Arrays.asList("EUR", "open", "EUR", "open", "USD", "closed"), values);
+    }
+
+    @Test
+    public void testCallbackDetection() throws Exception {
+        final DefaultElementHandler<List<String>> starts = new DefaultElementHandler<List<String>>() {
+            @Override
+            public void startElement(StartElement element, List<String> data) {
+                data.add(element.getName().getLocalPart());
+            }
+        };
+        assertEquals(1, NodeState.callbacks(starts));
+        assertEquals(4, NodeState.callbacks(new TestCHandler()));
+        assertEquals(0, NodeState.callbacks(new DefaultElementHandler<Object>()));
+        assertEquals(7, NodeState.callbacks(new ElementHandler<Object>() {
+            public void startElement(StartElement element, Object data) { }
+            public void endElement(EndElement element, Object data) { }
+            public void characters(StartElement parent, Characters contents, Object data) { }
+            public void build(NodeModelBuilder<Object> builder) { }
+        }));
+
+        // A state whose handlers take no text gets no text events
+        final List<String> events = new ArrayList<String>();
+        NodeModel<List<String>> model = new NodeModelBuilder<List<String>>() {{
+            elements("xml", "a").attach(new DefaultElementHandler<List<String>>() {
+                @Override
+                public void characters(StartElement parent, Characters contents, List<String> data) {
+                    data.add(contents.getData());
+                }
+            });
+        }}.build();
+        NodeModel<List<String>> startsOnly = new NodeModelBuilder<List<String>>() {{
+            elements("xml", "a").attach(starts);
+        }}.build();
+        SNAXParser.createParser(factory, model).parse(new StringReader("<xml><a>x</a></xml>"), events);
+        SNAXParser.createParser(factory, startsOnly).parse(new StringReader("<xml><a>y</a></xml>"), events);
+        assertEquals(Arrays.asList("x", "a"), events);
+    }
+
+    @Test
+    public void testReusedEvents() throws Exception {
+        final List<StartElement> starts = new ArrayList<StartElement>();
+        final List<StartElement> snapshots = new ArrayList<StartElement>();
+        NodeModel<List<String>> model = new NodeModelBuilder<List<String>>() {{
+            descendant().element("row").attach(new DefaultElementHandler<List<String>>() {
+                @Override
+                public void startElement(StartElement element, List<String> data) {
+                    starts.add(element);
+                    snapshots.add(ElementView.snapshot(element));
+                    data.add(element.getAttributeByName(new QName("id")).getValue());
+                }
+                @Override
+                public void characters(StartElement parent, Characters contents, List<String> data) {
+                    data.add(contents.getData());
+                }
+                @Override
+                public void endElement(EndElement element, List<String> data) {
+                    data.add("/" + element.getName().getLocalPart());
+                }
+            });
+        }}.build();
+        String xml = "<t:table xmlns:t='urn:t'><row id='1'>a</row><row id='2'>b</row>" +
+                     "<row id='3'><![CDATA[c]]></row></t:table>";
+        List<String> expected = new ArrayList<String>();
+        SNAXParser.createParser(factory, model).parse(new StringReader(xml), expected);
+        starts.clear();
+        snapshots.clear();
+
+        SNAXParser<List<String>> parser = SNAXParser.createParser(factory, model);
+        parser.setReuseEvents(true);
+        List<String> actual = new ArrayList<String>();
+        parser.parse(new StringReader(xml), actual);
+        assertEquals(expected, actual);
+        // Every row at the same depth was passed the same view...
+        assertTrue(starts.get(0) instanceof ElementView);
+        assertSame(starts.get(0), starts.get(2));
+        // ...but the snapshots kept their own contents
+        assertEquals("1", snapshots.get(0).getAttributeByName(new QName("id")).getValue());
+        assertEquals("3", snapshots.get(2).getAttributeByName(new QName("id")).getValue());
+        assertEquals("urn:t", snapshots.get(0).getNamespaceContext().getNamespaceURI("t"));
+        assertEquals(1, snapshots.get(1).getLocation().getLineNumber());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReusedEventsNotPipelined() throws Exception {
+        SNAXParser<Object> parser = SNAXParser.createParser(factory, new NodeModelBuilder<Object>() {{
+            element("foo");
+        }}.build());
+        parser.setPipelined(true);
+        parser.setReuseEvents(true);
+    }
+
+    @Test
+    public void testReusedEventReader() throws Exception {
+        FlyweightEventReader reader = new FlyweightEventReader(factory.createXMLStreamReader(
+                new StringReader("<a> <!-- c --><b>x<![CDATA[y]]><?p?>z</b>\n<c/></a>")), true);
+        assertTrue(reader.nextEvent().isStartDocument());
+        assertEquals("a", reader.nextTag().asStartElement().getName().getLocalPart());
+        StartElement b = reader.nextTag().asStartElement();
+        assertEquals("b", b.getName().getLocalPart());
+        assertEquals("xyz", reader.getElementText());
+
+        // Peeking doesn't refill views that are in use
+        XMLEvent space = reader.nextEvent();
+        XMLEvent c = reader.peek();
+        assertSame(c, reader.peek());
+        assertEquals("\n", space.asCharacters().getData());
+        assertSame(c, reader.nextEvent());
+        assertEquals("c", c.asStartElement().getName().getLocalPart());
+        assertEquals("b", b.getName().getLocalPart());
+        assertTrue(reader.nextTag().isEndElement());
+        assertTrue(reader.nextTag().isEndElement());
+        try {
+            reader.getElementText();
+            fail("Element text was read after an end tag");
+        }
+        catch (XMLStreamException e) {
+            // expected
+        }
+        assertTrue(reader.nextEvent().isEndDocument());
+        assertFalse(reader.hasNext());
+        assertNull(reader.peek());
+    }
+
+    @Test
+    public void testTransform() throws Exception {
+        final XMLEventFactory events = XMLEventFactory.newInstance();
+        NodeModel<List<String>> model = new NodeModelBuilder<List<String>>() {{
+            descendant("secret").drop();
+            select("catalog/item/price").replace(new ElementReplacer<List<String>>() {
+                @Override
+                public void replace(StartElement element, XMLEventWriter writer, List<String> data)
+                            throws XMLStreamException {
+                    writer.add(events.createStartElement("", "", "price"));
+                    writer.add(events.createCharacters("0"));
+                    writer.add(events.createEndElement("", "", "price"));
+                }
+            });
+            select("catalog/item").attach(new DefaultElementHandler<List<String>>() {
+                @Override
+                public void startElement(StartElement element, List<String> data) {
+                    data.add(element.getAttributeByName(new QName("id")).getValue());
+                }
+            });
+        }}.build();
+        String xml = "<catalog><item id='1'><name>A &amp; B</name><price>5</price></item>" +
+                     "<item id='2'><secret><price>9</price></secret><price>7</price></item></catalog>";
+        String expected = "<catalog><item id=\"1\"><name>A &amp; B</name><price>0</price></item>" +
+                          "<item id=\"2\"><price>0</price></item></catalog>";
+        for (boolean reuse : new boolean[] { false, true }) {
+            SNAXParser<List<String>> parser = SNAXParser.createParser(factory, model);
+            parser.setReuseEvents(reuse);
+            StringWriter out = new StringWriter();
+            List<String> ids = new ArrayList<String>();
+            parser.transform(new StringReader(xml), 
+                             XMLOutputFactory.newInstance().createXMLEventWriter(out), ids);
+            String result = out.toString();
+            assertEquals(expected, result.substring(result.indexOf("<catalog>")));
+            assertEquals(Arrays.asList("1", "2"), ids);
+        }
+    }
+
     @Test
     public void testXXE() throws Exception {
         final TestCHandler foo = new TestCHandler();
@@ -225,5 +742,29 @@ public class TestParser {
         }
     }
 
+    @Test
+    public void testEventCacheXXE() throws Exception {
+        final TestCHandler foo = new TestCHandler();
+        SNAXParser<?> parser = SNAXParser.createParser(factory, new NodeModelBuilder<Object>() {{
+            element("foo").attach(foo);
+        }}.build());
+        Path p = Paths.get(getClass().getResource("/payload.txt").toURI());
+        String oldUserDir = System.getProperty("user.dir");
+        System.setProperty("user.dir", p.getParent().toString());
+        try {
+            // A new factory, which still supports DTDs
+            EventCache cache = EventCache.record(XMLInputFactory.newInstance(), 
+                    new InputStreamReader(getClass().getResourceAsStream("/xxe.xml"), StandardCharsets.UTF_8));
+            parser.parse(cache, null);
+        }
+        catch (XMLStreamException e) {
+            ;
+        }
+        finally {
+            System.setProperty("user.dir", oldUserDir);
+            assertEquals("", foo.contents);
+        }
+    }
+
 }
 
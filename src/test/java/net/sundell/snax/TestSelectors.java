@@ -1,11 +1,18 @@
 package net.sundell.snax;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.regex.Pattern;
 
+import javax.xml.namespace.QName;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.events.StartElement;
 
@@ -78,6 +85,30 @@ public class TestSelectors {
         assertEquals("BAZ", foo.contents);
     }
 
+    // Named transitions are indexed at build time; make sure that doesn't
+    // change which transition wins when named and unnamed ones are mixed
+    @Test
+    public void testMixedTransitionPriority() throws Exception {
+        final TestMultiHandler first = new TestMultiHandler();
+        final TestMultiHandler second = new TestMultiHandler();
+        final TestMultiHandler third = new TestMultiHandler();
+        SNAXParser<?> parser = SNAXParser.createParser(factory, new NodeModelBuilder<Object>() {{
+            element("xml").element("a").attach(first);
+            element("xml").child(with("x")).attach(second);
+            element("xml").element("b").attach(third);
+            element("xml").element("a", with("y")).attach(third);
+        }}.build());
+        parser.parse(new StringReader("<xml><a x='1'/><b x='1'/><b/><c x='1'/><a y='1'/><c/></xml>"), null);
+        assertEquals(2, first.elementNames.size());
+        assertEquals("a", first.elementNames.get(0));
+        assertEquals("a", first.elementNames.get(1));
+        assertEquals(2, second.elementNames.size());
+        assertEquals("b", second.elementNames.get(0));
+        assertEquals("c", second.elementNames.get(1));
+        assertEquals(1, third.elementNames.size());
+        assertEquals("b", third.elementNames.get(0));
+    }
+
     @Test
     public void testChildWithConstraints() throws Exception {      
         final TestCHandler foo = new TestCHandler();
@@ -225,6 +256,24 @@ public class TestSelectors {
         assertEquals("YES2", bar.contents);
     }
 
+    @Test
+    public void testNestedDescendantScopes() throws Exception {
+        final TestMultiHandler inner = new TestMultiHandler();
+        final TestMultiHandler outer = new TestMultiHandler();
+        SNAXParser<?> parser = SNAXParser.createParser(factory, new NodeModelBuilder<Object>() {{
+            descendant("a").descendant("b").attach(inner);
+            descendant("b").attach(outer);
+            descendant(with("id")).attach(outer);
+        }}.build());
+        parser.parse(new StringReader(
+                "<r><b/><c id='1'/><a><x><b/><c id='2'/></x><a><y><b/></y></a></a></r>"), null);
+        assertEquals(2, inner.elementNames.size());
+        assertEquals(3, outer.elementNames.size());
+        assertEquals("b", outer.elementNames.get(0));
+        assertEquals("c", outer.elementNames.get(1));
+        assertEquals("c", outer.elementNames.get(2));
+    }
+
     @Test
     public void testDescendantNodeOrdering() throws Exception {
         final TestMultiHandler handler = new TestMultiHandler();
@@ -380,4 +429,180 @@ public class TestSelectors {
             descendant().element("foo").attach(foo);
         }}.build());
     }
+
+    @Test
+    public void testPositions() throws Exception {
+        String xml = "<xml><page>" +
+                "<item id='a1'/><other/><item id='a2'/><item id='a3'><item id='a3x'/></item>" +
+                "<item id='a4'/></page><page><item id='b1'/><item id='b2'/></page></xml>";
+        assertEquals(Arrays.asList("a1", "a2", "b1", "b2"), positions(xml, 
+                new NodeModelBuilder<List<String>>() {{
+            elements("xml", "page", "item").first(2).attach(new IdHandler());
+        }}.build()));
+        assertEquals(Arrays.asList("a3"), positions(xml, 
+                new NodeModelBuilder<List<String>>() {{
+            elements("xml", "page", "item").nth(3).attach(new IdHandler());
+        }}.build()));
+        assertEquals(Arrays.asList("a2", "a3", "b2"), positions(xml, 
+                new NodeModelBuilder<List<String>>() {{
+            elements("xml", "page", "item").range(2, 3).attach(new IdHandler());
+        }}.build()));
+        // Children that are out of range may still match descendant rules
+        assertEquals(Arrays.asList("a1", "a3x", "b1"), positions(xml, 
+                new NodeModelBuilder<List<String>>() {{
+            elements("xml", "page").descendant().element("item", with("id").equalTo("a3x"))
+                .attach(new IdHandler());
+            elements("xml", "page", "item").nth(1).attach(new IdHandler());
+        }}.build()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRange() throws Exception {
+        new NodeModelBuilder<Object>() {{
+            elements("xml", "foo").range(3, 2).attach(new TestHandler());
+        }};
+    }
+
+    @Test
+    public void testSampling() throws Exception {
+        StringBuilder sb = new StringBuilder("<xml>");
+        for (int i = 0; i < 100; i++) {
+            sb.append("<item id='" + i + "'><sub id='s" + i + "'/></item>");
+        }
+        String xml = sb.append("</xml>").toString();
+        List<String> ids = positions(xml, new NodeModelBuilder<List<String>>() {{
+            elements("xml", "item").sample(25).attach(new IdHandler());
+        }}.build());
+        assertEquals(Arrays.asList("0", "25", "50", "75"), ids);
+
+        // Nothing within an element that wasn't sampled is selected
+        ids = positions(xml, new NodeModelBuilder<List<String>>() {{
+            descendant("item").sample(50).descendant("sub").attach(new IdHandler());
+        }}.build());
+        assertEquals(Arrays.asList("s0", "s50"), ids);
+
+        NodeModel<List<String>> model = new NodeModelBuilder<List<String>>() {{
+            elements("xml", "item").sample(0.2, 42).attach(new IdHandler());
+        }}.build();
+        ids = positions(xml, model);
+        assertTrue(ids.size() > 5 && ids.size() < 40);
+        assertEquals(ids, positions(xml, model));
+
+        // Descendant rules of other selectors still apply within elements
+        // that weren't sampled
+        ids = positions(xml, new NodeModelBuilder<List<String>>() {{
+            elements("xml", "item").sample(40).attach(new IdHandler());
+            descendant("sub").attach(new IdHandler());
+        }}.build());
+        assertEquals(103, ids.size());
+        assertEquals(Arrays.asList("0", "s0", "s1"), ids.subList(0, 3));
+        assertEquals(Arrays.asList("s39", "40", "s40"), ids.subList(40, 43));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSampleFraction() throws Exception {
+        new NodeModelBuilder<Object>() {{
+            elements("xml", "foo").sample(1.5, 0).attach(new TestHandler());
+        }};
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSampleAfterUse() throws Exception {
+        new NodeModelBuilder<Object>() {{
+            ElementSelector<Object> foo = elements("xml", "foo");
+            foo.attach(new TestHandler());
+            foo.sample(2);
+        }};
+    }
+
+    @Test
+    public void testPaths() throws Exception {
+        String xml = "<xml><page n='1'><item id='a1' size='5'/><item id='a2' size='12'/>" +
+                "<box><item id='a3' tag='red fox'/></box></page>" +
+                "<page n='2'><item id='b1' size='20'/></page></xml>";
+        assertEquals(Arrays.asList("a1", "a2", "b1"), positions(xml, 
+                new NodeModelBuilder<List<String>>() {{
+            select("xml/page/item").attach(new IdHandler());
+        }}.build()));
+        assertEquals(Arrays.asList("a3"), positions(xml, 
+                new NodeModelBuilder<List<String>>() {{
+            select("/xml/page[@n='1']//item[contains(@tag, 'fox')]").attach(new IdHandler());
+        }}.build()));
+        assertEquals(Arrays.asList("a2", "b1"), positions(xml, 
+                new NodeModelBuilder<List<String>>() {{
+            select("//item[@size > 10 and @size<=20]").attach(new IdHandler());
+        }}.build()));
+        assertEquals(Arrays.asList("a2"), positions(xml, 
+                new NodeModelBuilder<List<String>>() {{
+            element("xml").select("*/item[@size][2]").attach(new IdHandler());
+        }}.build()));
+    }
+
+    @Test
+    public void testPathsSharePrefixes() throws Exception {
+        NodeModel<Object> model = new NodeModelBuilder<Object>() {{
+            for (int i = 0; i < 100; i++) {
+                select("xml/rules/rule[@id='" + i + "']").attach(new TestHandler());
+            }
+            elements("xml", "rules", "other").attach(new TestHandler());
+        }}.build();
+        NodeState<Object> root = model.getRoot();
+        assertEquals(1, root.getTransitions().size());
+        NodeState<Object> rules = root.getTransitions().get(0).getTarget()
+                .getTransitions().get(0).getTarget();
+        assertEquals(101, rules.getTransitions().size());
+        assertSame(PathExpression.compile("a//b"), PathExpression.compile("a//b"));
+    }
+
+    @Test
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void testPathsIndexedByValue() throws Exception {
+        NodeModel<List<String>> model = new NodeModelBuilder<List<String>>() {{
+            for (int i = 0; i < 20; i++) {
+                if (i == 10) {
+                    // Takes priority over the rules added after it
+                    select("xml/rule[@kind='x']").attach(new DefaultElementHandler<List<String>>() {
+                        @Override
+                        public void startElement(StartElement element, List<String> data) {
+                            data.add("kind:" + element.getAttributeByName(new QName("id")).getValue());
+                        }
+                    });
+                }
+                select("xml/rule[@id='" + i + "']").attach(new IdHandler());
+                select("//entry[@id='" + i + "']").attach(new IdHandler());
+            }
+        }}.build();
+        NodeState<List<String>> xml = model.getRoot().getTransitions().get(0).getTarget();
+        assertNotNull(ValueIndex.create(xml.getTransitions().toArray(new NodeTransition[0])));
+        assertEquals(Arrays.asList("3", "kind:15", "12", "5", "7"), positions(
+                "<xml><rule id='3'/><rule id='15' kind='x'/><rule id='12'/><rule id='99'/>" +
+                "<rule id='5' kind='x'/><entry id='7'/><entry id='30'/></xml>", model));
+    }
+
+    @Test
+    public void testInvalidPaths() throws Exception {
+        for (String path : Arrays.asList("", "a/", "a[", "a[@x='y'", "a[@x=y]", "a[@x<z]", 
+                                         "//a[1]", "a[0]", "p:a", "a b")) {
+            try {
+                PathExpression.compile(path);
+                fail("Accepted " + path);
+            }
+            catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().startsWith("Invalid path"));
+            }
+        }
+    }
+
+    private List<String> positions(String xml, NodeModel<List<String>> model) throws Exception {
+        List<String> ids = new ArrayList<String>();
+        SNAXParser.createParser(factory, model).parse(new StringReader(xml), ids);
+        return ids;
+    }
+
+    static class IdHandler extends DefaultElementHandler<List<String>> {
+        @Override
+        public void startElement(StartElement element, List<String> data) {
+            data.add(element.getAttributeByName(new QName("id")).getValue());
+        }
+    }
 }
@@ -0,0 +1,116 @@
+package net.sundell.snax;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.events.Characters;
+import javax.xml.stream.events.StartElement;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TestTypedValues {
+
+    private static XMLInputFactory factory = XMLInputFactory.newInstance();
+
+    @Test
+    public void testAttributes() throws Exception {
+        final List<Object> values = new ArrayList<Object>();
+        SNAXParser<List<Object>> parser = SNAXParser.createParser(factory,
+                new NodeModelBuilder<List<Object>>() {{
+            element("row").attach(new DefaultElementHandler<List<Object>>() {
+                @Override
+                public void startElement(StartElement element, List<Object> data) {
+                    data.add(TypedValues.getInt(element, new QName("i")));
+                    data.add(TypedValues.getLong(element, new QName("l")));
+                    data.add(TypedValues.getDouble(element, new QName("d")));
+                    data.add(TypedValues.getBoolean(element, new QName("b")));
+                    data.add(TypedValues.getDateMillis(element, new QName("t")));
+                    data.add(TypedValues.getInt(element, new QName("missing"), -1));
+                }
+                @Override
+                public void characters(StartElement parent, Characters contents, List<Object> data) {
+                    data.add(TypedValues.getLong(contents));
+                }
+            });
+        }}.build());
+        parser.parse(new StringReader("<row i=' -42 ' l='9223372036854775807' d='2.5e3' b='1' " +
+                "t='2024-03-01T12:30:15.25+01:00'>-9223372036854775808</row>"), values);
+        assertEquals(-42, values.get(0));
+        assertEquals(Long.MAX_VALUE, values.get(1));
+        assertEquals(2500.0, values.get(2));
+        assertEquals(true, values.get(3));
+        assertEquals(1709292615250L, values.get(4));
+        assertEquals(-1, values.get(5));
+        assertEquals(Long.MIN_VALUE, values.get(6));
+    }
+
+    @Test
+    public void testDates() {
+        assertEquals(0L, TypedValues.parseDateMillis("1970-01-01"));
+        assertEquals(951782400000L, TypedValues.parseDateMillis("2000-02-29T00:00Z"));
+        assertEquals(-86400000L, TypedValues.parseDateMillis("1969-12-31"));
+        assertEquals(45000500L, TypedValues.parseDateMillis("1970-01-01T12:30:00.5"));
+        for (String bad : new String[] { "2023-02-29", "2024-13-01", "2024-1-01", 
+                                         "2024-01-01T25:00", "2024-01-01Z1", "2024-01-01Tx",
+                                         "2024-03-01T12:30.5" }) {
+            try {
+                TypedValues.parseDateMillis(bad);
+                fail("Accepted " + bad);
+            }
+            catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testNumbers() {
+        assertEquals(Double.NEGATIVE_INFINITY, TypedValues.parseDouble("-INF"), 0);
+        assertTrue(Double.isNaN(TypedValues.parseDouble("NaN")));
+        for (String bad : new String[] { "", "-", "12a", "9223372036854775808", "Infinity" }) {
+            try {
+                if (bad.equals("Infinity")) {
+                    TypedValues.parseDouble(bad);
+                }
+                else {
+                    TypedValues.parseLong(bad);
+                }
+                fail("Accepted " + bad);
+            }
+            catch (NumberFormatException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        SNAXParser<Object> parser = SNAXParser.createParser(factory, new NodeModelBuilder<Object>() {{
+            element("doc").element("row").attach(new DefaultElementHandler<Object>() {
+                @Override
+                public void startElement(StartElement element, Object data) {
+                    TypedValues.getInt(element, new QName("n"));
+                }
+            });
+        }}.build());
+        try {
+            parser.parse(new StringReader("<doc>\n<row n='3000000000'/></doc>"), null);
+            fail();
+        }
+        catch (SNAXUserException e) {
+            assertEquals("Invalid int '3000000000' in attribute n", e.getMessage());
+            assertEquals(2, e.getLocation().getLineNumber());
+        }
+        try {
+            parser.parse(new StringReader("<doc><row/></doc>"), null);
+            fail();
+        }
+        catch (SNAXUserException e) {
+            assertEquals("Missing attribute n on element row", e.getMessage());
+        }
+    }
+}
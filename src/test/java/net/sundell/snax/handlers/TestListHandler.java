@@ -1,13 +1,27 @@
 package net.sundell.snax.handlers;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.Reader;
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
 import javax.xml.namespace.QName;
 import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.events.StartElement;
 
+import net.sundell.snax.KeyExtractor;
 import net.sundell.snax.NodeModelBuilder;
 import net.sundell.snax.SNAXParser;
 import org.junit.Test;
@@ -36,6 +50,150 @@ public class TestListHandler {
         assertEquals("3", b.getList().get(2));
     }
     
+    @Test
+    public void testBatches() throws Exception {
+        SNAXParser<TestBatchConsumer> parser = SNAXParser.createParser(factory, new NodeModelBuilder<TestBatchConsumer>() {{
+            elements("xml", "list")
+                .attach(new ListHandler<TestBatchConsumer>(ROW_EL));
+        }}.build());
+        StringBuilder sb = new StringBuilder("<xml><list>");
+        for (int i = 0; i < 10; i++) {
+            sb.append("<row val='" + i + "'/>");
+        }
+        sb.append("</list></xml>");
+        final List<List<String>> batches = new ArrayList<List<String>>();
+        TestBatchConsumer c = new TestBatchConsumer(VAL_ATTR, 4, 
+                new BatchingListConsumer.BatchCallback<String>() {
+            @Override
+            public void processBatch(List<String> batch) {
+                batches.add(new ArrayList<String>(batch));
+            }
+        });
+        parser.parse(new StringReader(sb.toString()), c);
+        assertEquals(10, c.getCount());
+        assertEquals(3, batches.size());
+        assertEquals(Arrays.asList("0", "1", "2", "3"), batches.get(0));
+        assertEquals(Arrays.asList("4", "5", "6", "7"), batches.get(1));
+        assertEquals(Arrays.asList("8", "9"), batches.get(2));
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            // Later rows finish sooner, but are committed in document order
+            List<String> committed = parseAsync(executor, null);
+            assertEquals(12, committed.size());
+            for (int i = 0; i < 12; i++) {
+                assertEquals(String.valueOf(i), committed.get(i));
+            }
+            // Rows are only ordered within each group
+            committed = parseAsync(executor, new KeyExtractor<List<String>>() {
+                @Override
+                public String getKey(StartElement element, List<String> data) {
+                    return element.getAttributeByName(GROUP_ATTR).getValue();
+                }
+            });
+            assertEquals(12, committed.size());
+            int[] last = new int[] { -1, -1, -1 };
+            for (String val : committed) {
+                int i = Integer.parseInt(val);
+                assertTrue(i > last[i % 3]);
+                last[i % 3] = i;
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testAsyncCancelsAbandonedItems() throws Exception {
+        final List<FutureTask<String>> submitted = new ArrayList<FutureTask<String>>();
+        SNAXParser<List<String>> parser = SNAXParser.createParser(factory, new NodeModelBuilder<List<String>>() {{
+            elements("xml", "list")
+                .attach(new AsyncListHandler<List<String>, String>(ROW_EL, 4, null) {
+                    @Override
+                    protected Future<String> submit(StartElement item, List<String> data) {
+                        // Never run, so always outstanding
+                        FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+                            @Override
+                            public String call() {
+                                return "";
+                            }
+                        });
+                        submitted.add(task);
+                        return task;
+                    }
+                    @Override
+                    protected void commit(StartElement item, String result, List<String> data) {
+                        data.add(result);
+                    }
+                });
+        }}.build());
+        try {
+            parser.parse(new StringReader("<xml><list><row val='0'/><row val='1'/><</list></xml>"),
+                         new ArrayList<String>());
+            fail("Malformed document was parsed");
+        }
+        catch (XMLStreamException e) {
+            // expected
+        }
+        assertEquals(2, submitted.size());
+        assertFalse(submitted.get(0).isCancelled());
+        // Items outstanding from the abandoned list are cancelled by the next one
+        parser.parse(new StringReader("<xml><list></list></xml>"), new ArrayList<String>());
+        assertTrue(submitted.get(0).isCancelled());
+        assertTrue(submitted.get(1).isCancelled());
+    }
+
+    static final QName GROUP_ATTR = new QName("group");
+
+    private List<String> parseAsync(final ExecutorService executor,
+                                    final KeyExtractor<List<String>> keys) throws Exception {
+        SNAXParser<List<String>> parser = SNAXParser.createParser(factory, new NodeModelBuilder<List<String>>() {{
+            elements("xml", "list")
+                .attach(new AsyncListHandler<List<String>, String>(ROW_EL, 4, keys) {
+                    @Override
+                    protected Future<String> submit(StartElement item, List<String> data) {
+                        final String val = item.getAttributeByName(VAL_ATTR).getValue();
+                        return executor.submit(new Callable<String>() {
+                            @Override
+                            public String call() throws Exception {
+                                Thread.sleep(12 - Integer.parseInt(val));
+                                return val;
+                            }
+                        });
+                    }
+                    @Override
+                    protected void commit(StartElement item, String result, List<String> data) {
+                        data.add(result);
+                    }
+                });
+        }}.build());
+        StringBuilder sb = new StringBuilder("<xml><list>");
+        for (int i = 0; i < 12; i++) {
+            sb.append("<row val='" + i + "' group='" + (i % 3) + "'/>");
+        }
+        sb.append("</list></xml>");
+        List<String> committed = new ArrayList<String>();
+        parser.parse(new StringReader(sb.toString()), committed);
+        return committed;
+    }
+
+    static class TestBatchConsumer extends BatchingListConsumer<String> {
+        private QName attr;
+        TestBatchConsumer(QName attr, int batchSize, BatchCallback<String> callback) {
+            super(batchSize, callback);
+            this.attr = attr;
+        }
+
+        @Override
+        public void consumeElementStart(StartElement element) {
+            add(element.getAttributeByName(attr).getValue());
+        }
+    }
+
     static class TestListBuilder extends DefaultListConsumer<String> {
         private QName attr;
         TestListBuilder(QName attr) {